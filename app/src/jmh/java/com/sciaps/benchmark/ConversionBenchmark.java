@@ -0,0 +1,190 @@
+package com.sciaps.benchmark;
+
+import com.devsmart.microdb.DBBuilder;
+import com.devsmart.microdb.MicroDB;
+import com.google.common.io.Files;
+import com.sciaps.DBConverter;
+import com.sciaps.Utils.DBObjectConverter;
+import com.sciaps.Utils.SpectraDecoder;
+import com.sciaps.common.spectrum.LIBZPixelSpectrum;
+import com.sciaps.data.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipInputStream;
+
+/**
+ * The per-object conversions DBConverter is made of, plus the whole conversion of an archive.
+ * Run with the gc profiler (the default in build.gradle) to get the allocation rate of each.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ConversionBenchmark {
+
+    @Param({"10", "100"})
+    public int tests;
+
+    private File mArchive;
+    private File mTempDir;
+    private SDBFile mSDBFile;
+    private LIBZDB mLibzdb;
+    private MicroDB mDB;
+    private DBObjectConverter mConverter;
+
+    private List<OrgLIBZTest> mTests;
+    private List<OrgModel2> mModels;
+    private LIBZPixelSpectrum mSpectrum;
+    private long mExpectedSpectrumFiles;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        mArchive = SyntheticArchives.create(tests, true);
+        mTempDir = Files.createTempDir();
+
+        mSDBFile = new SDBFile();
+        ZipInputStream zipIn = new ZipInputStream(new FileInputStream(mArchive));
+        try {
+            mSDBFile.load(zipIn);
+        } finally {
+            zipIn.close();
+        }
+        mLibzdb = new LIBZDB();
+        mLibzdb.load(mSDBFile);
+
+        mDB = DBBuilder.builder().cacheSize(128).build(new File(mTempDir, "maindb"));
+        mConverter = new DBObjectConverter();
+        for (OrgStandard standard : mLibzdb.getAllStandards()) {
+            mConverter.convertStandardToDBStandard(standard, mDB.insert(Standard.class));
+        }
+
+        mTests = new ArrayList<OrgLIBZTest>();
+        for (OrgLIBZTest test : mLibzdb.getAllTests()) {
+            mTests.add(test);
+            mExpectedSpectrumFiles += mLibzdb.getSpectrumIds(test).size();
+        }
+        mModels = new ArrayList<OrgModel2>();
+        if (mLibzdb.getDatabaseVersion() >= 0) {
+            for (OrgModel2 model : mLibzdb.getAllModels2()) {
+                mModels.add(model);
+            }
+        }
+
+        if (mTests.isEmpty()) {
+            throw new IllegalStateException("archive has no tests");
+        }
+        verifyDecodedOnce(1);
+        verifyDecodedOnce(4);
+        LIBZDB.ShotIterator shots = mLibzdb.getShots(mTests.get(0));
+        try {
+            mSpectrum = shots.next();
+        } finally {
+            shots.close();
+        }
+    }
+
+    /**
+     * Decode every test the way DBConverter does and fail the trial if any spectrum file was
+     * decoded more than once, so no benchmark runs against a decoder that does twice the work.
+     */
+    private void verifyDecodedOnce(int threads) {
+        long before = mLibzdb.getSpectrumFilesDecoded();
+        SpectraDecoder decoder = new SpectraDecoder(mConverter, mLibzdb, threads);
+        try {
+            for (DBObjectConverter.DecodedSpectra decoded : decoder.decode(mTests)) {
+                decoded.release();
+            }
+        } finally {
+            decoder.shutdown();
+        }
+        long decoded = mLibzdb.getSpectrumFilesDecoded() - before;
+        if (decoded != mExpectedSpectrumFiles) {
+            throw new IllegalStateException(String.format("%d threads decoded %d spectrum files, expected %d",
+                    threads, decoded, mExpectedSpectrumFiles));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        mDB.close();
+        mDB.shutdown();
+        mSDBFile.close();
+        mArchive.delete();
+        deleteRecursively(mTempDir);
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    @Benchmark
+    public SpectraData convertSpectrumToSpectraData() {
+        SpectraData retval = mDB.insert(SpectraData.class);
+        mConverter.convertSpectrumToSpectraData(mSpectrum, retval);
+        return retval;
+    }
+
+    /**
+     * Decoding alone. Compare gc.alloc.rate.norm with convertLIBZTestToAcquisition for what the
+     * SpectraData copies add per test.
+     */
+    @Benchmark
+    public int decodeSpectra() {
+        DBObjectConverter.DecodedSpectra decoded = mConverter.decodeSpectra(mTests.get(0), mLibzdb);
+        decoded.release();
+        return decoded.getSpectraCount();
+    }
+
+    @Benchmark
+    public Acquisition convertLIBZTestToAcquisition() {
+        Acquisition retval = mDB.insert(Acquisition.class);
+        mConverter.convertLIBZTestToAcquisition(mTests.get(0), retval, mLibzdb);
+        return retval;
+    }
+
+    @Benchmark
+    public int convertModel2ToEmpiricalModel() {
+        for (OrgModel2 model : mModels) {
+            mConverter.convertModel2ToEmpiricalModel(model, mDB.insert(EmpiricalModel.class));
+        }
+        return mModels.size();
+    }
+
+    /**
+     * Converts every test and fails if any spectrum file was decoded more than once, which is
+     * what happened before getShots replaced the separate count and decode passes.
+     */
+    @Benchmark
+    public long convertAllTests() {
+        long before = mLibzdb.getSpectrumFilesDecoded();
+        for (OrgLIBZTest test : mTests) {
+            mConverter.convertLIBZTestToAcquisition(test, mDB.insert(Acquisition.class), mLibzdb);
+        }
+        long decoded = mLibzdb.getSpectrumFilesDecoded() - before;
+        if (decoded != mExpectedSpectrumFiles) {
+            throw new IllegalStateException("decoded " + decoded + " spectrum files, expected " + mExpectedSpectrumFiles);
+        }
+        return decoded;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public String doDBConvert() throws Exception {
+        DBConverter converter = new DBConverter();
+        converter.setOutputDirectory(new File(mTempDir, "convert"));
+        converter.doDBConvert(mArchive);
+        return converter.mSummary;
+    }
+}
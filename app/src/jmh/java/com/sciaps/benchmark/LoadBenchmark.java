@@ -0,0 +1,110 @@
+package com.sciaps.benchmark;
+
+import com.sciaps.data.*;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Reading an archive: SDBFile.load, LIBZDB.load and iterating each LIBZDB.getAll* accessor, with
+ * the generated type adapters and with reflective Gson.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class LoadBenchmark {
+
+    @Param({"100", "1000", "10000"})
+    public int tests;
+
+    @Param({"true", "false"})
+    public boolean generatedAdapters;
+
+    private File mArchive;
+    private SDBFile mSDBFile;
+    private LIBZDB mLibzdb;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        mArchive = SyntheticArchives.create(tests, false);
+        mSDBFile = loadSDBFile();
+        mLibzdb = new LIBZDB();
+        mLibzdb.setGeneratedAdapters(generatedAdapters);
+        mLibzdb.load(mSDBFile);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        mSDBFile.close();
+        mArchive.delete();
+    }
+
+    private SDBFile loadSDBFile() throws IOException {
+        SDBFile retval = new SDBFile();
+        ZipInputStream zipIn = new ZipInputStream(new FileInputStream(mArchive));
+        try {
+            retval.load(zipIn);
+        } finally {
+            zipIn.close();
+        }
+        return retval;
+    }
+
+    @Benchmark
+    public SDBFile sdbFileLoad() throws IOException {
+        SDBFile retval = loadSDBFile();
+        retval.close();
+        return retval;
+    }
+
+    @Benchmark
+    public LIBZDB libzdbLoad() {
+        LIBZDB retval = new LIBZDB();
+        retval.load(mSDBFile);
+        return retval;
+    }
+
+    @Benchmark
+    public void getAllStandards(Blackhole bh) {
+        for (OrgStandard standard : mLibzdb.getAllStandards()) {
+            bh.consume(standard);
+        }
+    }
+
+    @Benchmark
+    public void getAllTests(Blackhole bh) {
+        for (OrgLIBZTest test : mLibzdb.getAllTests()) {
+            bh.consume(test);
+        }
+    }
+
+    @Benchmark
+    public void getAllModels(Blackhole bh) {
+        if (mLibzdb.getDatabaseVersion() < 0) {
+            for (OrgModel model : mLibzdb.getAllModels()) {
+                bh.consume(model);
+            }
+        } else {
+            for (OrgModel2 model : mLibzdb.getAllModels2()) {
+                bh.consume(model);
+            }
+        }
+    }
+
+    @Benchmark
+    public void getAllFingerprints(Blackhole bh) {
+        for (OrgFingerprintLibraryTemplate fingerprint : mLibzdb.getAllFingerprints()) {
+            bh.consume(fingerprint);
+        }
+    }
+
+    @Benchmark
+    public float getDatabaseVersion() {
+        return mLibzdb.getDatabaseVersion();
+    }
+}
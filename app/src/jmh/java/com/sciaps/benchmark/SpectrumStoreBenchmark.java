@@ -0,0 +1,156 @@
+package com.sciaps.benchmark;
+
+import com.sciaps.data.SpectrumStore;
+import org.mapdb.BTreeMap;
+import org.mapdb.DB;
+import org.mapdb.DBMaker;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parking spectrum files: the MapDB temp file BTreeMap SDBFile used before and the
+ * {@link SpectrumStore} that replaced it, filled with the same blobs and read in random order.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SpectrumStoreBenchmark {
+
+    private static final int LOOKUPS = 10000;
+
+    @Param({"1000", "10000"})
+    public int spectra;
+
+    @Param({"4096", "65536"})
+    public int spectrumSize;
+
+    @Param({"mapdb", "segments"})
+    public String store;
+
+    private byte[][] mBlobs;
+    private String[] mIds;
+    private int[] mLookupOrder;
+    private Table mTable;
+
+    /**
+     * The operations SDBFile needs from its spectrum table.
+     */
+    private interface Table {
+        void put(String id, byte[] data) throws IOException;
+
+        byte[] get(String id);
+
+        void close() throws IOException;
+    }
+
+    private static class MapDBTable implements Table {
+        private final DB mDB;
+        private final BTreeMap<String, byte[]> mMap;
+
+        MapDBTable() {
+            mDB = DBMaker.newTempFileDB()
+                    .cacheSize(128)
+                    .transactionDisable()
+                    .deleteFilesAfterClose()
+                    .make();
+            mMap = mDB.createTreeMap("spectrum")
+                    .makeStringMap();
+        }
+
+        @Override
+        public void put(String id, byte[] data) {
+            mMap.put(id, data);
+        }
+
+        @Override
+        public byte[] get(String id) {
+            return mMap.get(id);
+        }
+
+        @Override
+        public void close() {
+            mDB.close();
+        }
+    }
+
+    private static class SegmentTable implements Table {
+        private final SpectrumStore mStore;
+
+        SegmentTable() throws IOException {
+            mStore = new SpectrumStore();
+        }
+
+        @Override
+        public void put(String id, byte[] data) throws IOException {
+            mStore.put(id, data);
+        }
+
+        @Override
+        public byte[] get(String id) {
+            return mStore.get(id);
+        }
+
+        @Override
+        public void close() throws IOException {
+            mStore.close();
+        }
+    }
+
+    private Table createTable() throws IOException {
+        if ("mapdb".equals(store)) {
+            return new MapDBTable();
+        }
+        return new SegmentTable();
+    }
+
+    private Table fill() throws IOException {
+        Table retval = createTable();
+        for (int i = 0; i < spectra; i++) {
+            retval.put(mIds[i], mBlobs[i % mBlobs.length]);
+        }
+        return retval;
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        Random random = new Random(42);
+
+        // compressed spectrum files do not compress further, random bytes behave the same
+        mBlobs = new byte[16][spectrumSize];
+        for (byte[] blob : mBlobs) {
+            random.nextBytes(blob);
+        }
+        mIds = new String[spectra];
+        for (int i = 0; i < spectra; i++) {
+            mIds[i] = String.format("%08x-%04x-shot-%d", random.nextInt(), random.nextInt(0x10000), i);
+        }
+        mLookupOrder = new int[LOOKUPS];
+        for (int i = 0; i < LOOKUPS; i++) {
+            mLookupOrder[i] = random.nextInt(spectra);
+        }
+
+        mTable = fill();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        mTable.close();
+    }
+
+    @Benchmark
+    public void load() throws IOException {
+        fill().close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOOKUPS)
+    public void lookup(Blackhole bh) {
+        for (int i : mLookupOrder) {
+            bh.consume(mTable.get(mIds[i]));
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package com.sciaps.benchmark;
+
+import com.sciaps.SDBGenerator;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Benchmark archives made by {@link SDBGenerator}. Spectrum files are taken from the .sdb file
+ * named by the SDB_TEMPLATE environment variable (or the sdb.template system property), because
+ * the spectrum file format is owned by the common library. Without a template the tests refer to
+ * filler that does not decode, which is fine for benchmarks that do not decode spectra, and the
+ * build leaves the ones that do out of the run.
+ */
+final class SyntheticArchives {
+
+    private SyntheticArchives() {
+    }
+
+    static File create(int tests, boolean decodableSpectra) throws IOException {
+        if (decodableSpectra && SDBGenerator.getTemplate() == null) {
+            // the gradle build leaves these benchmarks out, this is only reached when running the jar directly
+            throw new IllegalStateException("this benchmark decodes spectra and needs SDB_TEMPLATE set to an .sdb file"
+                    + " with real spectrum files, run it with SDB_TEMPLATE=/path/to/sample.sdb or exclude it with -e "
+                    + "ConversionBenchmark");
+        }
+
+        File retval = File.createTempFile("benchmark-" + tests + "-", ".sdb");
+        retval.deleteOnExit();
+
+        SDBGenerator generator = new SDBGenerator();
+        generator.setOutput(retval);
+        generator.setTests(tests);
+        generator.generate();
+        return retval;
+    }
+}
@@ -0,0 +1,319 @@
+package com.sciaps;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.sciaps.Utils.BatchedDBWriter;
+import com.sciaps.Utils.ConversionMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Headless converter for many .sdb files. Does not load any Swing classes.
+ *
+ * <pre>
+ * --batch [options] file.sdb|directory ...
+ *   --out DIR        write each database to DIR/&lt;name of the sdb file&gt;/maindb
+ *                    (default: a directory next to each input file)
+ *   --jobs N         number of archives converted at the same time (default 1)
+ *   --memory MB      heap budget shared by all running conversions (default 80% of max heap)
+ *   --threads N      loader and spectrum decoder threads per conversion (default processors / jobs)
+ *   --streaming      convert while reading the archive
+ *   --mapped         memory map the archive instead of copying it to a temp file
+ *   --incremental    update an existing output database with new and changed objects only
+ *   --compress-objects  keep the object catalog deflated in memory
+ *   --spill-mb MB    spill loaded objects beyond MB to sorted temp files
+ *   --dedup-spectra  decode and store identical spectrum files once
+ *   --db-cache N     object cache size of the target database (default 128)
+ *   --batch-objects N  flush the target database every N objects (default 2000)
+ *   --batch-mb MB    or every MB of estimated spectrum data (default 64)
+ *   --jmx            publish the metrics of running conversions over JMX
+ *   --summary FILE   also write the JSON summary to FILE
+ * </pre>
+ *
+ * A JSON summary of all conversions is printed to stdout when done (the log is written to stdout
+ * as well, use --summary to get the summary on its own). The exit code is 0 when every
+ * file converted, 1 when at least one failed and 2 for invalid arguments.
+ */
+public class BatchConverter {
+
+    static Logger logger = LoggerFactory.getLogger(BatchConverter.class);
+
+    // rough heap needed besides the object catalog: spectrum index, MicroDB cache, decode buffers
+    private static final long BASE_JOB_MEMORY_MB = 64;
+
+    private final List<File> mInputs = new ArrayList<File>();
+    private File mOutputDir;
+    private File mSummaryFile;
+    private int mJobs = 1;
+    private long mMemoryBudgetMB = Runtime.getRuntime().maxMemory() / (1024 * 1024) * 8 / 10;
+    private int mDecoderThreads = -1;
+    private boolean mStreaming = false;
+    private boolean mMemoryMapped = false;
+    private boolean mIncremental = false;
+    private boolean mCompressObjects = false;
+    private boolean mMetricsJmx = false;
+    private long mSpillMB = -1;
+    private boolean mDedupSpectra = false;
+    private int mDBCacheSize = DBConverter.DEFAULT_DB_CACHE_SIZE;
+    private int mBatchObjects = BatchedDBWriter.DEFAULT_BATCH_OBJECTS;
+    private long mBatchBytes = BatchedDBWriter.DEFAULT_BATCH_BYTES;
+
+    static class Result {
+        String input;
+        String output;
+        String metrics;
+        String status;
+        String summary;
+        String error;
+        double seconds;
+    }
+
+    static class Summary {
+        int converted;
+        int failed;
+        double seconds;
+        List<Result> files = new ArrayList<Result>();
+    }
+
+    public static void main(String[] args) {
+        BatchConverter converter = new BatchConverter();
+        try {
+            converter.parseArgs(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            printUsage();
+            System.exit(2);
+            return;
+        }
+
+        Summary summary = converter.run();
+
+        Gson gson = new GsonBuilder().setPrettyPrinting().create();
+        String json = gson.toJson(summary);
+        if (converter.mSummaryFile != null) {
+            try {
+                Files.write(json, converter.mSummaryFile, Charsets.UTF_8);
+            } catch (IOException e) {
+                logger.error("Cannot write summary to " + converter.mSummaryFile, e);
+            }
+        }
+        System.out.println(json);
+        System.exit(summary.failed == 0 ? 0 : 1);
+    }
+
+    private static void printUsage() {
+        System.err.println("usage: --batch [--out DIR] [--summary FILE] [--jobs N] [--memory MB] [--threads N] [--streaming] [--mapped] [--incremental] [--compress-objects] [--spill-mb MB] [--dedup-spectra] [--db-cache N] [--batch-objects N] [--batch-mb MB] [--jmx] file.sdb|directory ...");
+    }
+
+    void parseArgs(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if ("--batch".equals(arg)) {
+                continue;
+            } else if ("--out".equals(arg)) {
+                mOutputDir = new File(value(args, ++i, arg));
+            } else if ("--summary".equals(arg)) {
+                mSummaryFile = new File(value(args, ++i, arg));
+            } else if ("--jobs".equals(arg)) {
+                mJobs = intValue(args, ++i, arg);
+            } else if ("--memory".equals(arg)) {
+                mMemoryBudgetMB = intValue(args, ++i, arg);
+            } else if ("--threads".equals(arg)) {
+                mDecoderThreads = intValue(args, ++i, arg);
+            } else if ("--streaming".equals(arg)) {
+                mStreaming = true;
+            } else if ("--mapped".equals(arg)) {
+                mMemoryMapped = true;
+            } else if ("--incremental".equals(arg)) {
+                mIncremental = true;
+            } else if ("--compress-objects".equals(arg)) {
+                mCompressObjects = true;
+            } else if ("--spill-mb".equals(arg)) {
+                mSpillMB = intValue(args, ++i, arg);
+                if (mSpillMB < 1) {
+                    throw new IllegalArgumentException("--spill-mb must be positive");
+                }
+            } else if ("--dedup-spectra".equals(arg)) {
+                mDedupSpectra = true;
+            } else if ("--jmx".equals(arg)) {
+                mMetricsJmx = true;
+            } else if ("--db-cache".equals(arg)) {
+                mDBCacheSize = intValue(args, ++i, arg);
+            } else if ("--batch-objects".equals(arg)) {
+                mBatchObjects = intValue(args, ++i, arg);
+            } else if ("--batch-mb".equals(arg)) {
+                mBatchBytes = intValue(args, ++i, arg) * 1024L * 1024L;
+            } else if (arg.startsWith("--")) {
+                throw new IllegalArgumentException("unknown option: " + arg);
+            } else {
+                addInput(new File(arg));
+            }
+        }
+
+        if (mInputs.isEmpty()) {
+            throw new IllegalArgumentException("no .sdb files given");
+        }
+        if (mJobs < 1 || mMemoryBudgetMB < 1 || mDBCacheSize < 1 || mBatchObjects < 1 || mBatchBytes < 1) {
+            throw new IllegalArgumentException("--jobs, --memory, --db-cache, --batch-objects and --batch-mb must be positive");
+        }
+        if (mDecoderThreads < 1) {
+            mDecoderThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / mJobs);
+        }
+    }
+
+    private static String value(String[] args, int i, String option) {
+        if (i >= args.length) {
+            throw new IllegalArgumentException("missing value for " + option);
+        }
+        return args[i];
+    }
+
+    private static int intValue(String[] args, int i, String option) {
+        try {
+            return Integer.parseInt(value(args, i, option));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("invalid number for " + option + ": " + args[i]);
+        }
+    }
+
+    private void addInput(File file) {
+        if (file.isDirectory()) {
+            File[] files = file.listFiles(new FileFilter() {
+                @Override
+                public boolean accept(File f) {
+                    return f.isFile() && f.getName().toLowerCase().endsWith(".sdb");
+                }
+            });
+            if (files != null) {
+                Arrays.sort(files);
+                mInputs.addAll(Arrays.asList(files));
+            }
+        } else if (file.isFile()) {
+            mInputs.add(file);
+        } else {
+            throw new IllegalArgumentException("no such file: " + file);
+        }
+    }
+
+    private File getOutputDir(File input) {
+        String name = input.getName();
+        int dot = name.lastIndexOf('.');
+        if (dot > 0) {
+            name = name.substring(0, dot);
+        }
+        File parent = mOutputDir != null ? mOutputDir : input.getAbsoluteFile().getParentFile();
+        return new File(parent, name);
+    }
+
+    /**
+     * Heap a conversion of this file is expected to need. In the default mode the whole object
+     * catalog is loaded, which is bounded by the archive size; spectra go to disk in every mode.
+     */
+    private long estimateMemoryMB(File input) {
+        long archiveMB = input.length() / (1024 * 1024);
+        long retval = BASE_JOB_MEMORY_MB;
+        if (!mStreaming) {
+            long catalogMB = mMemoryMapped ? archiveMB / 4 : archiveMB;
+            if (!mMemoryMapped && mSpillMB > 0) {
+                catalogMB = Math.min(catalogMB, mSpillMB);
+            }
+            retval += catalogMB;
+        }
+        return Math.min(retval, mMemoryBudgetMB);
+    }
+
+    Summary run() {
+        final Summary summary = new Summary();
+        final Semaphore memory = new Semaphore((int) Math.min(mMemoryBudgetMB, Integer.MAX_VALUE), true);
+        long start = System.nanoTime();
+
+        logger.info("Converting {} files, {} at a time, memory budget {} MB", mInputs.size(), mJobs, mMemoryBudgetMB);
+
+        ExecutorService executor = Executors.newFixedThreadPool(mJobs);
+        List<Future<Result>> futures = new ArrayList<Future<Result>>();
+        for (final File input : mInputs) {
+            futures.add(executor.submit(new Callable<Result>() {
+                @Override
+                public Result call() throws Exception {
+                    int permits = (int) estimateMemoryMB(input);
+                    memory.acquire(permits);
+                    try {
+                        return convert(input);
+                    } finally {
+                        memory.release(permits);
+                    }
+                }
+            }));
+        }
+        executor.shutdown();
+
+        for (int i = 0; i < futures.size(); i++) {
+            Result result;
+            try {
+                result = futures.get(i).get();
+            } catch (Exception e) {
+                result = new Result();
+                result.input = mInputs.get(i).getPath();
+                result.status = "failed";
+                result.error = String.valueOf(e.getCause() != null ? e.getCause() : e);
+            }
+
+            if ("ok".equals(result.status)) {
+                summary.converted++;
+            } else {
+                summary.failed++;
+            }
+            summary.files.add(result);
+        }
+
+        summary.seconds = (System.nanoTime() - start) / 1e9;
+        logger.info("Batch done: {} converted, {} failed", summary.converted, summary.failed);
+        return summary;
+    }
+
+    private Result convert(File input) {
+        Result result = new Result();
+        result.input = input.getPath();
+        File outputDir = getOutputDir(input);
+        result.output = new File(outputDir, "maindb").getPath();
+        result.metrics = ConversionMetrics.getReportFile(new File(result.output)).getPath();
+
+        long start = System.nanoTime();
+        DBConverter dbConverter = new DBConverter();
+        dbConverter.setOutputDirectory(outputDir);
+        dbConverter.setStreaming(mStreaming);
+        dbConverter.setMemoryMapped(mMemoryMapped);
+        dbConverter.setIncremental(mIncremental);
+        dbConverter.setCompressObjects(mCompressObjects);
+        dbConverter.setDedupSpectra(mDedupSpectra);
+        dbConverter.setMetricsJmx(mMetricsJmx);
+        if (mSpillMB > 0) {
+            dbConverter.setSpillThreshold(mSpillMB * 1024L * 1024L);
+        }
+        dbConverter.setDecoderThreads(mDecoderThreads);
+        dbConverter.setDBCacheSize(mDBCacheSize);
+        dbConverter.setWriteBatch(mBatchObjects, mBatchBytes);
+
+        try {
+            dbConverter.doDBConvert(input);
+            result.status = "ok";
+            result.summary = dbConverter.mSummary;
+        } catch (Throwable e) {
+            logger.error("DB Convert Failed: " + input, e);
+            result.status = "failed";
+            result.error = String.valueOf(e);
+        }
+        result.seconds = (System.nanoTime() - start) / 1e9;
+        return result;
+    }
+}
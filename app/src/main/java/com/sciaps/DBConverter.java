@@ -1,19 +1,42 @@
 package com.sciaps;
 
 import com.devsmart.microdb.DBBuilder;
+import com.devsmart.microdb.DBObject;
 import com.devsmart.microdb.MicroDB;
 import com.devsmart.ubjson.UBObject;
 import com.devsmart.ubjson.UBValueFactory;
-import com.google.common.collect.Iterables;
+import com.google.common.base.Predicate;
+import com.google.common.io.CountingInputStream;
+import com.sciaps.Utils.BatchedDBWriter;
+import com.sciaps.Utils.Cancellation;
+import com.sciaps.Utils.ConversionJournal;
+import com.sciaps.Utils.ConversionMetrics;
+import com.sciaps.Utils.ConversionProgress;
 import com.sciaps.Utils.DBObjectConverter;
+import com.sciaps.Utils.DBObjectInventory;
+import com.sciaps.Utils.SpectraDecoder;
+import com.sciaps.Utils.SpectrumDedup;
 import com.sciaps.data.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.swing.*;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.InputStream;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.zip.ZipInputStream;
 
 /**
@@ -26,8 +49,32 @@ public class DBConverter {
     }
 
     static Logger logger = LoggerFactory.getLogger(DBConverter.class);
+    public static final int DEFAULT_DB_CACHE_SIZE = 128;
     public String mSummary;
     private DBConverterStatusInterface mCallback;
+    private File mOutputDir = new File(".");
+    private boolean mStreaming = false;
+    private boolean mMemoryMapped = false;
+    private int mDecoderThreads = Runtime.getRuntime().availableProcessors();
+    private int mLiveInstanceCacheSize = LIBZDB.DEFAULT_LIVE_INSTANCE_CACHE_SIZE;
+    private int mDBCacheSize = DEFAULT_DB_CACHE_SIZE;
+    private int mWriteBatchObjects = BatchedDBWriter.DEFAULT_BATCH_OBJECTS;
+    private long mWriteBatchBytes = BatchedDBWriter.DEFAULT_BATCH_BYTES;
+    private boolean mIncremental = false;
+    private boolean mCompressObjects = false;
+    private long mSpillThreshold = Long.MAX_VALUE;
+    private boolean mDedupSpectra = false;
+    private boolean mMetricsJmx = false;
+    private ConversionMetrics mMetrics;
+    private final ConversionProgress mProgress = new ConversionProgress();
+    private final Cancellation mCancellation = new Cancellation();
+    private boolean mRollbackOnCancel = false;
+
+    // open while converting, closed by abort() when the conversion does not complete
+    private SDBFile mOpenFile;
+    private BatchedDBWriter mOpenWriter;
+    private ConversionJournal mOpenJournal;
+    private boolean mCreatedDB;
 
     public DBConverter(DBConverterStatusInterface callback) {
         mCallback = callback;
@@ -37,73 +84,390 @@ public class DBConverter {
         mCallback = null;
     }
 
-    private void notifyCallback(String msg) {
-
+    /**
+     * Start a new stage of the progress. The callback is only told about stages, the items of a
+     * stage are counted in {@link #getProgress()}.
+     */
+    private void notifyCallback(String msg, long total, long done) {
+        mCancellation.check();
+        mProgress.begin(msg, total, done);
         if (mCallback != null) {
             mCallback.processingState(msg);
         }
     }
 
+    private void notifyCallback(String msg) {
+        notifyCallback(msg, ConversionProgress.UNKNOWN, 0);
+    }
+
     public void setCallback(DBConverterStatusInterface callback) {
         mCallback = callback;
     }
 
+    /**
+     * A conversion of dbFile to run on a thread of the caller's choice. Cancelling the task stops
+     * the conversion at the next object (or shot of a test) and waits for nothing; {@link
+     * ConversionTask#get()} returns or throws once the conversion has actually stopped and
+     * released its files. The result is the summary.
+     */
+    public ConversionTask newTask(final File dbFile) {
+        return new ConversionTask(new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                doDBConvert(dbFile);
+                return mSummary;
+            }
+        });
+    }
+
+    public class ConversionTask implements RunnableFuture<String> {
+
+        private final FutureTask<String> mTask;
+
+        ConversionTask(Callable<String> callable) {
+            mTask = new FutureTask<String>(callable);
+        }
+
+        @Override
+        public void run() {
+            mTask.run();
+        }
+
+        /**
+         * Request the conversion to stop. The converting thread is not interrupted.
+         */
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            if (mTask.isDone()) {
+                return false;
+            }
+            DBConverter.this.cancel();
+            return true;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return mCancellation.isCancelled();
+        }
+
+        @Override
+        public boolean isDone() {
+            return mTask.isDone();
+        }
+
+        @Override
+        public String get() throws InterruptedException, ExecutionException {
+            try {
+                return mTask.get();
+            } catch (ExecutionException e) {
+                throw unwrap(e);
+            }
+        }
+
+        @Override
+        public String get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            try {
+                return mTask.get(timeout, unit);
+            } catch (ExecutionException e) {
+                throw unwrap(e);
+            }
+        }
+
+        private ExecutionException unwrap(ExecutionException e) {
+            if (e.getCause() instanceof CancellationException) {
+                throw (CancellationException) e.getCause();
+            }
+            return e;
+        }
+    }
+
+    /**
+     * Stop the running conversion at the next checkpoint. doDBConvert then throws a
+     * CancellationException. A cancelled DBConverter stays cancelled.
+     */
+    public void cancel() {
+        logger.info("Conversion cancel requested");
+        mCancellation.cancel();
+    }
+
+    /**
+     * What a cancelled conversion leaves behind. By default the target database is closed with
+     * every completed object committed to maindb.journal, and converting the same file again
+     * resumes from there. With rollback the output files are deleted instead, unless the run was
+     * updating a database that existed before (resume or incremental). The streaming mode keeps
+     * no journal and always rolls back.
+     */
+    public void setRollbackOnCancel(boolean rollback) {
+        mRollbackOnCancel = rollback;
+    }
+
+    /**
+     * Progress of the running conversion, meant to be polled from another thread.
+     */
+    public ConversionProgress getProgress() {
+        return mProgress;
+    }
+
+    /**
+     * Directory the converted database (maindb, maindb.p, maindb.t) is written to.
+     */
+    public void setOutputDirectory(File outputDir) {
+        mOutputDir = outputDir;
+    }
+
+    /**
+     * When enabled, dbobj entries are converted while the archive is being read instead of
+     * loading the whole archive into memory first. Output objects are inserted in archive order
+     * rather than grouped by type.
+     */
+    public void setStreaming(boolean streaming) {
+        mStreaming = streaming;
+    }
+
+    /**
+     * When enabled, the .sdb file is memory mapped and entries are read through the zip central
+     * directory when needed, instead of copying all spectrum files to a temp file up front.
+     */
+    public void setMemoryMapped(boolean memoryMapped) {
+        mMemoryMapped = memoryMapped;
+    }
+
+    /**
+     * Number of threads used to load the archive and to decode test spectra. Database inserts
+     * always happen on the converting thread in test order, so the output does not depend on
+     * this value.
+     */
+    public void setDecoderThreads(int threads) {
+        mDecoderThreads = threads;
+    }
+
+    /**
+     * Maximum number of deserialized source objects kept in memory between references.
+     */
+    public void setLiveInstanceCacheSize(int size) {
+        mLiveInstanceCacheSize = size;
+    }
+
+    /**
+     * Object cache size of the target MicroDB.
+     */
+    public void setDBCacheSize(int size) {
+        mDBCacheSize = size;
+    }
+
+    /**
+     * The target database is flushed whenever this many objects or (estimated) bytes have been
+     * written since the last flush.
+     */
+    public void setWriteBatch(int objects, long bytes) {
+        mWriteBatchObjects = objects;
+        mWriteBatchBytes = bytes;
+    }
+
+    /**
+     * When enabled and the output directory holds a database converted earlier (with its
+     * maindb.inventory), the database is kept and only source objects that are new or whose
+     * document changed since are converted. Objects removed from the source are kept. The
+     * streaming mode always converts everything.
+     */
+    public void setIncremental(boolean incremental) {
+        mIncremental = incremental;
+    }
+
+    /**
+     * When enabled, the JSON documents of the object catalog are kept deflated in memory and
+     * inflated whenever an object is loaded. Trades CPU for heap on very large archives. Has no
+     * effect in streaming mode.
+     */
+    public void setCompressObjects(boolean compress) {
+        mCompressObjects = compress;
+    }
+
+    /**
+     * Spill the loaded dbobj entries to sorted temporary files once they take more than about
+     * this many bytes of heap, for archives whose objects do not fit in memory. Objects are then
+     * read back from disk when they are converted. Only applies when the archive is loaded (not
+     * memory mapped or streamed). Unlimited by default.
+     */
+    public void setSpillThreshold(long bytes) {
+        mSpillThreshold = bytes;
+    }
+
+    /**
+     * Decode and write spectrum files with identical contents once, so the acquisitions of all
+     * copies share the same SpectraData. In incremental mode the SpectraData replaced by a
+     * changed test are then kept, since other acquisitions may share them.
+     */
+    public void setDedupSpectra(boolean dedup) {
+        mDedupSpectra = dedup;
+    }
+
+    /**
+     * Publish the metrics of a running conversion over JMX. The metrics are always written to
+     * maindb.metrics.json in the output directory when the conversion ends.
+     */
+    public void setMetricsJmx(boolean jmx) {
+        mMetricsJmx = jmx;
+    }
+
+    /**
+     * Metrics of the current or last conversion.
+     */
+    public ConversionMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * Collection count and time of all garbage collectors so far.
+     */
+    private static long[] getGCTotals() {
+        long[] retval = new long[2];
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            retval[0] += Math.max(gc.getCollectionCount(), 0);
+            retval[1] += Math.max(gc.getCollectionTime(), 0);
+        }
+        return retval;
+    }
+
+    private MicroDB createDB(File dbfile) throws IOException {
+        return DBBuilder.builder().cacheSize(mDBCacheSize).build(dbfile);
+    }
+
     public void doDBConvert(File dbFile) throws Exception {
+        mMetrics = new ConversionMetrics(dbFile.getPath());
+        if (mMetricsJmx) {
+            mMetrics.register(dbFile.getPath());
+        }
+        long[] gcBefore = getGCTotals();
+        long inflatedBefore = InflaterPool.getBytesOut();
+        boolean completed = false;
+        try {
+            convert(dbFile);
+            completed = true;
+        } finally {
+            if (!completed) {
+                abort();
+            }
+            mOpenFile = null;
+            mOpenWriter = null;
+            mOpenJournal = null;
+
+            long[] gc = getGCTotals();
+            mMetrics.set("gc.collections", gc[0] - gcBefore[0]);
+            mMetrics.set("gc.ms", gc[1] - gcBefore[1]);
+            mMetrics.set("bytes.inflated", InflaterPool.getBytesOut() - inflatedBefore);
+            if (!completed) {
+                mMetrics.set(mCancellation.isCancelled() ? "cancelled" : "failed", 1);
+            }
+            mMetrics.finish();
+            mMetrics.unregister();
+            try {
+                mMetrics.writeReport(ConversionMetrics.getReportFile(new File(mOutputDir, "maindb")));
+            } catch (IOException e) {
+                logger.warn("Cannot write conversion metrics", e);
+            }
+        }
+    }
+
+    private void convert(File dbFile) throws Exception {
         mSummary = "";
+        mMetrics.beginPhase("prepare");
 
         logger.info(dbFile.getParent());
         logger.info("DB to convert: " + dbFile.getCanonicalPath());
 
-        String defaultDBFileName = MainFrame.mFilePath + File.separator + "maindb";
-        try {
-            File dbfile = new File(defaultDBFileName);
-            if (dbfile.exists()) {
-                dbfile.delete();
-                logger.info("deleted existing: " + defaultDBFileName);
-            }
+        if (!mOutputDir.isDirectory() && !mOutputDir.mkdirs()) {
+            throw new IOException("Cannot create output directory " + mOutputDir);
+        }
 
-            File progressFile = new File(defaultDBFileName + ".p");
-            if (progressFile.exists()) {
-                progressFile.delete();
-                logger.info("deleted existing: " + defaultDBFileName + ".p");
-            }
+        String defaultDBFileName = mOutputDir.getPath() + File.separator + "maindb";
+        File journalFile = ConversionJournal.getFile(new File(defaultDBFileName));
+        File inventoryFile = DBObjectInventory.getSourceRecordFile(new File(defaultDBFileName));
+        DBObjectConverter dbObjectConverter = new DBObjectConverter();
+        dbObjectConverter.setCancellation(mCancellation);
+        dbObjectConverter.setTrackInserted(true);
+        final DBObjectInventory inventory = dbObjectConverter.getDBObjectInventory();
 
-            File transactionFile = new File(defaultDBFileName + ".t");
-            if (transactionFile.exists()) {
-                transactionFile.delete();
-                logger.info("deleted existing: " + defaultDBFileName + ".t");
+        // an interrupted conversion of the same file is resumed instead of started over
+        ConversionJournal journal = null;
+        ConversionJournal abandoned = null;
+        boolean keepDB = false;
+        if (!mStreaming && new File(defaultDBFileName).exists()) {
+            journal = ConversionJournal.resume(journalFile, dbFile);
+            mOpenJournal = journal;
+            boolean incremental = mIncremental && inventoryFile.isFile();
+
+            if (journal != null || incremental) {
+                keepDB = true;
+                if (inventoryFile.isFile()) {
+                    inventory.loadSourceRecords(inventoryFile);
+                }
+                if (journal == null && journalFile.isFile()) {
+                    // an incremental conversion of another file that did not finish
+                    abandoned = ConversionJournal.read(journalFile);
+                }
             }
-        } catch (Exception e) {
-            JOptionPane.showMessageDialog(null, "Failed to delete existing " + defaultDBFileName);
-            logger.error("Error deleting existing database.");
+            if (incremental) {
+                logger.info("Incremental conversion into existing " + defaultDBFileName);
+            }
+        }
+        if (mIncremental && !keepDB) {
+            logger.info("No converted database with an inventory in {}, converting everything", mOutputDir);
+        }
+
+        mCreatedDB = !keepDB;
+        if (!keepDB) {
+            deleteOutput(defaultDBFileName);
+        }
+
+        if (mStreaming) {
+            doStreamingDBConvert(dbFile, defaultDBFileName);
             return;
         }
 
         notifyCallback("Loading DB Objects...");
+        mMetrics.beginPhase("load");
+        long[] gcBefore = getGCTotals();
 
-        InputStream theFile = new FileInputStream(dbFile.getAbsoluteFile());
-        ZipInputStream zipInputStream = new ZipInputStream(theFile);
-
-        SDBFile sdbFile = new SDBFile();
-        sdbFile.load(zipInputStream);
+        SDBFile sdbFile = openArchive(dbFile);
 
-        LIBZDB libzdb = new LIBZDB();
+        final LIBZDB libzdb = new LIBZDB();
+        libzdb.setLiveInstanceCacheSize(mLiveInstanceCacheSize);
         libzdb.load(sdbFile);
+        if (mDedupSpectra) {
+            dbObjectConverter.setSpectrumDedup(new SpectrumDedup(libzdb));
+        }
 
         File dbfile = new File(defaultDBFileName);
-        MicroDB db = DBBuilder.builder().cacheSize(128).build(dbfile);
-        DBObjectConverter dbObjectConverter = new DBObjectConverter();
+        MicroDB db = createDB(dbfile);
+        BatchedDBWriter writer = new BatchedDBWriter(db, mWriteBatchObjects, mWriteBatchBytes);
+        mOpenWriter = writer;
+        writer.setMetrics(mMetrics);
+        mMetrics.set("bytes.catalog", libzdb.getCatalogBytes());
+
+        if (abandoned != null) {
+            abandoned.copyTo(inventory);
+            deleteObjects(db, abandoned.getUncommitted());
+            inventory.saveSourceRecords(inventoryFile);
+        }
+        if (journal != null) {
+            // objects of the batch that was being written when the last run stopped
+            deleteObjects(db, journal.getUncommitted());
+        } else {
+            journal = ConversionJournal.create(journalFile, dbFile);
+            mOpenJournal = journal;
+        }
+        writer.setJournal(journal);
 
         float dbVersion = libzdb.getDatabaseVersion();
         logger.info("Converting DB Version: " + dbVersion);
 
-        // First thing first, insert an instrument object to state what type of database. In this case, it is LIBZ
-        Instrument instrument = db.insert(Instrument.class);
-        instrument.setSerialNum("UNKNOWN");
-        instrument.setModel("LIBZ");
-        instrument.setAnalyzerType(Instrument.INSTRUMENT_TYPE_LIBZ);
-        UBObject acquisitionParams = UBValueFactory.createObject();
-        instrument.setAcquisitionParams(acquisitionParams);
+        if (!journal.isCommitted(ConversionJournal.TYPE_INSTRUMENT, ConversionJournal.TYPE_INSTRUMENT)
+                && inventory.getSourceRecord(ConversionJournal.TYPE_INSTRUMENT, ConversionJournal.TYPE_INSTRUMENT) == null) {
+            insertInstrument(writer);
+        }
+
+        ConversionState state = new ConversionState(libzdb, db, writer, journal, inventory, dbObjectConverter);
 
         // Order of db object reading
         // 1. Standards
@@ -111,102 +475,593 @@ public class DBConverter {
         // 3. Models
         // 4. Fingerprints
         // 5. Grade Library
+        convertStandards(state);
+        convertTests(state);
+        convertModels(state, dbVersion);
 
+        // Because Template has a dependency on the type of Analyzer it is created from. It is not a good idea
+        // to convert them, to prevent the template is used in a wrong type of analyzer
+        //
+        //
+        //notifyCallback("Reading Fingerprints...");
+        //logger.info("Reading Fingerprints");
+        //Iterable<OrgFingerprintLibraryTemplate> fingerprints = libzdb.getAllFingerprints();
+        //
+        //notifyCallback("Processing Fingerprints...");
+        //logger.info("Processing Fingerprints");
+        //for (OrgFingerprintLibraryTemplate orgFingerprintLibraryTemplate : fingerprints) {
+        //   logger.info("    FP: " + orgFingerprintLibraryTemplate.name);
+        //    FingerprintLibTemplate dbFingerprintLibTemplate = db.insert(FingerprintLibTemplate.class);
+        //    dbObjectConverter.convertFingerprintToDBFingerprint(orgFingerprintLibraryTemplate, dbFingerprintLibTemplate);
+        //}
+
+        logger.info("Live instance cache: " + libzdb.getLiveInstanceCache());
+        logger.info(String.format("Object catalog: %.1f MB of JSON", libzdb.getCatalogBytes() / 1e6));
+        logger.info(String.format("Object inventory: %.1f MB off-heap", inventory.getMappingBytes() / 1e6));
+        logger.info("Inflater pool: " + InflaterPool.getStatistics());
+        long[] gc = getGCTotals();
+        logger.info(String.format("GC: %d collections, %d ms", gc[0] - gcBefore[0], gc[1] - gcBefore[1]));
+        mMetrics.set("objects.parsed", libzdb.getObjectsParsed());
+        mMetrics.set("parse.ms", libzdb.getParseNanos() / 1000000);
+        mMetrics.set("objects.unchanged", state.unchanged);
+        mMetrics.set("tests.failed", state.failedTests);
+        mMetrics.beginPhase("close");
+        writer.flush();
+        verifyOutput(db, journal);
+        closeDB(writer, dbfile);
+        mOpenWriter = null;
+        sdbFile.close();
+
+        // the output must contain every source object exactly once, however many runs it took
+        Set<String> standardIds = libzdb.getAllStandards().getIds();
+        Set<String> testIds = libzdb.getAllTests().getIds();
+        Set<String> modelIds = libzdb.getAllModels().getIds();
+        journal.verify(ConversionJournal.TYPE_STANDARD, standardIds);
+        journal.verify(ConversionJournal.TYPE_TEST, testIds);
+        journal.verify(ConversionJournal.TYPE_MODEL, modelIds);
+        journal.copyTo(inventory);
+        inventory.verifySourceRecords(ConversionJournal.TYPE_STANDARD, standardIds);
+        inventory.verifySourceRecords(ConversionJournal.TYPE_TEST, testIds);
+        inventory.verifySourceRecords(ConversionJournal.TYPE_MODEL, modelIds);
+        inventory.saveSourceRecords(inventoryFile);
+        journal.delete();
+
+        mSummary = String.format("Models: %d  Standards: %d   Tests: %d/%d",
+                state.totalModels, state.totalStandards, state.totalTests - state.failedTests, state.totalTests);
+        if (state.unchanged > 0) {
+            mSummary += String.format("   Unchanged: %d", state.unchanged);
+        }
+    }
+
+    private SDBFile openArchive(File dbFile) throws IOException {
+        SDBFile retval;
+        if (mMemoryMapped) {
+            MappedSDBFile mappedFile = new MappedSDBFile();
+            mappedFile.setCompressObjects(mCompressObjects);
+            mappedFile.open(dbFile.getAbsoluteFile());
+            retval = mappedFile;
+            mOpenFile = retval;
+        } else {
+            retval = new SDBFile();
+            mOpenFile = retval;
+            retval.setCompressObjects(mCompressObjects);
+            retval.setSpillThreshold(mSpillThreshold);
+            retval.load(dbFile.getAbsoluteFile(), mDecoderThreads);
+            mMetrics.set("bytes.read.archive", dbFile.length());
+        }
+        return retval;
+    }
+
+    /**
+     * What the phases of one conversion share, and what they counted.
+     */
+    private static class ConversionState {
+        final LIBZDB libzdb;
+        final MicroDB db;
+        final BatchedDBWriter writer;
+        final ConversionJournal journal;
+        final DBObjectInventory inventory;
+        final DBObjectConverter converter;
+        int totalStandards;
+        int totalTests;
+        int failedTests;
+        int totalModels;
+        int unchanged;
+
+        ConversionState(LIBZDB libzdb, MicroDB db, BatchedDBWriter writer, ConversionJournal journal,
+                        DBObjectInventory inventory, DBObjectConverter converter) {
+            this.libzdb = libzdb;
+            this.db = db;
+            this.writer = writer;
+            this.journal = journal;
+            this.inventory = inventory;
+            this.converter = converter;
+        }
+    }
+
+    private void convertStandards(ConversionState state) throws IOException {
         notifyCallback("Reading Standards...");
+        mMetrics.beginPhase("standards");
         logger.info("Reading Standards");
-        Iterable<OrgStandard> standards = libzdb.getAllStandards();
+        LIBZDB.ObjectIterable<OrgStandard> standards = state.libzdb.getAllStandards();
 
-        notifyCallback("Processing Standards...");
+        state.totalStandards = standards.count();
+        notifyCallback("Processing Standards...", state.totalStandards, 0);
         logger.info("Processing Standards");
-        int totalStandards = Iterables.size(standards);
-        int cnt = 0;
         for (OrgStandard orgStandard : standards) {
+            mCancellation.check();
             logger.info("   StanardName: " + orgStandard.name);
-            Standard dbStandard = db.insert(Standard.class);
-            dbObjectConverter.convertStandardToDBStandard(orgStandard, dbStandard);
-            notifyCallback("Processing Standards..." + ++cnt + "/" + totalStandards);
+            long start = System.nanoTime();
+            String hash = DBObjectInventory.contentHash(state.libzdb.getObjectData(orgStandard.mId));
+            UUID converted = getConvertedTarget(state.journal, state.inventory, ConversionJournal.TYPE_STANDARD, orgStandard.mId, hash);
+            if (converted != null) {
+                Standard dbStandard = state.db.get(converted);
+                state.inventory.addStandardToDBStandardingMapping(orgStandard, dbStandard);
+                state.unchanged++;
+            } else {
+                Standard dbStandard = getChangedTarget(state.db, state.inventory, ConversionJournal.TYPE_STANDARD, orgStandard.mId);
+                boolean inserted = dbStandard == null;
+                if (inserted) {
+                    dbStandard = state.writer.insert(Standard.class);
+                } else {
+                    state.writer.added(1, 0);
+                }
+                state.writer.record(ConversionJournal.TYPE_STANDARD, orgStandard.mId, dbStandard, hash, inserted);
+                state.converter.convertStandardToDBStandard(orgStandard, dbStandard);
+                state.writer.recordParts(dbStandard, state.converter.takeInserted());
+                state.writer.endUnit();
+                mMetrics.time("convert.standard", start);
+                mMetrics.count("objects.standard", 1);
+            }
+            mProgress.advance();
         }
+    }
 
+    private void convertTests(final ConversionState state) throws IOException {
         notifyCallback("Reading Tests...");
+        mMetrics.beginPhase("tests");
         logger.info("Reading Tests");
-        Iterable<OrgLIBZTest> tests = libzdb.getAllTests();
+        // the standard of a test must stay loaded until the test is written, not only until
+        // the decoder reads the next test
+        LIBZDB.ObjectIterable<OrgLIBZTest> tests = state.libzdb.getAllTests().holdPins();
 
-        notifyCallback("Processing Tests...");
         logger.info("Processing Tests");
-        int totalTests = Iterables.size(tests);
-        int totalTestFailed = 0;
-        cnt = 0;
-        for (OrgLIBZTest test : tests) {
-            logger.info("    TestID: " + test.mId);
-            Acquisition acquisition = db.insert(Acquisition.class);
+        state.totalTests = tests.count();
+        notifyCallback("Processing Tests...", state.totalTests, 0);
+        long expectedSpectrumFiles = 0;
+        long decodedBefore = state.libzdb.getSpectrumFilesDecoded();
+
+        // Each document is hashed once, here, before the decoder starts reading ahead. The hashes
+        // of the tests to convert wait until the loop writes them, the filter only looks them up.
+        final HashMap<String, String> hashes = new HashMap<String, String>();
+        int skipped = 0;
+        for (String id : tests.getIds()) {
+            String hash = DBObjectInventory.contentHash(state.libzdb.getObjectData(id));
+            if (getConvertedTarget(state.journal, state.inventory, ConversionJournal.TYPE_TEST, id, hash) != null) {
+                skipped++;
+                mProgress.advance();
+            } else {
+                hashes.put(id, hash);
+            }
+        }
+        // the loop removes hashes while the decoder filters, so the filter gets its own copy
+        final Set<String> toConvert = new HashSet<String>(hashes.keySet());
+        tests.filter(new Predicate<String>() {
+            @Override
+            public boolean apply(String id) {
+                return toConvert.contains(id);
+            }
+        });
+        SpectraDecoder spectraDecoder = new SpectraDecoder(state.converter, state.libzdb, mDecoderThreads);
+        spectraDecoder.setMetrics(mMetrics);
+        try {
+            for (DBObjectConverter.DecodedSpectra decoded : spectraDecoder.decode(tests)) {
+                if (mCancellation.isCancelled()) {
+                    decoded.release();
+                    mCancellation.check();
+                }
+                logger.info("    TestID: " + decoded.test.mId);
+                long start = System.nanoTime();
+                int spectraCount = decoded.getSpectraCount();
+                long spectraBytes = decoded.getBytes();
+                expectedSpectrumFiles += decoded.getSpectrumFileCount();
+                String hash = hashes.remove(decoded.test.mId);
+                Acquisition acquisition = getChangedTarget(state.db, state.inventory, ConversionJournal.TYPE_TEST, decoded.test.mId);
+                SpectraData[] previousSpectra = null;
+                boolean inserted = acquisition == null;
+                if (inserted) {
+                    acquisition = state.writer.insert(Acquisition.class);
+                } else {
+                    previousSpectra = acquisition.getSpectraData();
+                    state.writer.added(1, 0);
+                }
+                state.writer.record(ConversionJournal.TYPE_TEST, decoded.test.mId, acquisition, hash, inserted);
 
-            if (dbObjectConverter.convertLIBZTestToAcquisition(test, acquisition, libzdb) == false) {
-                totalTestFailed++;
+                if (state.converter.writeAcquisition(decoded, acquisition) == false) {
+                    state.failedTests++;
+                }
+                state.writer.recordParts(acquisition, state.converter.takeInserted());
+                if (previousSpectra != null && !mDedupSpectra) {
+                    for (SpectraData spectraData : previousSpectra) {
+                        if (spectraData != null) {
+                            state.db.delete(spectraData);
+                        }
+                    }
+                }
+                state.writer.added(spectraCount, spectraBytes);
+                state.writer.endUnit();
+                mMetrics.time("write.test", start);
+                mMetrics.count("objects.test", 1);
+                mMetrics.record("spectra.bytes.per.test", spectraBytes);
+                mProgress.advance();
             }
-            notifyCallback("Processing Tests..." + ++cnt + "/" + totalTests);
+        } finally {
+            spectraDecoder.shutdown();
         }
+        state.unchanged += skipped;
 
+        long decodedSpectrumFiles = state.libzdb.getSpectrumFilesDecoded() - decodedBefore;
+        logger.info("Spectrum files decoded: {} of {}", decodedSpectrumFiles, expectedSpectrumFiles);
+        mMetrics.set("spectra.files.decoded", decodedSpectrumFiles);
+        mMetrics.set("spectra.files.expected", expectedSpectrumFiles);
+        if (decodedSpectrumFiles > expectedSpectrumFiles) {
+            logger.warn("Spectrum files were decoded more than once");
+        }
+        recordSpectrumDedup(state.converter.getSpectrumDedup());
+    }
 
+    private void convertModels(ConversionState state, float dbVersion) throws IOException {
         // dbVersion == -1 is older DB(no multicurves)
-        int totalModels = 0;
-        cnt = 0;
+        mMetrics.beginPhase("models");
         if (dbVersion < 0) {
             notifyCallback("Reading Models...");
             logger.info("Reading Models");
-            Iterable<OrgModel> models = libzdb.getAllModels();
+            LIBZDB.ObjectIterable<OrgModel> models = state.libzdb.getAllModels();
 
-            totalModels = Iterables.size(models);
-            notifyCallback("Processing Models...");
+            state.totalModels = models.count();
+            notifyCallback("Processing Models...", state.totalModels, 0);
             logger.info("Processing Models");
             for (OrgModel orgModel : models) {
+                mCancellation.check();
                 logger.info("    Models: " + orgModel.name);
-                EmpiricalModel empiricalModel = db.insert(EmpiricalModel.class);
-                dbObjectConverter.convertModelToEmpiricalModel(orgModel, empiricalModel);
+                long start = System.nanoTime();
+                String hash = DBObjectInventory.contentHash(state.libzdb.getObjectData(orgModel.mId));
+                if (getConvertedTarget(state.journal, state.inventory, ConversionJournal.TYPE_MODEL, orgModel.mId, hash) == null) {
+                    EmpiricalModel empiricalModel = getChangedTarget(state.db, state.inventory, ConversionJournal.TYPE_MODEL, orgModel.mId);
+                    boolean inserted = empiricalModel == null;
+                    if (inserted) {
+                        empiricalModel = state.writer.insert(EmpiricalModel.class);
+                    } else {
+                        state.writer.added(1, 0);
+                    }
+                    state.writer.record(ConversionJournal.TYPE_MODEL, orgModel.mId, empiricalModel, hash, inserted);
+                    state.converter.convertModelToEmpiricalModel(orgModel, empiricalModel);
+                    state.writer.recordParts(empiricalModel, state.converter.takeInserted());
+                    state.writer.endUnit();
+                    mMetrics.time("convert.model", start);
+                    mMetrics.count("objects.model", 1);
+                } else {
+                    state.unchanged++;
+                }
 
-                notifyCallback("Processing Models..." + ++cnt + "/" + totalModels);
+                mProgress.advance();
             }
         } else {
             notifyCallback("Reading Models...");
             logger.info("Reading Models");
-            Iterable<OrgModel2> models2 = libzdb.getAllModels2();
+            LIBZDB.ObjectIterable<OrgModel2> models = state.libzdb.getAllModels2();
 
-            totalModels = Iterables.size(models2);
-            notifyCallback("Processing Models...");
+            state.totalModels = models.count();
+            notifyCallback("Processing Models...", state.totalModels, 0);
             logger.info("Processing Models");
-            for (OrgModel2 orgModel2 : models2) {
+            for (OrgModel2 orgModel2 : models) {
+                mCancellation.check();
                 logger.info("    Models: " + orgModel2.name);
-                EmpiricalModel empiricalModel = db.insert(EmpiricalModel.class);
-                dbObjectConverter.convertModel2ToEmpiricalModel(orgModel2, empiricalModel);
+                long start = System.nanoTime();
+                String hash = DBObjectInventory.contentHash(state.libzdb.getObjectData(orgModel2.mId));
+                if (getConvertedTarget(state.journal, state.inventory, ConversionJournal.TYPE_MODEL, orgModel2.mId, hash) == null) {
+                    EmpiricalModel empiricalModel = getChangedTarget(state.db, state.inventory, ConversionJournal.TYPE_MODEL, orgModel2.mId);
+                    boolean inserted = empiricalModel == null;
+                    if (inserted) {
+                        empiricalModel = state.writer.insert(EmpiricalModel.class);
+                    } else {
+                        state.writer.added(1, 0);
+                    }
+                    state.writer.record(ConversionJournal.TYPE_MODEL, orgModel2.mId, empiricalModel, hash, inserted);
+                    state.converter.convertModel2ToEmpiricalModel(orgModel2, empiricalModel);
+                    state.writer.recordParts(empiricalModel, state.converter.takeInserted());
+                    state.writer.endUnit();
+                    mMetrics.time("convert.model", start);
+                    mMetrics.count("objects.model", 1);
+                } else {
+                    state.unchanged++;
+                }
 
-                notifyCallback("Processing Models..." + ++cnt + "/" + totalModels);
+                mProgress.advance();
             }
         }
+    }
 
-        // Because Template has a dependency on the type of Analyzer it is created from. It is not a good idea
-        // to convert them, to prevent the template is used in a wrong type of analyzer
-        //
-        //
-        //notifyCallback("Reading Fingerprints...");
-        //logger.info("Reading Fingerprints");
-        //Iterable<OrgFingerprintLibraryTemplate> fingerprints = libzdb.getAllFingerprints();
-        //
-        //notifyCallback("Processing Fingerprints...");
-        //logger.info("Processing Fingerprints");
-        //for (OrgFingerprintLibraryTemplate orgFingerprintLibraryTemplate : fingerprints) {
-        //   logger.info("    FP: " + orgFingerprintLibraryTemplate.name);
-        //    FingerprintLibTemplate dbFingerprintLibTemplate = db.insert(FingerprintLibTemplate.class);
-        //    dbObjectConverter.convertFingerprintToDBFingerprint(orgFingerprintLibraryTemplate, dbFingerprintLibTemplate);
-        //}
+    /**
+     * Target of a source object that does not need converting in this run: committed by an
+     * interrupted run of the same file, or converted by an earlier run and unchanged since.
+     */
+    private static UUID getConvertedTarget(ConversionJournal journal, DBObjectInventory inventory,
+                                           String type, String sourceId, String hash) {
+        UUID retval = journal.getCommitted(type, sourceId);
+        if (retval == null) {
+            DBObjectInventory.SourceRecord previous = inventory.getSourceRecord(type, sourceId);
+            if (previous != null && previous.hash.equals(hash)) {
+                retval = previous.target;
+            }
+        }
+        return retval;
+    }
 
-        notifyCallback("Writing to database...");
+    /**
+     * Target converted by an earlier run from an older version of the source object, to be
+     * updated in place. Null if the object is new.
+     */
+    private static <T extends DBObject> T getChangedTarget(MicroDB db, DBObjectInventory inventory,
+                                                           String type, String sourceId) {
+        DBObjectInventory.SourceRecord previous = inventory.getSourceRecord(type, sourceId);
+        if (previous == null) {
+            return null;
+        }
+        return db.get(previous.target);
+    }
+
+    /**
+     * Roll back the objects of an uncommitted batch.
+     */
+    private static void deleteObjects(MicroDB db, List<UUID> ids) throws IOException {
+        for (UUID id : ids) {
+            DBObject obj = db.get(id);
+            if (obj != null) {
+                db.delete(obj);
+            }
+        }
         db.flush();
+        for (UUID id : ids) {
+            if (db.get(id) != null) {
+                throw new IOException("Cannot roll back uncommitted object " + id);
+            }
+        }
+        if (!ids.isEmpty()) {
+            logger.info("Rolled back {} objects of an uncommitted batch", ids.size());
+        }
+    }
+
+    /**
+     * Check the objects the journal says this conversion wrote, however many runs it took: every
+     * committed target exists, every SpectraData an acquisition refers to exists, and every part
+     * inserted along with a target exists and, for a test, is referenced by its acquisition. With
+     * the uncommitted batch rolled back this means a resumed conversion holds the same objects as
+     * a clean one.
+     */
+    private static void verifyOutput(final MicroDB db, ConversionJournal journal) throws IOException {
+        int objects = 0;
+        int spectra = 0;
+        for (String type : new String[]{ConversionJournal.TYPE_INSTRUMENT, ConversionJournal.TYPE_STANDARD,
+                ConversionJournal.TYPE_TEST, ConversionJournal.TYPE_MODEL}) {
+            for (UUID target : journal.getCommittedTargets(type)) {
+                DBObject obj = db.get(target);
+                if (obj == null) {
+                    throw new IOException(String.format("Converted %s %s is missing from the output", type, target));
+                }
+                objects++;
+                if (obj instanceof Acquisition && ((Acquisition) obj).getSpectraData() != null) {
+                    for (SpectraData spectraData : ((Acquisition) obj).getSpectraData()) {
+                        if (spectraData == null) {
+                            throw new IOException("Acquisition " + target + " refers to a missing SpectraData");
+                        }
+                        spectra++;
+                    }
+                }
+            }
+        }
+
+        final int[] parts = new int[1];
+        journal.visitCommittedParts(new ConversionJournal.PartsVisitor() {
+            @Override
+            public void visit(UUID target, List<UUID> ids) throws IOException {
+                DBObject obj = db.get(target);
+                HashSet<UUID> referenced = null;
+                if (obj instanceof Acquisition) {
+                    Acquisition acquisition = (Acquisition) obj;
+                    referenced = new HashSet<UUID>();
+                    if (acquisition.getStandard() != null) {
+                        referenced.add(acquisition.getStandard().getId());
+                    }
+                    if (acquisition.getSpectraData() != null) {
+                        for (SpectraData spectraData : acquisition.getSpectraData()) {
+                            referenced.add(spectraData.getId());
+                        }
+                    }
+                }
+                for (UUID id : ids) {
+                    if (referenced != null) {
+                        // the referenced objects were checked with the acquisitions
+                        if (!referenced.contains(id)) {
+                            throw new IOException("Object " + id + " inserted with acquisition " + target + " is not referenced by it");
+                        }
+                    } else if (db.get(id) == null) {
+                        throw new IOException("Object " + id + " inserted with " + target + " is missing from the output");
+                    }
+                }
+                parts[0] += ids.size();
+            }
+        });
+        logger.info("Verified {} converted objects, {} spectra referenced, {} parts inserted", objects, spectra, parts[0]);
+    }
+
+    private void doStreamingDBConvert(File dbFile, String defaultDBFileName) throws Exception {
+        File dbfile = new File(defaultDBFileName);
+        BatchedDBWriter writer = new BatchedDBWriter(createDB(dbfile), mWriteBatchObjects, mWriteBatchBytes);
+        mOpenWriter = writer;
+        writer.setMetrics(mMetrics);
+        insertInstrument(writer);
 
+        notifyCallback("Streaming DB Objects...");
+        mMetrics.beginPhase("stream");
+        logger.info("Streaming conversion");
+
+        StreamingConversion conversion = new StreamingConversion(writer, mCallback, mProgress, mCancellation);
+        conversion.setDedupSpectra(mDedupSpectra);
+        CountingInputStream theFile = new CountingInputStream(new FileInputStream(dbFile.getAbsoluteFile()));
+        ZipInputStream zipInputStream = new ZipInputStream(theFile);
+        try {
+            SDBFile.stream(zipInputStream, conversion);
+        } finally {
+            zipInputStream.close();
+        }
+        conversion.finish();
+        mMetrics.set("bytes.read.archive", theFile.getCount());
+        mMetrics.set("objects.standard", conversion.totalStandards);
+        mMetrics.set("objects.test", conversion.totalTests);
+        mMetrics.set("objects.model", conversion.totalModels);
+        mMetrics.set("tests.failed", conversion.totalTestFailed);
+        recordSpectrumDedup(conversion.getSpectrumDedup());
+        mMetrics.beginPhase("close");
+
+        closeDB(writer, dbfile);
+        mOpenWriter = null;
+
+        mSummary = String.format("Models: %d  Standards: %d   Tests: %d/%d",
+                conversion.totalModels, conversion.totalStandards,
+                conversion.totalTests - conversion.totalTestFailed, conversion.totalTests);
+    }
+
+    private void recordSpectrumDedup(SpectrumDedup dedup) {
+        if (dedup == null) {
+            return;
+        }
+        logger.info("Spectrum dedup: {}", dedup.getStatistics());
+        mMetrics.set("spectra.dedup.files", dedup.getFiles());
+        mMetrics.set("spectra.dedup.copies", dedup.getDuplicateFiles());
+        mMetrics.set("spectra.dedup.reused", dedup.getReusedSpectra());
+        mMetrics.set("spectra.dedup.collisions", dedup.getCollisions());
+        mMetrics.set("bytes.dedup.spectrum.files", dedup.getSavedFileBytes());
+        mMetrics.set("bytes.dedup.samples", dedup.getSavedSampleBytes());
+    }
+
+    /**
+     * Close whatever a conversion that failed or was cancelled left open. A cancelled conversion
+     * commits the objects it completed so it can be resumed, or rolls back (see
+     * {@link #setRollbackOnCancel(boolean)}).
+     */
+    private void abort() {
+        boolean cancelled = mCancellation.isCancelled();
+        boolean rollback = cancelled && mCreatedDB && (mOpenJournal == null || mRollbackOnCancel);
+        String dbFileName = mOutputDir.getPath() + File.separator + "maindb";
+
+        if (mOpenWriter != null) {
+            try {
+                if (cancelled && !rollback) {
+                    mOpenWriter.flush();
+                }
+            } catch (Exception e) {
+                logger.warn("Cannot commit the last batch", e);
+            }
+            try {
+                MicroDB db = mOpenWriter.getDB();
+                db.close();
+                db.shutdown();
+            } catch (Exception e) {
+                logger.warn("Cannot close " + dbFileName, e);
+            }
+        }
+        if (mOpenJournal != null) {
+            try {
+                mOpenJournal.close();
+            } catch (IOException e) {
+                logger.warn("Cannot close the journal", e);
+            }
+        }
+        if (mOpenFile != null) {
+            try {
+                mOpenFile.close();
+            } catch (IOException e) {
+                logger.warn("Cannot close the source", e);
+            }
+        }
+
+        if (rollback) {
+            try {
+                deleteOutput(dbFileName);
+                logger.info("Conversion cancelled, output removed");
+            } catch (IOException e) {
+                logger.error("Cannot remove the output of the cancelled conversion", e);
+            }
+        } else if (cancelled) {
+            logger.info("Conversion cancelled, converting the same file again resumes it");
+        }
+    }
+
+    /**
+     * Delete the target database and the files kept next to it.
+     */
+    private static void deleteOutput(String defaultDBFileName) throws IOException {
+        File journalFile = ConversionJournal.getFile(new File(defaultDBFileName));
+        File inventoryFile = DBObjectInventory.getSourceRecordFile(new File(defaultDBFileName));
+        try {
+            File dbfile = new File(defaultDBFileName);
+            if (dbfile.exists()) {
+                dbfile.delete();
+                logger.info("deleted existing: " + defaultDBFileName);
+            }
+
+            File progressFile = new File(defaultDBFileName + ".p");
+            if (progressFile.exists()) {
+                progressFile.delete();
+                logger.info("deleted existing: " + defaultDBFileName + ".p");
+            }
+
+            File transactionFile = new File(defaultDBFileName + ".t");
+            if (transactionFile.exists()) {
+                transactionFile.delete();
+                logger.info("deleted existing: " + defaultDBFileName + ".t");
+            }
+
+            if (journalFile.exists()) {
+                journalFile.delete();
+                logger.info("deleted existing: " + journalFile.getPath());
+            }
+
+            if (inventoryFile.exists()) {
+                inventoryFile.delete();
+                logger.info("deleted existing: " + inventoryFile.getPath());
+            }
+        } catch (Exception e) {
+            logger.error("Error deleting existing database.");
+            throw new IOException("Failed to delete existing " + defaultDBFileName, e);
+        }
+    }
+
+    // First thing first, insert an instrument object to state what type of database. In this case, it is LIBZ
+    private static void insertInstrument(BatchedDBWriter writer) throws IOException {
+        Instrument instrument = writer.insert(Instrument.class);
+        writer.record(ConversionJournal.TYPE_INSTRUMENT, ConversionJournal.TYPE_INSTRUMENT, instrument, "-", true);
+        instrument.setSerialNum("UNKNOWN");
+        instrument.setModel("LIBZ");
+        instrument.setAnalyzerType(Instrument.INSTRUMENT_TYPE_LIBZ);
+        UBObject acquisitionParams = UBValueFactory.createObject();
+        instrument.setAcquisitionParams(acquisitionParams);
+    }
+
+    private void closeDB(BatchedDBWriter writer, File dbfile) throws Exception {
+        notifyCallback("Writing to database...");
+        writer.flush();
+        logger.info("DB writes: " + writer);
+
+        MicroDB db = writer.getDB();
         db.close();
         db.shutdown();
 
         logger.info("DBFile: " + dbfile.getName());
-        File dbStorageFile = new File(defaultDBFileName + ".p");
+        File dbStorageFile = new File(dbfile.getPath() + ".p");
         long bytes = dbStorageFile.length();
+        mMetrics.set("bytes.written.db", bytes);
 
         int bytesPerMB = 1000000;
         if (bytes >= bytesPerMB) {
@@ -214,8 +1069,5 @@ public class DBConverter {
         } else {
             logger.info("DB Size: " + bytes + " bytes");
         }
-
-        mSummary = String.format("Models: %d  Standards: %d   Tests: %d/%d",
-                totalModels, totalStandards, totalTests - totalTestFailed, totalTests);
     }
 }
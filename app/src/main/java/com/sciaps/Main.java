@@ -21,6 +21,15 @@ public final class Main {
             System.setProperty("loggerFilename", "DBConvertLog");
         }
 
+        if (args.length > 0 && "--batch".equals(args[0])) {
+            BatchConverter.main(args);
+            return;
+        }
+        if (args.length > 0 && "--generate".equals(args[0])) {
+            SDBGenerator.main(args);
+            return;
+        }
+
         final Logger logger = LoggerFactory.getLogger(Main.class);
         logger.info("Application Starting");
 
@@ -43,7 +52,7 @@ public final class Main {
                     mainFrame.setDBFile(args[0]);
                 }
 
-                mainFrame.setSize(700, 200);
+                mainFrame.setSize(700, 240);
                 mainFrame.setLocationRelativeTo(null);
                 mainFrame.setVisible(true);
             }
@@ -2,6 +2,7 @@ package com.sciaps;
 
 import com.devsmart.StringUtils;
 import com.google.common.io.Files;
+import com.sciaps.Utils.ConversionProgress;
 import net.miginfocom.swing.MigLayout;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -17,19 +18,30 @@ import java.awt.event.WindowEvent;
 import java.io.File;
 import java.io.IOException;
 import java.net.URL;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
 
-public final class MainFrame extends javax.swing.JFrame implements DBConverter.DBConverterStatusInterface {
+public final class MainFrame extends javax.swing.JFrame {
 
     static Logger logger = LoggerFactory.getLogger(MainFrame.class);
 
+    // how often the progress of a running conversion is shown
+    private static final int PROGRESS_INTERVAL_MS = 250;
+
     public static String mFilePath = ".";
     private JTextField mDBFileTextField;
     private JButton mFileChooseButton;
     private JButton mConvertButton;
+    private JCheckBox mStreamingCheckBox;
+    private JCheckBox mIncrementalCheckBox;
     private JPanel mProgressPanel;
     private JLabel mStatusLabel;
     private JLabel mResultLabel;
     private JProgressBar mProgressBar;
+    private Timer mProgressTimer;
+    private JButton mCancelButton;
+    private DBConverter.ConversionTask mConversion;
+    private boolean mCloseRequested;
 
     public MainFrame() {
         setTitle("LIBZ DB Conversion");
@@ -47,7 +59,13 @@ public final class MainFrame extends javax.swing.JFrame implements DBConverter.D
 
         setIconImage(getIcon());
 
+        setDefaultCloseOperation(DO_NOTHING_ON_CLOSE);
         this.addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosing(WindowEvent e) {
+                doClose();
+            }
+
             @Override
             public void windowClosed(WindowEvent e) {
                 super.windowClosed(e);
@@ -64,9 +82,18 @@ public final class MainFrame extends javax.swing.JFrame implements DBConverter.D
         mProgressBar = new JProgressBar(0, 0);
         mProgressBar.setIndeterminate(true);
 
+        mCancelButton = new JButton("Cancel");
+        mCancelButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                doCancel();
+            }
+        });
+
         JPanel panel = new JPanel(new MigLayout("fill"));
         panel.add(mStatusLabel, "split");
         panel.add(mProgressBar, "growx, pushx");
+        panel.add(mCancelButton);
 
         return panel;
     }
@@ -92,6 +119,9 @@ public final class MainFrame extends javax.swing.JFrame implements DBConverter.D
             }
         });
 
+        mStreamingCheckBox = new JCheckBox("Low memory (convert while reading)");
+        mIncrementalCheckBox = new JCheckBox("Update existing database (only new and changed objects)");
+
         JButton closeButton = new JButton("Close");
         closeButton.addActionListener(new ActionListener() {
             @Override
@@ -106,6 +136,8 @@ public final class MainFrame extends javax.swing.JFrame implements DBConverter.D
         panel.add(mFileChooseButton, "cell 0 2, pushx, growx");
         panel.add(mConvertButton, "cell 1 2, pushx, growx");
         panel.add(closeButton, "cell 2 2, pushx, growx");
+        panel.add(mStreamingCheckBox, "cell 0 3 3");
+        panel.add(mIncrementalCheckBox, "cell 0 4 3");
 
         return panel;
     }
@@ -156,56 +188,136 @@ public final class MainFrame extends javax.swing.JFrame implements DBConverter.D
             return;
         }
 
+        final boolean streaming = mStreamingCheckBox.isSelected();
+        final DBConverter dbConverter = new DBConverter();
+        dbConverter.setOutputDirectory(new File(mFilePath));
+        dbConverter.setStreaming(streaming);
+        dbConverter.setIncremental(mIncrementalCheckBox.isSelected());
+
+        final DBConverter.ConversionTask conversion = dbConverter.newTask(dbFile);
+        mConversion = conversion;
+        mResultLabel.setVisible(false);
+        mCancelButton.setText("Cancel");
+        mCancelButton.setEnabled(true);
         setDBProcessingInProgree(true);
+        startProgressTimer(dbConverter.getProgress());
 
         Runnable runnable = new Runnable() {
             @Override
             public void run() {
-                mResultLabel.setVisible(false);
                 String resultMsg = "DB Converted Successfully.";
-                final DBConverter dbConverter = new DBConverter(MainFrame.this);
+                Color resultColor;
 
+                conversion.run();
                 try {
-                    dbConverter.doDBConvert(dbFile);
-                    String summary = dbConverter.mSummary;
+                    String summary = conversion.get();
 
                     resultMsg = String.format("Done. %s", summary);
                     logger.info(resultMsg);
 
-                    mResultLabel.setBackground(Color.GREEN);
-                } catch (Exception e) {
+                    resultColor = Color.GREEN;
+                } catch (CancellationException e) {
+                    resultMsg = streaming ? "DB Convert Cancelled."
+                            : "DB Convert Cancelled. Convert the same file again to resume.";
+                    resultColor = Color.YELLOW;
+                } catch (ExecutionException e) {
                     resultMsg = "DB Convert Failed (see log file for detail).";
-                    logger.error("DB Convert Failed: ", e);
-                    mResultLabel.setBackground(Color.RED);
-                } finally {
-                    setDBProcessingInProgree(false);
-
-                    mResultLabel.setText(resultMsg);
-                    mResultLabel.setVisible(true);
+                    logger.error("DB Convert Failed: ", e.getCause());
+                    resultColor = Color.RED;
+                } catch (InterruptedException e) {
+                    resultMsg = "DB Convert Failed (see log file for detail).";
+                    resultColor = Color.RED;
                 }
+
+                final String text = resultMsg;
+                final Color color = resultColor;
+                SwingUtilities.invokeLater(new Runnable() {
+                    @Override
+                    public void run() {
+                        mConversion = null;
+                        if (mCloseRequested) {
+                            System.exit(0);
+                        }
+                        stopProgressTimer();
+                        setDBProcessingInProgree(false);
+
+                        mResultLabel.setBackground(color);
+                        mResultLabel.setText(text);
+                        mResultLabel.setVisible(true);
+                    }
+                });
             }
         };
 
-        Thread thread = new Thread(runnable);
+        Thread thread = new Thread(runnable, "db-convert");
         thread.start();
     }
 
+    /**
+     * Show the progress of the conversion at a fixed rate, however often the converting thread
+     * updates it. The Timer fires on the event dispatch thread.
+     */
+    private void startProgressTimer(final ConversionProgress progress) {
+        stopProgressTimer();
+        mStatusLabel.setText("");
+        mProgressBar.setIndeterminate(true);
+        mProgressTimer = new Timer(PROGRESS_INTERVAL_MS, new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                showProgress(progress.getSnapshot());
+            }
+        });
+        mProgressTimer.setCoalesce(true);
+        mProgressTimer.start();
+    }
+
+    private void stopProgressTimer() {
+        if (mProgressTimer != null) {
+            mProgressTimer.stop();
+            mProgressTimer = null;
+        }
+    }
+
+    private void showProgress(ConversionProgress.Snapshot snapshot) {
+        mStatusLabel.setText(snapshot.toString());
+        double fraction = snapshot.getFraction();
+        if (fraction < 0) {
+            mProgressBar.setIndeterminate(true);
+        } else {
+            mProgressBar.setIndeterminate(false);
+            mProgressBar.setMaximum(1000);
+            mProgressBar.setValue((int) Math.round(fraction * 1000));
+        }
+    }
+
     public void setDBProcessingInProgree(boolean val) {
         mConvertButton.setEnabled(!val);
         mFileChooseButton.setEnabled(!val);
         mProgressPanel.setVisible(val);
     }
 
+    /**
+     * Ask the running conversion to stop. It commits what it has converted so far and closes the
+     * database before the result is shown.
+     */
+    private void doCancel() {
+        if (mConversion != null && mConversion.cancel(false)) {
+            mCancelButton.setText("Cancelling...");
+            mCancelButton.setEnabled(false);
+        }
+    }
+
     private void doClose() {
+        if (mConversion != null && !mConversion.isDone()) {
+            // exit once the conversion has stopped and closed its files
+            mCloseRequested = true;
+            doCancel();
+            return;
+        }
         System.exit(0);
     }
 
     public void setDBFile(String filename) {
         mDBFileTextField.setText(filename);
     }
-
-    @Override
-    public void processingState(String msg) {
-        mStatusLabel.setText(msg);
-    }
 }
\ No newline at end of file
@@ -0,0 +1,490 @@
+package com.sciaps;
+
+import com.google.common.io.CountingOutputStream;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import com.sciaps.common.AtomicElement;
+import com.sciaps.common.objtracker.DBObj;
+import com.sciaps.data.*;
+import org.apache.commons.lang.math.DoubleRange;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Writes synthetic .sdb archives for scale and load testing. The same options and seed always
+ * produce the same entries with the same content (only the zip timestamps differ).
+ *
+ * <pre>
+ * --generate --out FILE.sdb [options]
+ *   --seed N          random seed (default 1)
+ *   --standards N     number of standards (default 20)
+ *   --tests N         number of tests (default 100)
+ *   --size MB         keep adding tests until the archive is this big, instead of --tests
+ *   --shots N         shots per test (default 60)
+ *   --layout L        multishot (shotTable.all), pershot (one file per shot) or mixed (default multishot)
+ *   --models N        number of models (default 5)
+ *   --elements N      elements per model (default 4)
+ *   --curves N        IR curves per element (default 2, always 1 with --schema 1)
+ *   --schema 1|2      1 writes OrgModel without a schemaVersion, 2 writes OrgModel2 (default 2)
+ *   --spectra FILE    .sdb file to take spectrum files from (default $SDB_TEMPLATE)
+ *   --shot-bytes N    size of a filler shot when there is no --spectra file (default 16384)
+ *   --no-spectra      leave the shot tables of the tests empty
+ * </pre>
+ *
+ * The spectrum file formats belong to the common library, so spectra are not synthesized.
+ * Every generated test reuses the multi-shot or per-shot files of the --spectra archive, or of the
+ * .sdb file named by the SDB_TEMPLATE environment variable or the sdb.template system property
+ * (a multi-shot file keeps its own number of shots); if that archive only has one layout, it is
+ * used for every test whatever --layout says. Without one the spectrum files are random bytes of
+ * the right size. The tests still refer to them, so reading and opening spectra is exercised, but
+ * they cannot be decoded and every test fails to convert. With --no-spectra the filler is written
+ * unreferenced and the tests have an empty shot table: such an archive converts without failures
+ * but measures nothing about spectra.
+ */
+public class SDBGenerator {
+
+    static Logger logger = LoggerFactory.getLogger(SDBGenerator.class);
+
+    public static final String LAYOUT_MULTISHOT = "multishot";
+    public static final String LAYOUT_PERSHOT = "pershot";
+    public static final String LAYOUT_MIXED = "mixed";
+
+    private static final String[] BASES = {"Fe", "Ni", "Al", "Cu", "Ti", "Co"};
+    private static final String[] ELEMENTS = {"Cr", "Ni", "Mo", "Mn", "Cu", "Si", "Ti", "V", "Nb", "W", "Co", "Al"};
+    private static final long START_TIME = 1420070400L; // 2015-01-01 UTC
+
+    private File mOutput;
+    private long mSeed = 1;
+    private int mStandards = 20;
+    private int mTests = 100;
+    private long mSizeMB = -1;
+    private int mShots = 60;
+    private String mLayout = LAYOUT_MULTISHOT;
+    private int mModels = 5;
+    private int mElements = 4;
+    private int mCurves = 2;
+    private int mSchema = 2;
+    private File mSpectraFile;
+    private int mShotBytes = 16384;
+    private boolean mSpectra = true;
+
+    private Random mRandom;
+    private final List<byte[]> mMultiShotFiles = new ArrayList<byte[]>();
+    private final List<byte[]> mShotFiles = new ArrayList<byte[]>();
+
+    private ZipOutputStream mZipOut;
+    private CountingOutputStream mCountingOut;
+
+    public static void main(String[] args) {
+        SDBGenerator generator = new SDBGenerator();
+        try {
+            generator.parseArgs(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("usage: --generate --out FILE.sdb [--seed N] [--standards N] [--tests N | --size MB] [--shots N] "
+                    + "[--layout multishot|pershot|mixed] [--models N] [--elements N] [--curves N] [--schema 1|2] "
+                    + "[--spectra FILE.sdb] [--shot-bytes N] [--no-spectra]");
+            System.exit(2);
+            return;
+        }
+
+        try {
+            generator.generate();
+        } catch (IOException e) {
+            logger.error("Cannot generate " + generator.mOutput, e);
+            System.exit(1);
+        }
+    }
+
+    void parseArgs(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if ("--generate".equals(arg)) {
+                continue;
+            } else if ("--out".equals(arg)) {
+                mOutput = new File(value(args, ++i, arg));
+            } else if ("--seed".equals(arg)) {
+                mSeed = Long.parseLong(value(args, ++i, arg));
+            } else if ("--standards".equals(arg)) {
+                mStandards = intValue(args, ++i, arg);
+            } else if ("--tests".equals(arg)) {
+                mTests = intValue(args, ++i, arg);
+            } else if ("--size".equals(arg)) {
+                mSizeMB = intValue(args, ++i, arg);
+            } else if ("--shots".equals(arg)) {
+                mShots = intValue(args, ++i, arg);
+            } else if ("--layout".equals(arg)) {
+                mLayout = value(args, ++i, arg);
+            } else if ("--models".equals(arg)) {
+                mModels = intValue(args, ++i, arg);
+            } else if ("--elements".equals(arg)) {
+                mElements = intValue(args, ++i, arg);
+            } else if ("--curves".equals(arg)) {
+                mCurves = intValue(args, ++i, arg);
+            } else if ("--schema".equals(arg)) {
+                mSchema = intValue(args, ++i, arg);
+            } else if ("--spectra".equals(arg)) {
+                mSpectraFile = new File(value(args, ++i, arg));
+            } else if ("--shot-bytes".equals(arg)) {
+                mShotBytes = intValue(args, ++i, arg);
+            } else if ("--no-spectra".equals(arg)) {
+                mSpectra = false;
+            } else {
+                throw new IllegalArgumentException("unknown option: " + arg);
+            }
+        }
+
+        if (mOutput == null) {
+            throw new IllegalArgumentException("--out is required");
+        }
+        if (!LAYOUT_MULTISHOT.equals(mLayout) && !LAYOUT_PERSHOT.equals(mLayout) && !LAYOUT_MIXED.equals(mLayout)) {
+            throw new IllegalArgumentException("unknown layout: " + mLayout);
+        }
+        if (mSchema != 1 && mSchema != 2) {
+            throw new IllegalArgumentException("--schema must be 1 or 2");
+        }
+        if (mStandards < 1 || mShots < 1 || mShotBytes < 1 || mElements < 1 || mElements > ELEMENTS.length) {
+            throw new IllegalArgumentException("--standards, --shots and --shot-bytes must be positive, --elements 1 to " + ELEMENTS.length);
+        }
+    }
+
+    private static String value(String[] args, int i, String option) {
+        if (i >= args.length) {
+            throw new IllegalArgumentException("missing value for " + option);
+        }
+        return args[i];
+    }
+
+    private static int intValue(String[] args, int i, String option) {
+        try {
+            return Integer.parseInt(value(args, i, option));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("invalid number for " + option + ": " + args[i]);
+        }
+    }
+
+    public void setOutput(File output) {
+        mOutput = output;
+    }
+
+    public void setSeed(long seed) {
+        mSeed = seed;
+    }
+
+    public void setStandards(int standards) {
+        mStandards = standards;
+    }
+
+    public void setTests(int tests) {
+        mTests = tests;
+    }
+
+    public void setShots(int shots) {
+        mShots = shots;
+    }
+
+    public void setLayout(String layout) {
+        mLayout = layout;
+    }
+
+    public void setModels(int models) {
+        mModels = models;
+    }
+
+    public void setSchema(int schema) {
+        mSchema = schema;
+    }
+
+    /**
+     * The archive to take spectrum files from. Defaults to {@link #getTemplate()}.
+     */
+    public void setSpectraFile(File spectraFile) {
+        mSpectraFile = spectraFile;
+    }
+
+    /**
+     * Refer to spectrum files from the shot tables of the tests (the default), or leave the shot
+     * tables empty.
+     */
+    public void setSpectra(boolean spectra) {
+        mSpectra = spectra;
+    }
+
+    /**
+     * The .sdb file named by the SDB_TEMPLATE environment variable or the sdb.template system
+     * property, or null if it is not set or not a file.
+     */
+    public static File getTemplate() {
+        String path = System.getenv("SDB_TEMPLATE");
+        if (path == null) {
+            path = System.getProperty("sdb.template");
+        }
+        if (path == null || !new File(path).isFile()) {
+            return null;
+        }
+        return new File(path);
+    }
+
+    /**
+     * True if the spectrum files of the generated tests can be decoded, false if they are filler.
+     */
+    public boolean hasDecodableSpectra() {
+        return mSpectra && (!mMultiShotFiles.isEmpty() || !mShotFiles.isEmpty());
+    }
+
+    public void generate() throws IOException {
+        mRandom = new Random(mSeed);
+        mMultiShotFiles.clear();
+        mShotFiles.clear();
+        File spectraFile = mSpectraFile != null ? mSpectraFile : getTemplate();
+        if (mSpectra && spectraFile != null) {
+            loadSpectrumFiles(spectraFile);
+        }
+        if (mSpectra && !hasDecodableSpectra()) {
+            logger.warn("No spectrum files to reuse, tests refer to filler that does not decode (use --spectra FILE.sdb or --no-spectra)");
+        }
+
+        mCountingOut = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(mOutput)));
+        mZipOut = new ZipOutputStream(mCountingOut);
+        try {
+            List<OrgStandard> standards = writeStandards();
+            writeModels(standards);
+
+            int tests = 0;
+            long sizeBytes = mSizeMB * 1024 * 1024;
+            while (mSizeMB > 0 ? mCountingOut.getCount() < sizeBytes : tests < mTests) {
+                writeTest(tests++, standards);
+                if (tests % 1000 == 0) {
+                    logger.info("{} tests, {} MB", tests, mCountingOut.getCount() / (1024 * 1024));
+                }
+            }
+
+            logger.info("Generated {}: {} standards, {} models, {} tests", mOutput, standards.size(), mModels, tests);
+        } finally {
+            mZipOut.close();
+        }
+    }
+
+    /**
+     * Collect the spectrum files of an existing archive, split by how its tests refer to them.
+     */
+    private void loadSpectrumFiles(File file) throws IOException {
+        final Set<String> multiShotIds = new HashSet<String>();
+        final Set<String> shotIds = new HashSet<String>();
+        final Map<String, byte[]> spectra = new TreeMap<String, byte[]>();
+
+        ZipInputStream zipIn = new ZipInputStream(new FileInputStream(file));
+        try {
+            SDBFile.stream(zipIn, new SDBFile.EntryHandler() {
+                @Override
+                public void onDBObj(SDBFile.DBEntry entry) throws IOException {
+                    JsonObject obj = entry.getValue().getAsJsonObject();
+                    JsonObject shotTable = obj.getAsJsonObject("shotTable");
+                    if (shotTable == null) {
+                        return;
+                    }
+                    if (shotTable.has("all")) {
+                        multiShotIds.addAll(LIBZDB.getSpectrumIds(shotTable));
+                    } else {
+                        shotIds.addAll(LIBZDB.getSpectrumIds(shotTable));
+                    }
+                }
+
+                @Override
+                public void onSpectrum(String id, byte[] data) throws IOException {
+                    spectra.put(id, data);
+                }
+            });
+        } finally {
+            zipIn.close();
+        }
+
+        for (Map.Entry<String, byte[]> e : spectra.entrySet()) {
+            if (multiShotIds.contains(e.getKey())) {
+                mMultiShotFiles.add(e.getValue());
+            } else if (shotIds.contains(e.getKey())) {
+                mShotFiles.add(e.getValue());
+            }
+        }
+        logger.info("Spectra from {}: {} multi-shot files, {} shot files", file.getName(), mMultiShotFiles.size(), mShotFiles.size());
+    }
+
+    private String nextId() {
+        return new UUID(mRandom.nextLong(), mRandom.nextLong()).toString();
+    }
+
+    private double nextDouble(double min, double max) {
+        return min + mRandom.nextDouble() * (max - min);
+    }
+
+    private void writeObject(String type, DBObj obj, JsonObject extra) throws IOException {
+        JsonObject value = SDBFile.TypeGson.toJsonTree(obj).getAsJsonObject();
+        value.remove("mId");
+        value.addProperty("type", type);
+        if (extra != null) {
+            for (Map.Entry<String, JsonElement> e : extra.entrySet()) {
+                value.add(e.getKey(), e.getValue());
+            }
+        }
+
+        SDBFile.DBEntry entry = new SDBFile.DBEntry(obj.mId);
+        entry.type = type;
+        entry.setValue(value);
+        entry.writeToZip(mZipOut);
+    }
+
+    private void writeSpectrum(String id, byte[] data) throws IOException {
+        mZipOut.putNextEntry(new ZipEntry("spectrum/" + id + ".gz"));
+        mZipOut.write(data);
+        mZipOut.closeEntry();
+    }
+
+    private List<OrgStandard> writeStandards() throws IOException {
+        List<OrgStandard> retval = new ArrayList<OrgStandard>(mStandards);
+        for (int i = 0; i < mStandards; i++) {
+            OrgStandard standard = new OrgStandard();
+            standard.mId = nextId();
+            standard.name = String.format("%s_STD%05d", BASES[i % BASES.length], i);
+
+            // ChemValue is built as json so no constructor of the common library is assumed
+            JsonArray spec = new JsonArray();
+            for (String symbol : ELEMENTS) {
+                JsonObject chemValue = new JsonObject();
+                chemValue.add("element", SDBFile.TypeGson.toJsonTree(AtomicElement.getElementBySymbol(symbol)));
+                chemValue.addProperty("percent", nextDouble(0, 25));
+                chemValue.addProperty("error", nextDouble(0, 0.5));
+                spec.add(chemValue);
+            }
+            JsonObject extra = new JsonObject();
+            extra.add("spec", spec);
+
+            writeObject("standard", standard, extra);
+            retval.add(standard);
+        }
+        return retval;
+    }
+
+    private OrgRegion writeRegion(String symbol) throws IOException {
+        double low = nextDouble(200, 800);
+        OrgRegion region = new OrgRegion();
+        region.mId = nextId();
+        region.wavelengthRange = new DoubleRange(low, low + nextDouble(0.05, 0.5));
+        region.name = String.format("%s %d", symbol, Math.round(low));
+        writeObject("region", region, null);
+        return region;
+    }
+
+    private OrgIRCurve createCurve(String symbol, int index) throws IOException {
+        OrgIRCurve retval = new OrgIRCurve();
+        retval.name = symbol + " " + index;
+        retval.element = AtomicElement.getElementBySymbol(symbol);
+        retval.numerator.add(writeRegion(symbol));
+        retval.denominator.add(writeRegion(BASES[0]));
+        retval.coefficients = new double[]{nextDouble(-0.1, 0.1), nextDouble(0.5, 2), nextDouble(-0.01, 0.01)};
+        retval.r2 = nextDouble(0.9, 1);
+        retval.irRange = new DoubleRange(0, nextDouble(1, 10));
+        return retval;
+    }
+
+    private void writeModels(List<OrgStandard> standards) throws IOException {
+        for (int i = 0; i < mModels; i++) {
+            List<OrgStandard> modelStandards = new LinkedList<OrgStandard>();
+            for (OrgStandard standard : standards) {
+                if (mRandom.nextInt(4) == 0) {
+                    modelStandards.add(standard);
+                }
+            }
+
+            int first = mRandom.nextInt(ELEMENTS.length);
+            if (mSchema == 1) {
+                OrgModel model = new OrgModel();
+                model.mId = nextId();
+                model.name = String.format("Model%04d", i);
+                model.standardList = modelStandards;
+                for (int e = 0; e < mElements; e++) {
+                    String symbol = ELEMENTS[(first + e) % ELEMENTS.length];
+                    model.irs.put(AtomicElement.getElementBySymbol(symbol), createCurve(symbol, 0));
+                }
+                writeObject("model", model, null);
+            } else {
+                OrgModel2 model = new OrgModel2();
+                model.mId = nextId();
+                model.name = String.format("Model%04d", i);
+                model.standardList = modelStandards;
+                for (int e = 0; e < mElements; e++) {
+                    String symbol = ELEMENTS[(first + e) % ELEMENTS.length];
+                    List<OrgIRCurve> curves = new ArrayList<OrgIRCurve>(mCurves);
+                    for (int c = 0; c < mCurves; c++) {
+                        curves.add(createCurve(symbol, c));
+                    }
+                    model.irs.put(AtomicElement.getElementBySymbol(symbol), curves);
+                }
+                JsonObject extra = new JsonObject();
+                extra.addProperty("schemaVersion", 1);
+                writeObject("model", model, extra);
+            }
+        }
+    }
+
+    private byte[] nextSpectrumFile(List<byte[]> pool, int fillerSize) {
+        if (!pool.isEmpty()) {
+            return pool.get(mRandom.nextInt(pool.size()));
+        }
+        byte[] retval = new byte[fillerSize];
+        mRandom.nextBytes(retval);
+        return retval;
+    }
+
+    private void writeTest(int index, List<OrgStandard> standards) throws IOException {
+        OrgLIBZTest test = new OrgLIBZTest();
+        test.mId = nextId();
+        test.unixTime = START_TIME + index * 60L;
+        test.standard = standards.get(mRandom.nextInt(standards.size()));
+        test.displayName = String.format("Test%07d", index);
+        test.config.rasterNumLocations = mShots;
+        test.config.numShotsPerLocation = 1;
+        test.config.numShotsToAvg = 1;
+        test.metadata.put("generator", "seed " + mSeed);
+
+        boolean multiShot = LAYOUT_MULTISHOT.equals(mLayout)
+                || (LAYOUT_MIXED.equals(mLayout) && mRandom.nextBoolean());
+        if (multiShot && mMultiShotFiles.isEmpty() && !mShotFiles.isEmpty()) {
+            multiShot = false;
+        } else if (!multiShot && mShotFiles.isEmpty() && !mMultiShotFiles.isEmpty()) {
+            multiShot = true;
+        }
+
+        JsonObject shotTable = new JsonObject();
+        Map<String, byte[]> spectra = new LinkedHashMap<String, byte[]>();
+        if (multiShot) {
+            String id = nextId();
+            shotTable.addProperty("all", id);
+            spectra.put(id, nextSpectrumFile(mMultiShotFiles, mShots * mShotBytes));
+        } else {
+            for (int i = 0; i < mShots; i++) {
+                String id = nextId();
+                shotTable.add(String.valueOf(i), new JsonPrimitive(id));
+                spectra.put(id, nextSpectrumFile(mShotFiles, mShotBytes));
+            }
+        }
+        if (!mSpectra) {
+            shotTable = new JsonObject();
+        }
+
+        JsonObject extra = new JsonObject();
+        extra.add("shotTable", shotTable);
+        writeObject("test", test, extra);
+
+        for (Map.Entry<String, byte[]> e : spectra.entrySet()) {
+            writeSpectrum(e.getKey(), e.getValue());
+        }
+    }
+}
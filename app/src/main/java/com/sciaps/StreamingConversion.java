@@ -0,0 +1,216 @@
+package com.sciaps;
+
+import com.sciaps.Utils.BatchedDBWriter;
+import com.sciaps.Utils.Cancellation;
+import com.sciaps.Utils.ConversionProgress;
+import com.sciaps.Utils.DBObjectConverter;
+import com.sciaps.Utils.DBObjectInventory;
+import com.sciaps.Utils.SpectrumDedup;
+import com.sciaps.data.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Converts the entries of an .sdb archive as the ZipInputStream reaches them instead of
+ * loading the whole archive first.
+ *
+ * Standards are converted as soon as they are read. A test is converted once its JSON and all
+ * of its spectrum files have been read, after which its JSON is dropped. Spectrum files are
+ * parked in the memory mapped spectrum store of the SDBFile, so heap usage only depends on the
+ * tests that are still waiting for spectra. Standards referenced by a test before they appear in
+ * the archive get an empty target Standard that is filled in when the standard is read. Models
+ * are small and depend on standards and regions, so they are converted after the last entry.
+ */
+class StreamingConversion implements SDBFile.EntryHandler {
+
+    static Logger logger = LoggerFactory.getLogger(StreamingConversion.class);
+
+    private final BatchedDBWriter mWriter;
+    private final SDBFile mSpectrumFile = new SDBFile();
+    private final LIBZDB mLibzdb = new LIBZDB();
+    private final DBObjectConverter mConverter = new DBObjectConverter();
+    private final DBConverter.DBConverterStatusInterface mCallback;
+    private final ConversionProgress mProgress;
+    private final Cancellation mCancellation;
+
+    private final Set<String> mSeenIds = new HashSet<String>();
+    private final Map<String, Integer> mMissingShots = new HashMap<String, Integer>();
+    private final Map<String, List<String>> mTestsWaitingForShot = new HashMap<String, List<String>>();
+
+    int totalStandards = 0;
+    int totalTests = 0;
+    int totalTestFailed = 0;
+    int totalModels = 0;
+
+    StreamingConversion(BatchedDBWriter writer, DBConverter.DBConverterStatusInterface callback,
+                        ConversionProgress progress, Cancellation cancellation) {
+        mWriter = writer;
+        mCallback = callback;
+        mProgress = progress;
+        mCancellation = cancellation;
+        mConverter.setCancellation(cancellation);
+        mLibzdb.attach(mSpectrumFile);
+    }
+
+    /**
+     * Decode and write spectrum files with identical contents once, see {@link SpectrumDedup}.
+     */
+    void setDedupSpectra(boolean dedup) {
+        mConverter.setSpectrumDedup(dedup ? new SpectrumDedup(mLibzdb) : null);
+    }
+
+    SpectrumDedup getSpectrumDedup() {
+        return mConverter.getSpectrumDedup();
+    }
+
+    private void notifyCallback(String msg, long total) {
+        mProgress.begin(msg, total);
+        if (mCallback != null) {
+            mCallback.processingState(msg);
+        }
+    }
+
+    @Override
+    public void onDBObj(SDBFile.DBEntry entry) throws IOException {
+        mCancellation.check();
+        if (!mSeenIds.add(entry.key)) {
+            throw new RuntimeException("db already contains obj with id: " + entry.key);
+        }
+
+        mLibzdb.putObject(entry);
+
+        String type = mLibzdb.getObjectType(entry.key);
+        if ("standard".equals(type)) {
+            convertStandard(entry.key);
+        } else if ("test".equals(type)) {
+            queueTest(entry.key);
+        }
+    }
+
+    @Override
+    public void onSpectrum(String id, byte[] data) throws IOException {
+        mSpectrumFile.putSpectrum(id, data);
+
+        List<String> waiting = mTestsWaitingForShot.remove(id);
+        if (waiting != null) {
+            for (String testId : waiting) {
+                int missing = mMissingShots.get(testId) - 1;
+                if (missing == 0) {
+                    mMissingShots.remove(testId);
+                    convertTest(testId);
+                } else {
+                    mMissingShots.put(testId, missing);
+                }
+            }
+        }
+    }
+
+    private void convertStandard(String id) throws IOException {
+        OrgStandard orgStandard = mLibzdb.get(id, OrgStandard.class);
+        logger.info("   StanardName: " + orgStandard.name);
+
+        // a test read earlier may already have created the target object
+        Standard dbStandard = mConverter.getDBObjectInventory().getDBStandardByStandard(orgStandard);
+        if (dbStandard == null) {
+            dbStandard = mWriter.insert(Standard.class);
+        }
+        mConverter.convertStandardToDBStandard(orgStandard, dbStandard);
+        mWriter.endUnit();
+        totalStandards++;
+        mProgress.advance();
+    }
+
+    private void queueTest(String id) throws IOException {
+        int missing = 0;
+        for (String shotId : mLibzdb.getSpectrumIds(id)) {
+            if (!mSpectrumFile.hasSpectrum(shotId)) {
+                List<String> waiting = mTestsWaitingForShot.get(shotId);
+                if (waiting == null) {
+                    waiting = new ArrayList<String>(1);
+                    mTestsWaitingForShot.put(shotId, waiting);
+                }
+                waiting.add(id);
+                missing++;
+            }
+        }
+
+        if (missing == 0) {
+            convertTest(id);
+        } else {
+            mMissingShots.put(id, missing);
+        }
+    }
+
+    private void convertTest(String id) throws IOException {
+        OrgLIBZTest test = mLibzdb.get(id, OrgLIBZTest.class);
+        logger.info("    TestID: " + test.mId);
+
+        if (mLibzdb.isForwardReference(test.standard)) {
+            DBObjectInventory inventory = mConverter.getDBObjectInventory();
+            if (!inventory.hasDBStandard(test.standard)) {
+                inventory.addStandardToDBStandardingMapping(test.standard, mWriter.insert(Standard.class));
+            }
+        }
+
+        DBObjectConverter.DecodedSpectra decoded = mConverter.decodeSpectra(test, mLibzdb);
+        Acquisition acquisition = mWriter.insert(Acquisition.class);
+        if (!mConverter.writeAcquisition(decoded, acquisition)) {
+            totalTestFailed++;
+        }
+        totalTests++;
+        mWriter.added(decoded.getSpectraCount(), decoded.getBytes());
+        mWriter.endUnit();
+
+        mLibzdb.removeObject(id);
+        mProgress.advance();
+    }
+
+    /**
+     * Called after the last zip entry. Converts tests whose spectra never showed up (they fail
+     * the same way as in the regular conversion) and then all models.
+     */
+    void finish() throws IOException {
+        if (!mMissingShots.isEmpty()) {
+            logger.warn("{} tests reference missing spectrum files", mMissingShots.size());
+            for (String testId : new ArrayList<String>(mMissingShots.keySet())) {
+                convertTest(testId);
+            }
+            mMissingShots.clear();
+            mTestsWaitingForShot.clear();
+        }
+
+        float dbVersion = mLibzdb.getDatabaseVersion();
+        logger.info("Converting DB Version: " + dbVersion);
+        logger.info("Processing Models");
+
+        // dbVersion == -1 is older DB(no multicurves)
+        if (dbVersion < 0) {
+            LIBZDB.ObjectIterable<OrgModel> models = mLibzdb.getAllModels();
+            notifyCallback("Processing Models...", models.count());
+            for (OrgModel orgModel : models) {
+                mCancellation.check();
+                logger.info("    Models: " + orgModel.name);
+                EmpiricalModel empiricalModel = mWriter.insert(EmpiricalModel.class);
+                mConverter.convertModelToEmpiricalModel(orgModel, empiricalModel);
+                mWriter.endUnit();
+                totalModels++;
+                mProgress.advance();
+            }
+        } else {
+            LIBZDB.ObjectIterable<OrgModel2> models2 = mLibzdb.getAllModels2();
+            notifyCallback("Processing Models...", models2.count());
+            for (OrgModel2 orgModel2 : models2) {
+                mCancellation.check();
+                logger.info("    Models: " + orgModel2.name);
+                EmpiricalModel empiricalModel = mWriter.insert(EmpiricalModel.class);
+                mConverter.convertModel2ToEmpiricalModel(orgModel2, empiricalModel);
+                mWriter.endUnit();
+                totalModels++;
+                mProgress.advance();
+            }
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package com.sciaps.Utils;
+
+import com.devsmart.microdb.DBObject;
+import com.devsmart.microdb.MicroDB;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Groups inserts into the target MicroDB into batches and flushes after each batch, so the set
+ * of dirty objects held by MicroDB stays bounded during a large conversion.
+ *
+ * Objects inserted through {@link #insert(Class)} are counted automatically. Objects the
+ * converters insert through {@code DBObject.getDB()} (SpectraData, Standards created on demand)
+ * are reported with {@link #added(int, long)}. A flush only happens in {@link #endUnit()}, which
+ * is called when a top level object (standard, test, model) is complete, so a batch never ends
+ * in the middle of an object graph.
+ *
+ * With a {@link ConversionJournal} set, converted source objects are recorded in it and each
+ * flush commits the journal.
+ */
+public class BatchedDBWriter {
+
+    static Logger logger = LoggerFactory.getLogger(BatchedDBWriter.class);
+
+    public static final int DEFAULT_BATCH_OBJECTS = 2000;
+    public static final long DEFAULT_BATCH_BYTES = 64L * 1024 * 1024;
+
+    private final MicroDB mDB;
+    private final int mBatchObjects;
+    private final long mBatchBytes;
+    private ConversionJournal mJournal;
+    private ConversionMetrics mMetrics;
+
+    private int mPendingObjects;
+    private long mPendingBytes;
+    private long mBatchStart = System.nanoTime();
+
+    private int mBatches;
+    private long mTotalObjects;
+    private long mTotalBytes;
+    private long mFlushNanos;
+
+    public BatchedDBWriter(MicroDB db, int batchObjects, long batchBytes) {
+        mDB = db;
+        mBatchObjects = batchObjects;
+        mBatchBytes = batchBytes;
+    }
+
+    public MicroDB getDB() {
+        return mDB;
+    }
+
+    public void setJournal(ConversionJournal journal) {
+        mJournal = journal;
+    }
+
+    public ConversionJournal getJournal() {
+        return mJournal;
+    }
+
+    /**
+     * Flush times and the objects and bytes of each batch are also recorded in the metrics.
+     */
+    public void setMetrics(ConversionMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    /**
+     * Record that a source object has been converted to the target object. It is committed with
+     * the next flush.
+     */
+    public void record(String type, String sourceId, DBObject target, String hash, boolean inserted) throws IOException {
+        if (mJournal != null) {
+            mJournal.record(type, sourceId, target.getId(), hash, inserted);
+        }
+    }
+
+    /**
+     * Record the objects the converters inserted along with a target object, so they are rolled
+     * back with it if the batch is not committed.
+     */
+    public void recordParts(DBObject target, List<UUID> parts) throws IOException {
+        if (mJournal != null) {
+            mJournal.recordParts(target.getId(), parts);
+        }
+    }
+
+    public <T extends DBObject> T insert(Class<T> type) {
+        mPendingObjects++;
+        return mDB.insert(type);
+    }
+
+    /**
+     * Account for objects inserted without going through this writer, with an estimate of
+     * their encoded size.
+     */
+    public void added(int objects, long bytes) {
+        mPendingObjects += objects;
+        mPendingBytes += bytes;
+    }
+
+    /**
+     * Flush if the current batch has reached the object or byte threshold.
+     */
+    public void endUnit() throws IOException {
+        if (mPendingObjects >= mBatchObjects || mPendingBytes >= mBatchBytes) {
+            flush();
+        }
+    }
+
+    public void flush() throws IOException {
+        if (mPendingObjects == 0) {
+            return;
+        }
+
+        long flushStart = System.nanoTime();
+        mDB.flush();
+        if (mJournal != null) {
+            mJournal.commit();
+        }
+        long end = System.nanoTime();
+
+        if (mMetrics != null) {
+            mMetrics.time("db.flush", flushStart);
+            mMetrics.count("db.batches", 1);
+            mMetrics.count("db.objects", mPendingObjects);
+            mMetrics.count("db.bytes.estimated", mPendingBytes);
+        }
+
+        mBatches++;
+        mTotalObjects += mPendingObjects;
+        mTotalBytes += mPendingBytes;
+        mFlushNanos += end - flushStart;
+
+        double seconds = Math.max(end - mBatchStart, 1) / 1e9;
+        logger.info(String.format("Batch %d: %d objects, %.1f MB in %.2f s (flush %.2f s) %.0f objects/s %.1f MB/s",
+                mBatches, mPendingObjects, mPendingBytes / 1e6, seconds, (end - flushStart) / 1e9,
+                mPendingObjects / seconds, mPendingBytes / 1e6 / seconds));
+
+        mPendingObjects = 0;
+        mPendingBytes = 0;
+        mBatchStart = end;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d batches, %d objects, %.1f MB, %.2f s flushing",
+                mBatches, mTotalObjects, mTotalBytes / 1e6, mFlushNanos / 1e9);
+    }
+}
@@ -0,0 +1,28 @@
+package com.sciaps.Utils;
+
+import java.util.concurrent.CancellationException;
+
+/**
+ * Cancel flag of a conversion. The converting and decoding threads call {@link #check()} at
+ * points where stopping leaves nothing half done: between top level objects and between shots
+ * of a test. Threads are never interrupted for it, an interrupt would close the file channels of
+ * the spectrum store and the target database that are still needed to stop cleanly.
+ */
+public class Cancellation {
+
+    private volatile boolean mCancelled;
+
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    public void check() {
+        if (mCancelled) {
+            throw new CancellationException("conversion cancelled");
+        }
+    }
+}
@@ -0,0 +1,360 @@
+package com.sciaps.Utils;
+
+import com.google.common.base.Charsets;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Checkpoint journal of a conversion, kept next to the target database as maindb.journal.
+ *
+ * Every converted source object is recorded with the id of its target object, the content hash
+ * of its source document and whether the target was inserted or updated. When the target
+ * database has been flushed the records since the previous flush are committed with a commit
+ * line and the journal is synced to disk. A conversion of the same .sdb file (same path, size and
+ * modification time) started after a crash or cancel reads the committed records, keeps the
+ * existing database and skips the committed objects. Records after the last commit line belong to
+ * a batch that may have reached the disk only in part and are dropped, along with the target
+ * objects they inserted and the parts inserted with them (SpectraData, Standards created on
+ * demand), so the resumed output holds the same objects as a clean conversion. When a conversion
+ * completes, the committed records are merged into the source records of the
+ * {@link DBObjectInventory}.
+ *
+ * <pre>
+ * sdbjournal 3 &lt;size&gt; &lt;lastModified&gt; &lt;source path&gt;
+ * instrument instrument &lt;uuid&gt; - new
+ * standard &lt;source id&gt; &lt;uuid&gt; &lt;hash&gt; new
+ * test &lt;source id&gt; &lt;uuid&gt; &lt;hash&gt; update
+ * parts &lt;uuid&gt; &lt;uuid&gt;,&lt;uuid&gt;,...
+ * commit &lt;batch&gt;
+ * </pre>
+ */
+public class ConversionJournal implements Closeable {
+
+    static Logger logger = LoggerFactory.getLogger(ConversionJournal.class);
+
+    private static final String MAGIC = "sdbjournal";
+    private static final int VERSION = 3;
+    private static final String COMMIT = "commit";
+    private static final String PARTS = "parts";
+    private static final String INSERTED = "new";
+    private static final String UPDATED = "update";
+
+    public static final String TYPE_INSTRUMENT = "instrument";
+    public static final String TYPE_STANDARD = "standard";
+    public static final String TYPE_TEST = "test";
+    public static final String TYPE_MODEL = "model";
+
+    private final File mFile;
+    private final HashMap<String, HashMap<String, DBObjectInventory.SourceRecord>> mCommitted =
+            new HashMap<String, HashMap<String, DBObjectInventory.SourceRecord>>();
+    private final ArrayList<UUID> mUncommitted = new ArrayList<UUID>();
+    private int mDuplicates;
+    private int mBatches;
+    private long mCommittedLength;
+
+    private FileOutputStream mOut;
+    private Writer mWriter;
+
+    private ConversionJournal(File file) {
+        mFile = file;
+    }
+
+    public static File getFile(File dbfile) {
+        return new File(dbfile.getPath() + ".journal");
+    }
+
+    private static String getHeader(File source) throws IOException {
+        File file = source.getCanonicalFile();
+        return MAGIC + " " + VERSION + " " + file.length() + " " + file.lastModified() + " " + file.getPath();
+    }
+
+    /**
+     * Start a new journal, replacing any existing one.
+     */
+    public static ConversionJournal create(File journalFile, File source) throws IOException {
+        ConversionJournal retval = new ConversionJournal(journalFile);
+        retval.mOut = new FileOutputStream(journalFile, false);
+        retval.mWriter = new BufferedWriter(new OutputStreamWriter(retval.mOut, Charsets.UTF_8));
+        retval.mWriter.write(getHeader(source));
+        retval.mWriter.write('\n');
+        retval.sync();
+        return retval;
+    }
+
+    /**
+     * Read the committed records of an existing journal for the same source file and continue
+     * it. Returns null if there is no journal or it was written for a different file.
+     */
+    public static ConversionJournal resume(File journalFile, File source) throws IOException {
+        if (!journalFile.isFile()) {
+            return null;
+        }
+
+        ConversionJournal retval = read(journalFile, getHeader(source));
+        if (retval == null) {
+            logger.info("Journal {} does not match {}", journalFile, source);
+            return null;
+        }
+
+        // drop everything after the last commit line, including a line cut short by a crash
+        RandomAccessFile raf = new RandomAccessFile(journalFile, "rw");
+        try {
+            raf.setLength(retval.mCommittedLength);
+        } finally {
+            raf.close();
+        }
+
+        retval.mOut = new FileOutputStream(journalFile, true);
+        retval.mWriter = new BufferedWriter(new OutputStreamWriter(retval.mOut, Charsets.UTF_8));
+        logger.info("Resuming from journal {}: {} batches, {} standards, {} tests, {} models committed",
+                journalFile, retval.mBatches, retval.getCommittedCount(TYPE_STANDARD),
+                retval.getCommittedCount(TYPE_TEST), retval.getCommittedCount(TYPE_MODEL));
+        return retval;
+    }
+
+    /**
+     * Read the committed records of a journal whatever file it was written for, without
+     * continuing it. Used to keep the work of an abandoned incremental conversion.
+     */
+    public static ConversionJournal read(File journalFile) throws IOException {
+        return read(journalFile, null);
+    }
+
+    private static ConversionJournal read(File journalFile, String expectedHeader) throws IOException {
+        ConversionJournal retval = new ConversionJournal(journalFile);
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile), Charsets.UTF_8));
+        try {
+            String header = reader.readLine();
+            if (header == null || !header.startsWith(MAGIC + " " + VERSION + " ")
+                    || (expectedHeader != null && !header.equals(expectedHeader))) {
+                return null;
+            }
+            long length = header.getBytes(Charsets.UTF_8).length + 1;
+            retval.mCommittedLength = length;
+
+            ArrayList<String[]> pending = new ArrayList<String[]>();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                length += line.getBytes(Charsets.UTF_8).length + 1;
+                String[] fields = line.split(" ");
+                if (fields.length == 2 && COMMIT.equals(fields[0])) {
+                    for (String[] record : pending) {
+                        if (record.length == 5) {
+                            retval.addCommitted(record[0], record[1], new DBObjectInventory.SourceRecord(UUID.fromString(record[2]), record[3]));
+                        }
+                    }
+                    pending.clear();
+                    retval.mBatches++;
+                    retval.mCommittedLength = length;
+                } else if (fields.length == 5 || (fields.length == 3 && PARTS.equals(fields[0]))) {
+                    pending.add(fields);
+                }
+            }
+
+            for (String[] record : pending) {
+                try {
+                    if (record.length == 3) {
+                        // inserted for an object that is converted again, whether it stays or not
+                        for (UUID id : parseIds(record[2])) {
+                            retval.mUncommitted.add(id);
+                        }
+                    } else if (INSERTED.equals(record[4])) {
+                        // an updated object stays, it is converted again
+                        retval.mUncommitted.add(UUID.fromString(record[2]));
+                    }
+                } catch (IllegalArgumentException e) {
+                    // torn last line
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return retval;
+    }
+
+    private static List<UUID> parseIds(String ids) {
+        String[] fields = ids.split(",");
+        ArrayList<UUID> retval = new ArrayList<UUID>(fields.length);
+        for (String id : fields) {
+            retval.add(UUID.fromString(id));
+        }
+        return retval;
+    }
+
+    private void addCommitted(String type, String sourceId, DBObjectInventory.SourceRecord record) {
+        HashMap<String, DBObjectInventory.SourceRecord> ids = mCommitted.get(type);
+        if (ids == null) {
+            ids = new HashMap<String, DBObjectInventory.SourceRecord>();
+            mCommitted.put(type, ids);
+        }
+        if (ids.put(sourceId, record) != null) {
+            mDuplicates++;
+        }
+    }
+
+    public boolean isCommitted(String type, String sourceId) {
+        HashMap<String, DBObjectInventory.SourceRecord> ids = mCommitted.get(type);
+        return ids != null && ids.containsKey(sourceId);
+    }
+
+    /**
+     * Target object id of a committed source object, or null.
+     */
+    public UUID getCommitted(String type, String sourceId) {
+        HashMap<String, DBObjectInventory.SourceRecord> ids = mCommitted.get(type);
+        DBObjectInventory.SourceRecord record = ids != null ? ids.get(sourceId) : null;
+        return record != null ? record.target : null;
+    }
+
+    /**
+     * Target object ids of the committed source objects of a type.
+     */
+    public Collection<UUID> getCommittedTargets(String type) {
+        HashMap<String, DBObjectInventory.SourceRecord> ids = mCommitted.get(type);
+        if (ids == null) {
+            return Collections.emptyList();
+        }
+        ArrayList<UUID> retval = new ArrayList<UUID>(ids.size());
+        for (DBObjectInventory.SourceRecord record : ids.values()) {
+            retval.add(record.target);
+        }
+        return retval;
+    }
+
+    public int getCommittedCount(String type) {
+        HashMap<String, DBObjectInventory.SourceRecord> ids = mCommitted.get(type);
+        return ids != null ? ids.size() : 0;
+    }
+
+    /**
+     * Add the committed records to the source records of the inventory.
+     */
+    public void copyTo(DBObjectInventory inventory) {
+        for (Map.Entry<String, HashMap<String, DBObjectInventory.SourceRecord>> type : mCommitted.entrySet()) {
+            for (Map.Entry<String, DBObjectInventory.SourceRecord> e : type.getValue().entrySet()) {
+                inventory.putSourceRecord(type.getKey(), e.getKey(), e.getValue());
+            }
+        }
+    }
+
+    /**
+     * Target objects inserted after the last commit of the previous run, and the parts inserted
+     * with any target recorded after it.
+     */
+    public List<UUID> getUncommitted() {
+        return mUncommitted;
+    }
+
+    /**
+     * @param hash     content hash of the source document
+     * @param inserted true if the target object was inserted, false if an existing one was updated
+     */
+    public void record(String type, String sourceId, UUID target, String hash, boolean inserted) throws IOException {
+        mWriter.write(type + " " + sourceId + " " + target + " " + hash + " " + (inserted ? INSERTED : UPDATED) + "\n");
+        addCommitted(type, sourceId, new DBObjectInventory.SourceRecord(target, hash));
+    }
+
+    /**
+     * Record the objects inserted along with a target object, after the record of its source
+     * object and before the next commit.
+     */
+    public void recordParts(UUID target, List<UUID> parts) throws IOException {
+        if (parts.isEmpty()) {
+            return;
+        }
+        StringBuilder line = new StringBuilder(PARTS.length() + 38 + parts.size() * 37);
+        line.append(PARTS).append(' ').append(target).append(' ');
+        for (int i = 0; i < parts.size(); i++) {
+            if (i > 0) {
+                line.append(',');
+            }
+            line.append(parts.get(i));
+        }
+        line.append('\n');
+        mWriter.write(line.toString());
+    }
+
+    /**
+     * Receives the committed parts lines of a journal.
+     */
+    public interface PartsVisitor {
+        void visit(UUID target, List<UUID> parts) throws IOException;
+    }
+
+    /**
+     * Read the committed parts back from the journal file, in the order they were recorded. The
+     * parts are not kept in memory, there is one id per SpectraData.
+     */
+    public void visitCommittedParts(PartsVisitor visitor) throws IOException {
+        if (mWriter != null) {
+            mWriter.flush();
+        }
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(mFile), Charsets.UTF_8));
+        try {
+            reader.readLine();
+            ArrayList<String[]> pending = new ArrayList<String[]>();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split(" ");
+                if (fields.length == 2 && COMMIT.equals(fields[0])) {
+                    for (String[] parts : pending) {
+                        visitor.visit(UUID.fromString(parts[1]), parseIds(parts[2]));
+                    }
+                    pending.clear();
+                } else if (fields.length == 3 && PARTS.equals(fields[0])) {
+                    pending.add(fields);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Mark everything recorded so far as committed. Call right after the target database has
+     * been flushed.
+     */
+    public void commit() throws IOException {
+        mWriter.write(COMMIT + " " + ++mBatches + "\n");
+        sync();
+    }
+
+    private void sync() throws IOException {
+        mWriter.flush();
+        mOut.getFD().sync();
+    }
+
+    /**
+     * Check that no source object was converted twice and that only source ids of the type were
+     * converted.
+     */
+    public void verify(String type, Collection<String> sourceIds) throws IOException {
+        HashMap<String, DBObjectInventory.SourceRecord> committed = mCommitted.get(type);
+        Set<String> ids = committed != null ? committed.keySet() : Collections.<String>emptySet();
+        if (mDuplicates > 0 || !sourceIds.containsAll(ids)) {
+            throw new IOException(String.format("%s journal mismatch: %d %ss converted of %d, %d duplicates",
+                    mFile.getName(), ids.size(), type, sourceIds.size(), mDuplicates));
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mWriter != null) {
+            mWriter.close();
+            mWriter = null;
+        }
+    }
+
+    /**
+     * Close and remove the journal once the conversion has completed.
+     */
+    public void delete() throws IOException {
+        close();
+        if (mFile.exists() && !mFile.delete()) {
+            throw new IOException("Cannot delete " + mFile);
+        }
+    }
+}
@@ -0,0 +1,292 @@
+package com.sciaps.Utils;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters, timers and histograms collected during one conversion, written as maindb.metrics.json
+ * next to the output database and optionally published over JMX while the conversion runs.
+ *
+ * Timers and histograms bucket their values by powers of two. Timers are named
+ * "phase.&lt;phase&gt;" for the phases of the conversion and "&lt;step&gt;.&lt;object type&gt;"
+ * for the work done per object. All methods may be called from any thread. The peak heap is the
+ * largest heap use seen whenever a time was recorded, so it is a lower bound of the real peak.
+ */
+public class ConversionMetrics implements ConversionMetricsMBean {
+
+    static Logger logger = LoggerFactory.getLogger(ConversionMetrics.class);
+
+    private static final Gson ReportGson = new GsonBuilder()
+            .setPrettyPrinting()
+            .disableHtmlEscaping()
+            .setDateFormat("yyyy-MM-dd'T'HH:mm:ssZ")
+            .serializeSpecialFloatingPointValues()
+            .create();
+
+    private final String mSource;
+    private final long mStartMillis = System.currentTimeMillis();
+    private final long mStart = System.nanoTime();
+    private final ConcurrentMap<String, AtomicLong> mCounters = new ConcurrentHashMap<String, AtomicLong>();
+    private final ConcurrentMap<String, Histogram> mTimers = new ConcurrentHashMap<String, Histogram>();
+    private final ConcurrentMap<String, Histogram> mHistograms = new ConcurrentHashMap<String, Histogram>();
+    private final AtomicLong mPeakHeap = new AtomicLong();
+    private volatile String mPhase = "";
+    private volatile long mPhaseStart;
+    private volatile long mEnd;
+    private ObjectName mObjectName;
+
+    public ConversionMetrics(String source) {
+        mSource = source;
+        sampleHeap();
+    }
+
+    /**
+     * Values bucketed by the position of their highest bit.
+     */
+    private static class Histogram {
+        private final long[] mBuckets = new long[64];
+        private long mCount;
+        private long mTotal;
+        private long mMin = Long.MAX_VALUE;
+        private long mMax;
+
+        synchronized void record(long value) {
+            value = Math.max(value, 0);
+            mBuckets[64 - Long.numberOfLeadingZeros(value) - (value == 0 ? 0 : 1)]++;
+            mCount++;
+            mTotal += value;
+            mMin = Math.min(mMin, value);
+            mMax = Math.max(mMax, value);
+        }
+
+        synchronized HistogramReport report(double scale) {
+            HistogramReport retval = new HistogramReport();
+            retval.count = mCount;
+            retval.total = mTotal / scale;
+            retval.min = mCount > 0 ? mMin / scale : 0;
+            retval.max = mMax / scale;
+            retval.mean = mCount > 0 ? mTotal / scale / mCount : 0;
+            for (int i = 0; i < mBuckets.length; i++) {
+                if (mBuckets[i] > 0) {
+                    // upper bound of the bucket
+                    long bound = i == 63 ? Long.MAX_VALUE : (1L << (i + 1)) - 1;
+                    retval.buckets.put(String.format("<= %s", formatValue(bound / scale)), mBuckets[i]);
+                }
+            }
+            return retval;
+        }
+    }
+
+    static class HistogramReport {
+        long count;
+        double total;
+        double min;
+        double max;
+        double mean;
+        Map<String, Long> buckets = new LinkedHashMap<String, Long>();
+    }
+
+    static class Report {
+        String source;
+        Date started;
+        String phase;
+        double elapsedSeconds;
+        long peakHeapMB;
+        Map<String, Long> counters = new TreeMap<String, Long>();
+        Map<String, HistogramReport> timersMs = new TreeMap<String, HistogramReport>();
+        Map<String, HistogramReport> histograms = new TreeMap<String, HistogramReport>();
+    }
+
+    private static String formatValue(double value) {
+        if (value == Math.rint(value)) {
+            return String.format("%d", (long) value);
+        }
+        return String.format("%.3f", value);
+    }
+
+    private static <T> T getOrCreate(ConcurrentMap<String, T> map, String name, T value) {
+        T retval = map.putIfAbsent(name, value);
+        return retval != null ? retval : value;
+    }
+
+    public void count(String name, long delta) {
+        AtomicLong counter = mCounters.get(name);
+        if (counter == null) {
+            counter = getOrCreate(mCounters, name, new AtomicLong());
+        }
+        counter.addAndGet(delta);
+    }
+
+    /**
+     * Set a counter to a total that was accumulated elsewhere.
+     */
+    public void set(String name, long value) {
+        getOrCreate(mCounters, name, new AtomicLong()).set(value);
+    }
+
+    /**
+     * Record a time measured from start, a System.nanoTime() value. Returns the elapsed nanos.
+     */
+    public long time(String name, long start) {
+        long retval = System.nanoTime() - start;
+        Histogram timer = mTimers.get(name);
+        if (timer == null) {
+            timer = getOrCreate(mTimers, name, new Histogram());
+        }
+        timer.record(retval);
+        sampleHeap();
+        return retval;
+    }
+
+    public void record(String name, long value) {
+        Histogram histogram = mHistograms.get(name);
+        if (histogram == null) {
+            histogram = getOrCreate(mHistograms, name, new Histogram());
+        }
+        histogram.record(value);
+    }
+
+    /**
+     * End the current phase, if any, and start the next one.
+     */
+    public void beginPhase(String phase) {
+        endPhase();
+        mPhase = phase;
+        mPhaseStart = System.nanoTime();
+        logger.info("Phase: {}", phase);
+    }
+
+    public void endPhase() {
+        if (mPhase.length() > 0) {
+            time("phase." + mPhase, mPhaseStart);
+            mPhase = "";
+        }
+    }
+
+    /**
+     * End the current phase and stop the clock.
+     */
+    public void finish() {
+        endPhase();
+        mEnd = System.nanoTime();
+    }
+
+    private void sampleHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        long used = runtime.totalMemory() - runtime.freeMemory();
+        long peak = mPeakHeap.get();
+        while (used > peak && !mPeakHeap.compareAndSet(peak, used)) {
+            peak = mPeakHeap.get();
+        }
+    }
+
+    @Override
+    public String getSource() {
+        return mSource;
+    }
+
+    @Override
+    public String getPhase() {
+        return mPhase;
+    }
+
+    @Override
+    public double getElapsedSeconds() {
+        long end = mEnd != 0 ? mEnd : System.nanoTime();
+        return (end - mStart) / 1e9;
+    }
+
+    @Override
+    public long getHeapUsedMB() {
+        Runtime runtime = Runtime.getRuntime();
+        return (runtime.totalMemory() - runtime.freeMemory()) / (1024 * 1024);
+    }
+
+    @Override
+    public long getPeakHeapMB() {
+        sampleHeap();
+        return mPeakHeap.get() / (1024 * 1024);
+    }
+
+    @Override
+    public long getCounter(String name) {
+        AtomicLong counter = mCounters.get(name);
+        return counter != null ? counter.get() : 0;
+    }
+
+    @Override
+    public String getReport() {
+        Report report = new Report();
+        report.source = mSource;
+        report.started = new Date(mStartMillis);
+        report.phase = mPhase;
+        report.elapsedSeconds = getElapsedSeconds();
+        report.peakHeapMB = getPeakHeapMB();
+        for (Map.Entry<String, AtomicLong> e : mCounters.entrySet()) {
+            report.counters.put(e.getKey(), e.getValue().get());
+        }
+        for (Map.Entry<String, Histogram> e : mTimers.entrySet()) {
+            report.timersMs.put(e.getKey(), e.getValue().report(1e6));
+        }
+        for (Map.Entry<String, Histogram> e : mHistograms.entrySet()) {
+            report.histograms.put(e.getKey(), e.getValue().report(1));
+        }
+        return ReportGson.toJson(report);
+    }
+
+    public void writeReport(File file) throws IOException {
+        Files.write(getReport(), file, Charsets.UTF_8);
+        logger.info("Metrics written to {}", file.getPath());
+    }
+
+    public static File getReportFile(File dbfile) {
+        return new File(dbfile.getPath() + ".metrics.json");
+    }
+
+    /**
+     * Publish these metrics on the platform MBean server as
+     * com.sciaps:type=ConversionMetrics,name=&lt;name&gt; until {@link #unregister()}.
+     */
+    public void register(String name) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName("com.sciaps:type=ConversionMetrics,name=" + ObjectName.quote(name));
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+            server.registerMBean(this, objectName);
+            mObjectName = objectName;
+        } catch (Exception e) {
+            logger.warn("Cannot register conversion metrics MBean", e);
+        }
+    }
+
+    public void unregister() {
+        if (mObjectName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(mObjectName);
+        } catch (Exception e) {
+            logger.warn("Cannot unregister conversion metrics MBean", e);
+        }
+        mObjectName = null;
+    }
+}
@@ -0,0 +1,24 @@
+package com.sciaps.Utils;
+
+/**
+ * JMX view of a running conversion, see {@link ConversionMetrics#register(String)}.
+ */
+public interface ConversionMetricsMBean {
+
+    String getSource();
+
+    String getPhase();
+
+    double getElapsedSeconds();
+
+    long getHeapUsedMB();
+
+    long getPeakHeapMB();
+
+    long getCounter(String name);
+
+    /**
+     * The full report as JSON, the same document that is written next to the output database.
+     */
+    String getReport();
+}
@@ -0,0 +1,115 @@
+package com.sciaps.Utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Progress of a conversion, updated by the converting thread and read by whoever displays it.
+ *
+ * Advancing is a single atomic increment, nothing is formatted or dispatched on the converting
+ * thread. A display polls {@link #getSnapshot()} at its own rate, for example from a Swing Timer,
+ * so many fast updates between two polls cost nothing more than the increments.
+ */
+public class ConversionProgress {
+
+    public static final long UNKNOWN = -1;
+
+    private static class Stage {
+        final String name;
+        final long total;
+        final long start;
+        final long doneAtStart;
+
+        Stage(String name, long total, long doneAtStart) {
+            this.name = name;
+            this.total = total;
+            this.start = System.nanoTime();
+            this.doneAtStart = doneAtStart;
+        }
+    }
+
+    private final AtomicLong mDone = new AtomicLong();
+    private volatile Stage mStage = new Stage("", UNKNOWN, 0);
+
+    /**
+     * Point in time view of the progress.
+     */
+    public static class Snapshot {
+        public final String stage;
+        public final long done;
+        public final long total;
+        public final double itemsPerSecond;
+        public final double etaSeconds;
+
+        Snapshot(String stage, long done, long total, double itemsPerSecond, double etaSeconds) {
+            this.stage = stage;
+            this.done = done;
+            this.total = total;
+            this.itemsPerSecond = itemsPerSecond;
+            this.etaSeconds = etaSeconds;
+        }
+
+        /**
+         * Done out of total between 0 and 1, or -1 if the total is unknown.
+         */
+        public double getFraction() {
+            if (total <= 0) {
+                return -1;
+            }
+            return Math.min(1.0, (double) done / total);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder retval = new StringBuilder(stage);
+            if (done > 0 || total > 0) {
+                retval.append(done);
+                if (total > 0) {
+                    retval.append('/').append(total);
+                }
+            }
+            if (itemsPerSecond > 0) {
+                retval.append(String.format("  %.1f/s", itemsPerSecond));
+            }
+            if (etaSeconds >= 0) {
+                long seconds = Math.round(etaSeconds);
+                retval.append(String.format("  ETA %d:%02d:%02d", seconds / 3600, seconds / 60 % 60, seconds % 60));
+            }
+            return retval.toString();
+        }
+    }
+
+    /**
+     * Start a stage of total items (or {@link #UNKNOWN}) of which done are already complete, for
+     * example because an earlier run converted them. Only items done from now on count for the
+     * rate and ETA.
+     */
+    public void begin(String stage, long total, long done) {
+        mDone.set(done);
+        mStage = new Stage(stage, total, done);
+    }
+
+    public void begin(String stage, long total) {
+        begin(stage, total, 0);
+    }
+
+    public void begin(String stage) {
+        begin(stage, UNKNOWN, 0);
+    }
+
+    public void advance() {
+        mDone.incrementAndGet();
+    }
+
+    public Snapshot getSnapshot() {
+        Stage stage = mStage;
+        long done = mDone.get();
+        double seconds = (System.nanoTime() - stage.start) / 1e9;
+        long progressed = done - stage.doneAtStart;
+        double rate = seconds > 0 && progressed > 0 ? progressed / seconds : 0;
+        double eta = -1;
+        if (rate > 0 && stage.total > 0) {
+            eta = Math.max(stage.total - done, 0) / rate;
+        }
+        return new Snapshot(stage.name, done, stage.total, rate, eta);
+    }
+}
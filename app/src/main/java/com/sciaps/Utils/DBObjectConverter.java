@@ -1,10 +1,14 @@
 package com.sciaps.Utils;
 
 import com.devsmart.StringUtils;
+import com.devsmart.microdb.DBObject;
+import com.devsmart.microdb.MicroDB;
 import com.devsmart.ubjson.UBArray;
 import com.devsmart.ubjson.UBObject;
 import com.devsmart.ubjson.UBValue;
 import com.devsmart.ubjson.UBValueFactory;
+import com.google.common.hash.HashCode;
+import com.google.gson.JsonObject;
 import com.sciaps.common.AtomicElement;
 import com.sciaps.common.algorithms.SGolayIntensity;
 import com.sciaps.common.data.ChemValue;
@@ -14,7 +18,9 @@ import com.sciaps.datastructures.ArrayTable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.CancellationException;
 
 /**
  * Created by jchen on 1/8/16.
@@ -24,6 +30,62 @@ public class DBObjectConverter {
     static Logger logger = LoggerFactory.getLogger(DBObjectConverter.class);
 
     private DBObjectInventory mDBObjectInventory = new DBObjectInventory();
+    private Cancellation mCancellation;
+    private SpectrumDedup mSpectrumDedup;
+    // objects inserted besides the targets the converters were given, while tracking
+    private ArrayList<UUID> mInserted;
+
+    public DBObjectInventory getDBObjectInventory() {
+        return mDBObjectInventory;
+    }
+
+    /**
+     * Collect the ids of the objects the converters insert themselves (SpectraData, Standards
+     * created on demand), see {@link #takeInserted()}.
+     */
+    public void setTrackInserted(boolean track) {
+        mInserted = track ? new ArrayList<UUID>() : null;
+    }
+
+    /**
+     * Ids of the objects inserted since the last call, besides the target objects the converters
+     * were given. Empty unless tracking.
+     */
+    public List<UUID> takeInserted() {
+        if (mInserted == null || mInserted.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<UUID> retval = new ArrayList<UUID>(mInserted);
+        mInserted.clear();
+        return retval;
+    }
+
+    private <T extends DBObject> T insert(MicroDB db, Class<T> type) {
+        T retval = db.insert(type);
+        if (mInserted != null) {
+            mInserted.add(retval.getId());
+        }
+        return retval;
+    }
+
+    /**
+     * Decode and write spectrum files with the same contents once, see {@link SpectrumDedup}.
+     * Off when null.
+     */
+    public void setSpectrumDedup(SpectrumDedup dedup) {
+        mSpectrumDedup = dedup;
+    }
+
+    public SpectrumDedup getSpectrumDedup() {
+        return mSpectrumDedup;
+    }
+
+    /**
+     * Checked between the shots of a test while decoding.
+     */
+    public void setCancellation(Cancellation cancellation) {
+        mCancellation = cancellation;
+    }
 
     public void convertSpectrumToSpectraData(LIBZPixelSpectrum spectrum, SpectraData spectraData) {
         DataHelper.LIBZSpectraDataBuilder builder = DataHelper.LIBZSpectraDataBuilder.builder();
@@ -38,8 +100,245 @@ public class DBObjectConverter {
         builder.build(spectraData);
     }
 
+    private static long getSampleBytes(LIBZPixelSpectrum spectrum) {
+        long samples = spectrum.knots.length;
+        for (double[] pixels : spectrum.pixels) {
+            samples += pixels.length;
+        }
+        return samples * 8;
+    }
+
+    /**
+     * Spectra of one test, decoded but not written yet. Only the decoded spectra are held, not the
+     * raw spectrum files nor a copy for the SpectraData builder: the samples are copied once more,
+     * by the builder when they are written, and each spectrum is released right after.
+     * Produced by {@link #decodeSpectra(OrgLIBZTest, LIBZDB)} and consumed by
+     * {@link #writeAcquisition(DecodedSpectra, Acquisition)}.
+     */
+    public static class DecodedSpectra {
+        public final OrgLIBZTest test;
+        final ArrayList<LIBZPixelSpectrum> spectra = new ArrayList<LIBZPixelSpectrum>();
+        // the spectrum files in shot order when deduplicating, null otherwise
+        ArrayList<SpectrumFile> files;
+        int count;
+        int spectrumFiles;
+        long bytes;
+        Exception error;
+        // what the test references stays loaded until it is written
+        LIBZDB.Pins pins;
+
+        DecodedSpectra(OrgLIBZTest test) {
+            this.test = test;
+        }
+
+        public int getSpectraCount() {
+            return count;
+        }
+
+        /**
+         * Number of spectrum files the test refers to, read from its shot table while decoding.
+         */
+        public int getSpectrumFileCount() {
+            return spectrumFiles;
+        }
+
+        /**
+         * Size of the decoded samples, used as an estimate of the SpectraData written.
+         */
+        public long getBytes() {
+            return bytes;
+        }
+
+        void setPins(LIBZDB.Pins pins) {
+            this.pins = pins;
+        }
+
+        /**
+         * Release the spectra that have not been written, so their arrays go back to the pool of
+         * the decoder, and unpin the objects the test references.
+         */
+        public void release() {
+            releaseSpectra();
+            if (pins != null) {
+                pins.release();
+                pins = null;
+            }
+        }
+
+        void releaseSpectra() {
+            for (LIBZPixelSpectrum spectrum : spectra) {
+                if (spectrum != null) {
+                    spectrum.release();
+                }
+            }
+            spectra.clear();
+        }
+    }
+
+    /**
+     * One spectrum file of a decoded test: either decoded into count spectra, or a copy of a
+     * file that was already written.
+     */
+    static class SpectrumFile {
+        final String id;
+        final HashCode hash;
+        final int size;
+        UUID[] written;
+        int count;
+        long bytes;
+
+        SpectrumFile(String id, HashCode hash, int size) {
+            this.id = id;
+            this.hash = hash;
+            this.size = size;
+        }
+    }
+
     public boolean convertLIBZTestToAcquisition(OrgLIBZTest test, Acquisition acquisition, LIBZDB libzdb) {
+        return writeAcquisition(decodeSpectra(test, libzdb), acquisition);
+    }
+
+    /**
+     * Decompress the spectra of a test. Does not touch the target database or the object
+     * inventory, so it can be called from any thread.
+     */
+    public DecodedSpectra decodeSpectra(OrgLIBZTest test, LIBZDB libzdb) {
+        DecodedSpectra retval = new DecodedSpectra(test);
+
+        try {
+            // the shot table is parsed once and used for the count, the file ids and the shots
+            JsonObject shotTable = libzdb.getShotTable(test);
+
+            // Avg and each shot
+            int numShots = LIBZDB.getShotCount(test, shotTable);
+            retval.spectra.ensureCapacity(numShots);
+
+            //Avg
+            //LIBZPixelSpectrum avgSpectrum = (LIBZPixelSpectrum) libzdb.getAvgSpectrum(test);
+
+            //Shot data, each spectrum file is decoded once
+            if (mSpectrumDedup != null) {
+                decodeSpectrumFiles(retval, shotTable, libzdb);
+            } else {
+                retval.spectrumFiles = LIBZDB.getSpectrumIds(shotTable).size();
+                LIBZDB.ShotIterator shots = libzdb.getShots(shotTable);
+                try {
+                    while (shots.hasNext()) {
+                        if (mCancellation != null) {
+                            mCancellation.check();
+                        }
+                        LIBZPixelSpectrum spectrum = shots.next();
+                        retval.spectra.add(spectrum);
+                        retval.count++;
+                        retval.bytes += getSampleBytes(spectrum);
+                    }
+                } finally {
+                    shots.close();
+                }
+            }
+        } catch (CancellationException e) {
+            retval.releaseSpectra();
+            throw e;
+        } catch (Exception e) {
+            retval.error = e;
+            retval.count = 0;
+            retval.releaseSpectra();
+        }
+
+        return retval;
+    }
+
+    /**
+     * Decode the spectrum files of a test one by one, skipping files whose contents were already
+     * written.
+     */
+    private void decodeSpectrumFiles(DecodedSpectra decoded, JsonObject shotTable, LIBZDB libzdb) throws IOException {
+        boolean multiShot = LIBZDB.isMultiShot(shotTable);
+        List<String> ids = LIBZDB.getSpectrumIds(shotTable);
+        decoded.spectrumFiles = ids.size();
+        decoded.files = new ArrayList<SpectrumFile>(ids.size());
+        for (String id : ids) {
+            byte[] data = libzdb.getSpectrumFile(id);
+            if (data == null) {
+                throw new IOException("missing spectrum file: " + id);
+            }
+            SpectrumFile file = new SpectrumFile(id, SpectrumDedup.hash(data), data.length);
+            decoded.files.add(file);
+
+            file.written = mSpectrumDedup.find(file.hash, id, data);
+            if (file.written != null) {
+                decoded.count += file.written.length;
+                continue;
+            }
+
+            LIBZDB.ShotIterator shots = libzdb.decodeSpectrumFile(data, multiShot);
+            try {
+                while (shots.hasNext()) {
+                    if (mCancellation != null) {
+                        mCancellation.check();
+                    }
+                    LIBZPixelSpectrum spectrum = shots.next();
+                    long bytes = getSampleBytes(spectrum);
+                    decoded.spectra.add(spectrum);
+                    decoded.count++;
+                    decoded.bytes += bytes;
+                    file.count++;
+                    file.bytes += bytes;
+                }
+            } finally {
+                shots.close();
+            }
+        }
+    }
+
+    /**
+     * Insert the SpectraData of the decoded spectrum files of a test, or look up the SpectraData
+     * of the files that were already written.
+     */
+    private SpectraData[] writeSpectrumFiles(DecodedSpectra decoded, MicroDB db) {
+        ArrayList<SpectraData> retval = new ArrayList<SpectraData>(decoded.count);
+        int next = 0;
+        for (SpectrumFile file : decoded.files) {
+            UUID[] written = file.written;
+            if (written == null) {
+                // a copy may have been written while this one was decoded
+                written = mSpectrumDedup.find(file.hash, file.id);
+                if (written != null) {
+                    for (int i = 0; i < file.count; i++) {
+                        decoded.spectra.set(next++, null).release();
+                    }
+                }
+            }
+
+            if (written != null) {
+                for (UUID id : written) {
+                    SpectraData spectraData = db.get(id);
+                    retval.add(spectraData);
+                }
+                mSpectrumDedup.reused(file.hash, file.size);
+            } else {
+                written = new UUID[file.count];
+                for (int i = 0; i < file.count; i++) {
+                    SpectraData spectraData = insert(db, SpectraData.class);
+                    LIBZPixelSpectrum spectrum = decoded.spectra.set(next++, null);
+                    convertSpectrumToSpectraData(spectrum, spectraData);
+                    spectrum.release();
+                    written[i] = spectraData.getId();
+                    retval.add(spectraData);
+                }
+                mSpectrumDedup.register(file.hash, file.id, written, file.bytes);
+            }
+        }
+        return retval.toArray(new SpectraData[retval.size()]);
+    }
+
+    /**
+     * Fill the acquisition from a decoded test and insert its SpectraData. Must be called from
+     * the thread that owns the target database.
+     */
+    public boolean writeAcquisition(DecodedSpectra decoded, Acquisition acquisition) {
         boolean status = true;
+        OrgLIBZTest test = decoded.test;
 
         //Time
         acquisition.setTime(test.unixTime * 1000);
@@ -48,7 +347,7 @@ public class DBObjectConverter {
         if (test.standard != null) {
             Standard dbStandard = mDBObjectInventory.getDBStandardByStandard(test.standard);
             if (dbStandard == null) {
-                dbStandard = acquisition.getDB().insert(Standard.class);
+                dbStandard = insert(acquisition.getDB(), Standard.class);
                 convertStandardToDBStandard(test.standard, dbStandard);
             }
             acquisition.setStandard(dbStandard);
@@ -76,25 +375,22 @@ public class DBObjectConverter {
 
         // get spectra data
         try {
-            // Avg and each shot
-            SpectraData[] spectraDatas = new SpectraData[libzdb.getSpectra(test).size()];
+            if (decoded.error != null) {
+                throw decoded.error;
+            }
 
-            //Avg
-            //LIBZPixelSpectrum avgSpectrum = (LIBZPixelSpectrum) libzdb.getAvgSpectrum(test);
-            //SpectraData avgSpectraData = acquisition.getDB().insert(SpectraData.class);
-            //convertSpectrumToSpectraData(avgSpectrum, avgSpectraData);
-            //spectraDatas[0] = avgSpectraData;
-            //avgSpectrum.release();
-
-            //Shot data
-            int i = 0;
-            ArrayList<LIBZPixelSpectrum> spectra = libzdb.getSpectra(test);
-            for (LIBZPixelSpectrum spectrum : spectra) {
-                SpectraData spectraData = acquisition.getDB().insert(SpectraData.class);
-                convertSpectrumToSpectraData(spectrum, spectraData);
-                spectraDatas[i] = spectraData;
-                spectrum.release();
-                i++;
+            SpectraData[] spectraDatas;
+            if (decoded.files != null) {
+                spectraDatas = writeSpectrumFiles(decoded, acquisition.getDB());
+            } else {
+                spectraDatas = new SpectraData[decoded.spectra.size()];
+                for (int i = 0; i < spectraDatas.length; i++) {
+                    SpectraData spectraData = insert(acquisition.getDB(), SpectraData.class);
+                    LIBZPixelSpectrum spectrum = decoded.spectra.set(i, null);
+                    convertSpectrumToSpectraData(spectrum, spectraData);
+                    spectraDatas[i] = spectraData;
+                    spectrum.release();
+                }
             }
 
             acquisition.setSpectraData(spectraDatas);
@@ -103,6 +399,8 @@ public class DBObjectConverter {
             status = false;
             logger.error("Failed to get spectrum for test: " + test.mId);
             logger.error("This exception can be ok. ", e);
+        } finally {
+            decoded.release();
         }
 
 
@@ -133,7 +431,7 @@ public class DBObjectConverter {
         for (OrgStandard orgStandard : orgModel.standardList) {
             Standard dbStandard = mDBObjectInventory.getDBStandardByStandard(orgStandard);
             if (dbStandard == null) {
-                dbStandard = empiricalModel.getDB().insert(Standard.class);
+                dbStandard = insert(empiricalModel.getDB(), Standard.class);
                 convertStandardToDBStandard(orgStandard, dbStandard);
             }
 
@@ -197,7 +495,7 @@ public class DBObjectConverter {
         for (OrgStandard orgStandard : orgModel.standardList) {
             Standard dbStandard = mDBObjectInventory.getDBStandardByStandard(orgStandard);
             if (dbStandard == null) {
-                dbStandard = empiricalModel.getDB().insert(Standard.class);
+                dbStandard = insert(empiricalModel.getDB(), Standard.class);
                 convertStandardToDBStandard(orgStandard, dbStandard);
             }
 
@@ -362,7 +660,7 @@ public class DBObjectConverter {
         for (OrgStandard orgStandard : irCurve.excludedOrgStandards) {
             Standard dbStandard = mDBObjectInventory.getDBStandardByStandard(orgStandard);
             if (dbStandard == null) {
-                dbStandard = dbirCurve.getDB().insert(Standard.class);
+                dbStandard = insert(dbirCurve.getDB(), Standard.class);
                 convertStandardToDBStandard(orgStandard, dbStandard);
             }
 
@@ -446,7 +744,7 @@ public class DBObjectConverter {
             EmpiricalModel empiricalModel = mDBObjectInventory.getEmpiricalModelByModel(orgFingerprintLibraryTemplate.orgModel);
 
             if (empiricalModel == null) {
-                empiricalModel = dbFingerprintLibTemplate.getDB().insert(EmpiricalModel.class);
+                empiricalModel = insert(dbFingerprintLibTemplate.getDB(), EmpiricalModel.class);
                 convertModelToEmpiricalModel(orgFingerprintLibraryTemplate.orgModel, empiricalModel);
                 mDBObjectInventory.addModelByEmpiricalModelMapping(orgFingerprintLibraryTemplate.orgModel, empiricalModel);
             }
@@ -459,7 +757,7 @@ public class DBObjectConverter {
         for (OrgStandard orgStandard : orgFingerprintLibraryTemplate.orgStandardList) {
             Standard dbStandard = mDBObjectInventory.getDBStandardByStandard(orgStandard);
             if (dbStandard == null) {
-                dbStandard = dbFingerprintLibTemplate.getDB().insert(Standard.class);
+                dbStandard = insert(dbFingerprintLibTemplate.getDB(), Standard.class);
                 convertStandardToDBStandard(orgStandard, dbStandard);
             }
 
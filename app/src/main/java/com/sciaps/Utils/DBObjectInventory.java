@@ -1,39 +1,84 @@
 package com.sciaps.Utils;
 
 
+import com.devsmart.microdb.DBObject;
+import com.devsmart.microdb.MicroDB;
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
 import com.sciaps.data.*;
 
+import java.io.*;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.UUID;
 
 /**
  * Created by jchen on 1/8/16.
  */
 public class DBObjectInventory {
 
-    private Map<String, Acquisition> testMapping = new HashMap<String, Acquisition>();
-    private Map<String, Standard> standardMapping = new HashMap<String, Standard>();
-    private Map<String, Region> regionMapping = new HashMap<String, Region>();
-    private Map<String, EmpiricalModel> modelMapping = new HashMap<String, EmpiricalModel>();
+    // source id to target id, the target objects are looked up in the database of the first
+    // object added when needed, so the inventory does not keep them in memory
+    private final OffHeapIdMap testMapping = new OffHeapIdMap(1024);
+    private final OffHeapIdMap standardMapping = new OffHeapIdMap(1024);
+    private final OffHeapIdMap regionMapping = new OffHeapIdMap(64);
+    private final OffHeapIdMap modelMapping = new OffHeapIdMap(64);
+    private MicroDB mDB;
+
+    /**
+     * Target object and content hash of a converted source object. Kept across conversions in
+     * maindb.inventory so an incremental conversion can tell new and changed objects apart.
+     */
+    public static class SourceRecord {
+        public final UUID target;
+        public final String hash;
+
+        public SourceRecord(UUID target, String hash) {
+            this.target = target;
+            this.hash = hash;
+        }
+    }
+
+    private final Map<String, Map<String, SourceRecord>> sourceRecords = new HashMap<String, Map<String, SourceRecord>>();
+
+    private void put(OffHeapIdMap mapping, String sourceId, DBObject target) {
+        if (mDB == null) {
+            mDB = target.getDB();
+        }
+        mapping.put(sourceId, target.getId());
+    }
+
+    private <T extends DBObject> T resolve(OffHeapIdMap mapping, String sourceId) {
+        UUID target = mapping.get(sourceId);
+        if (target == null) {
+            return null;
+        }
+        return mDB.<T>get(target);
+    }
 
     public Acquisition getAcquisitionByTest(OrgLIBZTest test) {
-        return testMapping.get(test.mId);
+        return resolve(testMapping, test.mId);
     }
 
     public void addTestToAcquisitionMapping(OrgLIBZTest test, Acquisition acquisition) {
-        testMapping.put(test.mId, acquisition);
+        put(testMapping, test.mId, acquisition);
     }
 
     public void removeTestToAcquisitionMapping(OrgLIBZTest test) {
         testMapping.remove(test.mId);
     }
 
+    public boolean hasDBStandard(OrgStandard orgStandard) {
+        return standardMapping.containsKey(orgStandard.mId);
+    }
+
     public Standard getDBStandardByStandard(OrgStandard orgStandard) {
-        return standardMapping.get(orgStandard.mId);
+        return resolve(standardMapping, orgStandard.mId);
     }
 
     public void addStandardToDBStandardingMapping(OrgStandard orgStandard, Standard dbStandard) {
-        standardMapping.put(orgStandard.mId, dbStandard);
+        put(standardMapping, orgStandard.mId, dbStandard);
     }
 
     public void removeStandardToDBStandardMapping(OrgStandard orgStandard) {
@@ -41,11 +86,11 @@ public class DBObjectInventory {
     }
 
     public Region getDBRegionByRegion(OrgRegion orgRegion) {
-        return regionMapping.get(orgRegion.mId);
+        return resolve(regionMapping, orgRegion.mId);
     }
 
     public void addRegionToDBRegionMapping(OrgRegion orgRegion, Region dbRegion) {
-        regionMapping.put(orgRegion.mId, dbRegion);
+        put(regionMapping, orgRegion.mId, dbRegion);
     }
 
     public void removeRegionToDBRegionMapping(OrgRegion orgRegion) {
@@ -53,18 +98,116 @@ public class DBObjectInventory {
     }
 
     public EmpiricalModel getEmpiricalModelByModel(OrgModel orgModel) {
-        return modelMapping.get(orgModel.mId);
+        return resolve(modelMapping, orgModel.mId);
     }
 
     public EmpiricalModel addModelByEmpiricalModelMapping(OrgModel orgModel, EmpiricalModel empiricalModel) {
-        return modelMapping.put(orgModel.mId, empiricalModel);
+        UUID previous = modelMapping.get(orgModel.mId);
+        put(modelMapping, orgModel.mId, empiricalModel);
+        return previous != null ? mDB.<EmpiricalModel>get(previous) : null;
     }
 
     public void addRegionToDBRegionMapping(OrgModel orgModel, EmpiricalModel empiricalModel) {
-        modelMapping.put(orgModel.mId, empiricalModel);
+        put(modelMapping, orgModel.mId, empiricalModel);
     }
 
     public void removeRegionToDBRegionMapping(OrgModel orgModel) {
         modelMapping.remove(orgModel.mId);
     }
+
+    /**
+     * Off-heap memory used by the object mappings.
+     */
+    public long getMappingBytes() {
+        return testMapping.getCapacityBytes() + standardMapping.getCapacityBytes()
+                + regionMapping.getCapacityBytes() + modelMapping.getCapacityBytes();
+    }
+
+    public static File getSourceRecordFile(File dbfile) {
+        return new File(dbfile.getPath() + ".inventory");
+    }
+
+    /**
+     * Hash of the compact UTF-8 source document, compared by incremental conversions to find changed objects.
+     */
+    public static String contentHash(byte[] document) {
+        return Hashing.murmur3_128().hashBytes(document).toString();
+    }
+
+    public SourceRecord getSourceRecord(String type, String sourceId) {
+        Map<String, SourceRecord> records = sourceRecords.get(type);
+        return records != null ? records.get(sourceId) : null;
+    }
+
+    public void putSourceRecord(String type, String sourceId, SourceRecord record) {
+        Map<String, SourceRecord> records = sourceRecords.get(type);
+        if (records == null) {
+            records = new HashMap<String, SourceRecord>();
+            sourceRecords.put(type, records);
+        }
+        records.put(sourceId, record);
+    }
+
+    public int getSourceRecordCount(String type) {
+        Map<String, SourceRecord> records = sourceRecords.get(type);
+        return records != null ? records.size() : 0;
+    }
+
+    /**
+     * Check that every source id of the type has been converted, in this run or an earlier one.
+     */
+    public void verifySourceRecords(String type, Collection<String> sourceIds) throws IOException {
+        int missing = 0;
+        for (String id : sourceIds) {
+            if (getSourceRecord(type, id) == null) {
+                missing++;
+            }
+        }
+        if (missing > 0) {
+            throw new IOException(String.format("%d of %d %ss were not converted", missing, sourceIds.size(), type));
+        }
+    }
+
+    /**
+     * Read source records saved by {@link #saveSourceRecords(File)}, one "type id uuid hash" per line.
+     */
+    public void loadSourceRecords(File file) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), Charsets.UTF_8));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split(" ");
+                if (fields.length == 4) {
+                    putSourceRecord(fields[0], fields[1], new SourceRecord(UUID.fromString(fields[2]), fields[3]));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Write all source records to a temp file and rename it over the file, so a crash never
+     * leaves a partial inventory behind.
+     */
+    public void saveSourceRecords(File file) throws IOException {
+        File tmpFile = new File(file.getPath() + ".tmp");
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmpFile), Charsets.UTF_8));
+        try {
+            for (Map.Entry<String, Map<String, SourceRecord>> type : sourceRecords.entrySet()) {
+                for (Map.Entry<String, SourceRecord> e : type.getValue().entrySet()) {
+                    writer.write(type.getKey() + " " + e.getKey() + " " + e.getValue().target + " " + e.getValue().hash + "\n");
+                }
+            }
+        } finally {
+            writer.close();
+        }
+
+        // renameTo replaces the file on POSIX systems, Windows needs it deleted first
+        if (!tmpFile.renameTo(file)) {
+            if (!file.delete() || !tmpFile.renameTo(file)) {
+                throw new IOException("Cannot rename " + tmpFile + " to " + file);
+            }
+        }
+    }
 }
@@ -0,0 +1,183 @@
+package com.sciaps.Utils;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import java.nio.ByteBuffer;
+import java.util.UUID;
+
+/**
+ * Map from source object id to target object id, kept outside the Java heap.
+ *
+ * The table is a linear probing hash table in a direct ByteBuffer. A slot is 32 bytes: the 128
+ * bit murmur3 hash of the source id followed by the target UUID, so a mapping costs 32 to 64
+ * bytes whatever the length of the id and nothing is left for the garbage collector to trace.
+ * Ids are not stored, two ids are taken to be the same when their 128 bit hashes are equal.
+ *
+ * Not thread safe.
+ */
+public class OffHeapIdMap {
+
+    private static final int SLOT_BYTES = 32;
+    // 1 GB of slots, a ByteBuffer is indexed by int
+    private static final int MAX_CAPACITY = 1 << 25;
+    private static final HashFunction HASH = Hashing.murmur3_128();
+
+    private ByteBuffer mSlots;
+    private int mMask;
+    private int mSize;
+
+    public OffHeapIdMap(int expectedSize) {
+        int capacity = 16;
+        while (capacity < MAX_CAPACITY && capacity * 3L / 4 < expectedSize) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        // direct buffers are zeroed, an all zero key marks an empty slot
+        mSlots = ByteBuffer.allocateDirect(capacity * SLOT_BYTES);
+        mMask = capacity - 1;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Off-heap memory used by the table.
+     */
+    public long getCapacityBytes() {
+        return mSlots.capacity();
+    }
+
+    public UUID get(String id) {
+        ByteBuffer key = hash(id);
+        int slot = find(key.getLong(0), key.getLong(8));
+        if (slot < 0) {
+            return null;
+        }
+        int offset = slot * SLOT_BYTES;
+        return new UUID(mSlots.getLong(offset + 16), mSlots.getLong(offset + 24));
+    }
+
+    public boolean containsKey(String id) {
+        ByteBuffer key = hash(id);
+        return find(key.getLong(0), key.getLong(8)) >= 0;
+    }
+
+    /**
+     * @return the previous target of the id, or null
+     */
+    public UUID put(String id, UUID target) {
+        ByteBuffer key = hash(id);
+        long hi = key.getLong(0);
+        long lo = key.getLong(8);
+
+        int slot = find(hi, lo);
+        UUID retval = null;
+        if (slot >= 0) {
+            int offset = slot * SLOT_BYTES;
+            retval = new UUID(mSlots.getLong(offset + 16), mSlots.getLong(offset + 24));
+        } else {
+            if ((mSize + 1) > (mMask + 1) * 3L / 4) {
+                grow();
+                slot = find(hi, lo);
+            }
+            slot = -slot - 1;
+            mSize++;
+        }
+        write(slot, hi, lo, target.getMostSignificantBits(), target.getLeastSignificantBits());
+        return retval;
+    }
+
+    /**
+     * @return the target of the removed id, or null
+     */
+    public UUID remove(String id) {
+        ByteBuffer key = hash(id);
+        int slot = find(key.getLong(0), key.getLong(8));
+        if (slot < 0) {
+            return null;
+        }
+        int offset = slot * SLOT_BYTES;
+        UUID retval = new UUID(mSlots.getLong(offset + 16), mSlots.getLong(offset + 24));
+
+        // shift later entries of the probe sequence back into the hole, so lookups never stop
+        // early at it
+        int hole = slot;
+        int next = slot;
+        while (true) {
+            next = (next + 1) & mMask;
+            int nextOffset = next * SLOT_BYTES;
+            long hi = mSlots.getLong(nextOffset);
+            long lo = mSlots.getLong(nextOffset + 8);
+            if (hi == 0 && lo == 0) {
+                break;
+            }
+            int home = (int) hi & mMask;
+            boolean homeAfterHole = hole <= next ? (home > hole && home <= next) : (home > hole || home <= next);
+            if (!homeAfterHole) {
+                write(hole, hi, lo, mSlots.getLong(nextOffset + 16), mSlots.getLong(nextOffset + 24));
+                hole = next;
+            }
+        }
+        write(hole, 0, 0, 0, 0);
+        mSize--;
+        return retval;
+    }
+
+    private static ByteBuffer hash(String id) {
+        ByteBuffer retval = ByteBuffer.wrap(HASH.hashString(id, Charsets.UTF_8).asBytes());
+        if (retval.getLong(0) == 0 && retval.getLong(8) == 0) {
+            retval.putLong(8, 1);
+        }
+        return retval;
+    }
+
+    /**
+     * @return the slot holding the key, or -(empty slot where it belongs) - 1
+     */
+    private int find(long hi, long lo) {
+        int slot = (int) hi & mMask;
+        while (true) {
+            int offset = slot * SLOT_BYTES;
+            long slotHi = mSlots.getLong(offset);
+            long slotLo = mSlots.getLong(offset + 8);
+            if (slotHi == hi && slotLo == lo) {
+                return slot;
+            }
+            if (slotHi == 0 && slotLo == 0) {
+                return -slot - 1;
+            }
+            slot = (slot + 1) & mMask;
+        }
+    }
+
+    private void write(int slot, long hi, long lo, long msb, long lsb) {
+        int offset = slot * SLOT_BYTES;
+        mSlots.putLong(offset, hi);
+        mSlots.putLong(offset + 8, lo);
+        mSlots.putLong(offset + 16, msb);
+        mSlots.putLong(offset + 24, lsb);
+    }
+
+    private void grow() {
+        int capacity = mMask + 1;
+        if (capacity >= MAX_CAPACITY) {
+            throw new IllegalStateException("id map is full: " + mSize + " entries");
+        }
+
+        ByteBuffer old = mSlots;
+        allocate(capacity << 1);
+        for (int offset = 0; offset < old.capacity(); offset += SLOT_BYTES) {
+            long hi = old.getLong(offset);
+            long lo = old.getLong(offset + 8);
+            if (hi != 0 || lo != 0) {
+                write(-find(hi, lo) - 1, hi, lo, old.getLong(offset + 16), old.getLong(offset + 24));
+            }
+        }
+    }
+}
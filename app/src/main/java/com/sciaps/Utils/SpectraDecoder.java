@@ -0,0 +1,208 @@
+package com.sciaps.Utils;
+
+import com.sciaps.data.LIBZDB;
+import com.sciaps.data.OrgLIBZTest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decodes the spectra of tests on a pool of worker threads while the caller writes the results.
+ *
+ * The tests are read ahead by a bounded window and the results are handed back in the same order
+ * as the input, so the caller can perform all database inserts on a single thread and produce the
+ * same output as a serial conversion. With one thread (or less) everything runs on the caller's
+ * thread.
+ */
+public class SpectraDecoder {
+
+    static Logger logger = LoggerFactory.getLogger(SpectraDecoder.class);
+
+    private final DBObjectConverter mConverter;
+    private final LIBZDB mLibzdb;
+    private final int mWindow;
+    private final ExecutorService mExecutor;
+    private ConversionMetrics mMetrics;
+    private DecodeIterator mIterator;
+
+    public SpectraDecoder(DBObjectConverter converter, LIBZDB libzdb, int numThreads) {
+        mConverter = converter;
+        mLibzdb = libzdb;
+
+        if (numThreads > 1) {
+            mWindow = numThreads * 2;
+            mExecutor = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "spectra-decoder-" + mCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            logger.info("Decoding spectra with {} threads", numThreads);
+        } else {
+            mWindow = 1;
+            mExecutor = null;
+        }
+    }
+
+    /**
+     * Record the decode time and the number of spectra of each test.
+     */
+    public void setMetrics(ConversionMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    /**
+     * Decode the next test. The objects it references stay pinned until the result is
+     * released, if the tests come from an iterable that holds pins.
+     */
+    private DBObjectConverter.DecodedSpectra decodeSpectra(OrgLIBZTest test, LIBZDB.Pins pins) {
+        DBObjectConverter.DecodedSpectra retval;
+        try {
+            retval = decodeSpectra(test);
+        } catch (RuntimeException e) {
+            pins.release();
+            throw e;
+        }
+        retval.setPins(pins);
+        return retval;
+    }
+
+    private DBObjectConverter.DecodedSpectra decodeSpectra(OrgLIBZTest test) {
+        long start = System.nanoTime();
+        DBObjectConverter.DecodedSpectra retval = mConverter.decodeSpectra(test, mLibzdb);
+        if (mMetrics != null) {
+            mMetrics.time("decode.test", start);
+            mMetrics.record("spectra.per.test", retval.getSpectraCount());
+            mMetrics.count("spectra.decoded", retval.getSpectraCount());
+        }
+        return retval;
+    }
+
+    public Iterable<DBObjectConverter.DecodedSpectra> decode(final Iterable<OrgLIBZTest> tests) {
+        return new Iterable<DBObjectConverter.DecodedSpectra>() {
+            @Override
+            public Iterator<DBObjectConverter.DecodedSpectra> iterator() {
+                mIterator = new DecodeIterator(tests.iterator());
+                return mIterator;
+            }
+        };
+    }
+
+    /**
+     * Stop the worker threads. Tests decoded ahead that the caller never took are released,
+     * tests still being decoded are dropped.
+     */
+    public void shutdown() {
+        if (mExecutor != null) {
+            mExecutor.shutdownNow();
+        }
+        if (mIterator != null) {
+            mIterator.discard();
+            mIterator = null;
+        }
+    }
+
+    private class DecodeIterator implements Iterator<DBObjectConverter.DecodedSpectra> {
+
+        private final Iterator<OrgLIBZTest> mTests;
+        private final ArrayDeque<Future<DBObjectConverter.DecodedSpectra>> mPending = new ArrayDeque<Future<DBObjectConverter.DecodedSpectra>>();
+        // pins of the pending tests, taken on the caller's thread before the iterator moves on
+        private final ArrayDeque<LIBZDB.Pins> mPendingPins = new ArrayDeque<LIBZDB.Pins>();
+
+        DecodeIterator(Iterator<OrgLIBZTest> tests) {
+            mTests = tests;
+        }
+
+        private void fill() {
+            if (mExecutor == null) {
+                return;
+            }
+
+            while (mPending.size() < mWindow && mTests.hasNext()) {
+                final OrgLIBZTest test = mTests.next();
+                mPendingPins.add(mLibzdb.takePins(test));
+                mPending.add(mExecutor.submit(new Callable<DBObjectConverter.DecodedSpectra>() {
+                    @Override
+                    public DBObjectConverter.DecodedSpectra call() throws Exception {
+                        return decodeSpectra(test);
+                    }
+                }));
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (mExecutor == null) {
+                return mTests.hasNext();
+            }
+
+            fill();
+            return !mPending.isEmpty();
+        }
+
+        @Override
+        public DBObjectConverter.DecodedSpectra next() {
+            if (mExecutor == null) {
+                OrgLIBZTest test = mTests.next();
+                return decodeSpectra(test, mLibzdb.takePins(test));
+            }
+
+            fill();
+            Future<DBObjectConverter.DecodedSpectra> future = mPending.poll();
+            if (future == null) {
+                throw new NoSuchElementException();
+            }
+            LIBZDB.Pins pins = mPendingPins.poll();
+
+            DBObjectConverter.DecodedSpectra retval;
+            try {
+                retval = future.get();
+            } catch (InterruptedException e) {
+                pins.release();
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("interrupted while decoding spectra", e);
+            } catch (ExecutionException e) {
+                pins.release();
+                if (e.getCause() instanceof CancellationException) {
+                    throw (CancellationException) e.getCause();
+                }
+                throw new RuntimeException("failed to decode spectra", e.getCause());
+            }
+            retval.setPins(pins);
+            return retval;
+        }
+
+        void discard() {
+            LIBZDB.Pins pins;
+            while ((pins = mPendingPins.poll()) != null) {
+                pins.release();
+            }
+            Future<DBObjectConverter.DecodedSpectra> future;
+            while ((future = mPending.poll()) != null) {
+                if (!future.isDone()) {
+                    future.cancel(false);
+                    continue;
+                }
+                try {
+                    future.get().release();
+                } catch (Exception e) {
+                    // failed or cancelled while decoding, nothing to release
+                }
+            }
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package com.sciaps.Utils;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.sciaps.data.LIBZDB;
+
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Spectrum files with identical contents within one conversion. Each distinct file is decoded
+ * and written once, the acquisitions of its copies refer to the SpectraData already written.
+ *
+ * Files are keyed by the 128 bit murmur3 hash of their raw bytes. A hash match is confirmed by
+ * comparing the bytes with the file that was written first, read again from the archive, so a
+ * collision costs one comparison and nothing else. Decoder threads look files up to skip
+ * decoding copies of files that are already written. Only the thread that owns the target
+ * database registers files, after their SpectraData are inserted, and it looks decoded files up
+ * once more because a copy may have been written while they were decoded. Only the ids of the
+ * SpectraData are kept, so written spectra can leave the heap.
+ */
+public class SpectrumDedup {
+
+    private static final HashFunction HASH = Hashing.murmur3_128();
+
+    private static class Written {
+        final String fileId;
+        final UUID[] spectra;
+        final long sampleBytes;
+
+        Written(String fileId, UUID[] spectra, long sampleBytes) {
+            this.fileId = fileId;
+            this.spectra = spectra;
+            this.sampleBytes = sampleBytes;
+        }
+    }
+
+    private final LIBZDB mLibzdb;
+    private final ConcurrentMap<HashCode, Written> mWritten = new ConcurrentHashMap<HashCode, Written>();
+    private final AtomicLong mFiles = new AtomicLong();
+    private final AtomicLong mDuplicateFiles = new AtomicLong();
+    private final AtomicLong mReusedSpectra = new AtomicLong();
+    private final AtomicLong mSavedFileBytes = new AtomicLong();
+    private final AtomicLong mSavedSampleBytes = new AtomicLong();
+    private final AtomicLong mCollisions = new AtomicLong();
+
+    public SpectrumDedup(LIBZDB libzdb) {
+        mLibzdb = libzdb;
+    }
+
+    public static HashCode hash(byte[] data) {
+        return HASH.hashBytes(data);
+    }
+
+    private Written lookup(HashCode hash, String fileId, byte[] data) {
+        Written retval = mWritten.get(hash);
+        if (retval == null || retval.fileId.equals(fileId)) {
+            return retval;
+        }
+        if (!Arrays.equals(mLibzdb.getSpectrumFile(retval.fileId), data)) {
+            mCollisions.incrementAndGet();
+            return null;
+        }
+        return retval;
+    }
+
+    /**
+     * The ids of the SpectraData written for a file with the same contents, or null if there is
+     * none yet.
+     */
+    public UUID[] find(HashCode hash, String fileId, byte[] data) {
+        Written written = lookup(hash, fileId, data);
+        return written != null ? written.spectra : null;
+    }
+
+    /**
+     * Same as {@link #find(HashCode, String, byte[])} for a file whose bytes are no longer held,
+     * they are read again from the archive only if the hash matches another file.
+     */
+    public UUID[] find(HashCode hash, String fileId) {
+        Written written = mWritten.get(hash);
+        if (written == null || written.fileId.equals(fileId)) {
+            return written != null ? written.spectra : null;
+        }
+        return find(hash, fileId, mLibzdb.getSpectrumFile(fileId));
+    }
+
+    /**
+     * Record that a file was written as the given SpectraData. Called on the writing thread.
+     */
+    public void register(HashCode hash, String fileId, UUID[] spectra, long sampleBytes) {
+        mFiles.incrementAndGet();
+        mWritten.putIfAbsent(hash, new Written(fileId, spectra, sampleBytes));
+    }
+
+    /**
+     * Record that a file of fileBytes was not written because a copy was. Called on the writing
+     * thread.
+     */
+    public void reused(HashCode hash, long fileBytes) {
+        Written written = mWritten.get(hash);
+        mFiles.incrementAndGet();
+        mDuplicateFiles.incrementAndGet();
+        mSavedFileBytes.addAndGet(fileBytes);
+        if (written != null) {
+            mReusedSpectra.addAndGet(written.spectra.length);
+            mSavedSampleBytes.addAndGet(written.sampleBytes);
+        }
+    }
+
+    public long getFiles() {
+        return mFiles.get();
+    }
+
+    public long getDuplicateFiles() {
+        return mDuplicateFiles.get();
+    }
+
+    public long getReusedSpectra() {
+        return mReusedSpectra.get();
+    }
+
+    /**
+     * Raw bytes of the spectrum files that were not written again.
+     */
+    public long getSavedFileBytes() {
+        return mSavedFileBytes.get();
+    }
+
+    /**
+     * Decoded samples of the SpectraData that were not written again.
+     */
+    public long getSavedSampleBytes() {
+        return mSavedSampleBytes.get();
+    }
+
+    /**
+     * Files whose hash matched a written file with different contents.
+     */
+    public long getCollisions() {
+        return mCollisions.get();
+    }
+
+    public String getStatistics() {
+        return String.format("%d of %d spectrum files were copies, %d spectra reused, saved %.1f MB of spectrum files and %.1f MB of samples, %d hash collisions",
+                mDuplicateFiles.get(), mFiles.get(), mReusedSpectra.get(),
+                mSavedFileBytes.get() / 1e6, mSavedSampleBytes.get() / 1e6, mCollisions.get());
+    }
+}
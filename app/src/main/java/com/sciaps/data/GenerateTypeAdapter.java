@@ -0,0 +1,15 @@
+package com.sciaps.data;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Generate a reflection free Gson TypeAdapter for the class at compile time. The adapters of a
+ * package are returned by its GeneratedTypeAdapters factory, see the processor project.
+ */
+@Retention(RetentionPolicy.SOURCE)
+@Target(ElementType.TYPE)
+public @interface GenerateTypeAdapter {
+}
@@ -0,0 +1,92 @@
+package com.sciaps.data;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Inflater;
+
+/**
+ * One raw deflate Inflater and one compressed input buffer per thread, reused for every zip
+ * entry the thread decompresses instead of allocating an Inflater (and its native zlib state)
+ * per spectrum file. Counts the work for the conversion log.
+ *
+ * Only the zip layer goes through the pool. The shots inside a spectrum file are decompressed
+ * by MultiShotSpectrumFileInputStream and ShotDataHelper of the common library, which allocate
+ * their own inflaters; they are not counted here.
+ */
+public final class InflaterPool {
+
+    private static final int INITIAL_INPUT_SIZE = 64 * 1024;
+
+    private static final AtomicLong sInflatersCreated = new AtomicLong();
+    private static final AtomicLong sInflaterReuses = new AtomicLong();
+    private static final AtomicLong sEntries = new AtomicLong();
+    private static final AtomicLong sBytesIn = new AtomicLong();
+    private static final AtomicLong sBytesOut = new AtomicLong();
+
+    private static final ThreadLocal<InflaterPool> sPool = new ThreadLocal<InflaterPool>() {
+        @Override
+        protected InflaterPool initialValue() {
+            return new InflaterPool();
+        }
+    };
+
+    private Inflater mInflater;
+    private byte[] mInput = new byte[0];
+
+    private InflaterPool() {
+    }
+
+    /**
+     * The Inflater of the calling thread, reset and ready for a new raw deflate stream. It must
+     * not be used after the thread calls this method again and must not be ended.
+     */
+    static Inflater getInflater() {
+        InflaterPool pool = sPool.get();
+        if (pool.mInflater == null) {
+            pool.mInflater = new Inflater(true);
+            sInflatersCreated.incrementAndGet();
+        } else {
+            pool.mInflater.reset();
+            sInflaterReuses.incrementAndGet();
+        }
+        return pool.mInflater;
+    }
+
+    /**
+     * A buffer of at least the given size for the compressed data of an entry, owned by the
+     * calling thread.
+     */
+    static byte[] getInputBuffer(int size) {
+        InflaterPool pool = sPool.get();
+        if (pool.mInput.length < size) {
+            pool.mInput = new byte[Math.max(size, Math.max(INITIAL_INPUT_SIZE, pool.mInput.length * 2))];
+        }
+        return pool.mInput;
+    }
+
+    static void countEntry(long compressed, long size) {
+        sEntries.incrementAndGet();
+        sBytesIn.addAndGet(compressed);
+        sBytesOut.addAndGet(size);
+    }
+
+    public static long getEntries() {
+        return sEntries.get();
+    }
+
+    public static long getBytesIn() {
+        return sBytesIn.get();
+    }
+
+    public static long getBytesOut() {
+        return sBytesOut.get();
+    }
+
+    /**
+     * Totals since the application started.
+     */
+    public static String getStatistics() {
+        return String.format("%d zip entries, %.1f MB inflated from %.1f MB, %d inflaters created, %d reused",
+                sEntries.get(), sBytesOut.get() / 1e6, sBytesIn.get() / 1e6,
+                sInflatersCreated.get(), sInflaterReuses.get());
+    }
+}
@@ -1,43 +1,84 @@
 package com.sciaps.data;
 
 
+import com.google.common.base.Predicate;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Iterators;
 import com.google.gson.*;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 import com.sciaps.common.objtracker.DBObj;
 import com.sciaps.common.objtracker.IdRefTypeAdapterFactory;
 import com.sciaps.common.spectrum.LIBZPixelSpectrum;
 import com.sciaps.common.spectrum.Spectrum;
 import com.sciaps.common.utils.MultiShotSpectrumFileInputStream;
 import com.sciaps.common.utils.ShotDataHelper;
-import org.mapdb.BTreeMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.ByteArrayInputStream;
+import java.io.Closeable;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.Map;
-import java.util.TreeMap;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class LIBZDB {
 
     static Logger logger = LoggerFactory.getLogger(LIBZDB.class);
 
-    private final TreeMap<String, JsonElement> mAllObjects = new TreeMap<String, JsonElement>();
-    private final TreeMap<String, DBObj> mLiveInstances = new TreeMap<String, DBObj>();
+    private final TreeMap<String, SDBFile.DBEntry> mAllObjects = new TreeMap<String, SDBFile.DBEntry>();
+    private final HashMap<String, TreeSet<String>> mTypeIndex = new HashMap<String, TreeSet<String>>();
+    private float mDatabaseVersion = -1;
+    public static final int DEFAULT_LIVE_INSTANCE_CACHE_SIZE = 10000;
+
+    private final LiveInstanceCache mLiveInstances = new LiveInstanceCache(DEFAULT_LIVE_INSTANCE_CACHE_SIZE);
     private final DBDataMarshaller mMarshaller;
-    private BTreeMap<String, byte[]> mSpectrumTable;
+    private SDBFile mFile;
+    // objects are looked up in mFile instead of being copied to mAllObjects
+    private boolean mFileBacked;
+    private boolean mAllowForwardReferences = false;
+    private final AtomicLong mSpectrumFilesDecoded = new AtomicLong();
+    private final AtomicLong mObjectsParsed = new AtomicLong();
+    private final AtomicLong mParseNanos = new AtomicLong();
+    // pins of objects returned by iterators that hold them, until the consumer takes them
+    private final Map<DBObj, Pins> mHeldPins = Collections.synchronizedMap(new IdentityHashMap<DBObj, Pins>());
 
     private class DBDataMarshaller implements DBObj.IdLookup, DBObj.ObjLoader {
 
-        private final Gson mGson;
+        private Gson mGson;
+        private boolean mGeneratedAdapters;
+        // objects are loaded on decoder threads too, each thread pins into its own scope
+        private final ThreadLocal<ArrayList<String>> mPinScope = new ThreadLocal<ArrayList<String>>();
 
         DBDataMarshaller() {
-            mGson = new GsonBuilder()
+            setGeneratedAdapters(true);
+        }
+
+        /**
+         * Deserialize the Org* classes with the adapters generated at compile time, which resolve
+         * references while reading, or with reflection and {@link DBObj#loadFields}.
+         */
+        void setGeneratedAdapters(boolean generated) {
+            GsonBuilder builder = new GsonBuilder();
+            if (generated) {
+                builder.registerTypeAdapterFactory(new GeneratedTypeAdapters(this));
+            }
+            mGson = builder
                     .registerTypeAdapterFactory(new IdRefTypeAdapterFactory())
                     .serializeNulls()
                     .serializeSpecialFloatingPointValues()
                     .create();
+            mGeneratedAdapters = generated;
+        }
+
+        /**
+         * Resolve the references of a deserialized object, unless its generated adapter already
+         * did.
+         */
+        void loadFields(DBObj obj) {
+            if (!mGeneratedAdapters || !GeneratedTypeAdapters.isGenerated(obj.getClass())) {
+                obj.loadFields(this);
+            }
         }
 
         @Override
@@ -56,18 +97,87 @@ public class LIBZDB {
             }
             DBObj retval = mLiveInstances.get(id);
             if (retval == null) {
-                JsonElement doc = mAllObjects.get(id);
-                retval = (DBObj) mGson.fromJson(doc, type);
+                SDBFile.DBEntry doc = getEntry(id);
+                if (doc == null && mAllowForwardReferences) {
+                    return createForwardReference(id, type);
+                }
+                retval = read(id, doc, type);
                 retval.mId = id;
-                retval.loadFields(this);
-                mLiveInstances.put(id, retval);
+                loadFields(retval);
+                retval = mLiveInstances.putIfAbsent(id, retval);
             }
+            ArrayList<String> pinScope = mPinScope.get();
+            if (pinScope != null) {
+                retval = mLiveInstances.pin(id, retval);
+                pinScope.add(id);
+            }
+            return retval;
+        }
+
+        /**
+         * Everything loaded through {@link #load(String, Class)} until {@link #endPinScope()} is
+         * pinned in the live instance cache. The scope belongs to the calling thread.
+         */
+        void beginPinScope() {
+            mPinScope.set(new ArrayList<String>());
+        }
+
+        ArrayList<String> endPinScope() {
+            ArrayList<String> retval = mPinScope.get();
+            mPinScope.remove();
             return retval;
         }
 
+        void unpinAll(ArrayList<String> ids) {
+            if (ids != null) {
+                for (String id : ids) {
+                    mLiveInstances.unpin(id);
+                }
+            }
+        }
+
+        /**
+         * Like {@link #load(String, Class)} but a newly deserialized object is not added to the
+         * live instances. Used for top level iteration where nothing refers back to the object.
+         */
+        public Object loadTransient(String id, Class<?> type) {
+            DBObj retval = mLiveInstances.get(id);
+            if (retval == null) {
+                retval = read(id, getEntry(id), type);
+                retval.mId = id;
+                loadFields(retval);
+            }
+            return retval;
+        }
+
+        /**
+         * Deserialize straight from the stored JSON text without building a JsonElement tree.
+         */
+        private DBObj read(String id, SDBFile.DBEntry doc, Class<?> type) {
+            if (doc == null) {
+                throw new RuntimeException("no object with id: " + id);
+            }
+            long start = System.nanoTime();
+            JsonReader in = doc.openReader();
+            DBObj retval = (DBObj) mGson.fromJson(in, type);
+            mParseNanos.addAndGet(System.nanoTime() - start);
+            mObjectsParsed.incrementAndGet();
+            return retval;
+        }
+
+        private DBObj createForwardReference(String id, Class<?> type) {
+            try {
+                DBObj retval = (DBObj) type.newInstance();
+                retval.mId = id;
+                return retval;
+            } catch (Exception e) {
+                throw new RuntimeException("cannot create forward reference of type: " + type.getName(), e);
+            }
+        }
+
         public <T extends DBObj> T deserialize(Class<T> objClass, JsonElement data) {
             T retval = mGson.fromJson(data, objClass);
-            retval.loadFields(this);
+            loadFields(retval);
             return retval;
         }
     }
@@ -77,170 +187,700 @@ public class LIBZDB {
 
     }
 
+    /**
+     * Index all objects of the file. They are copied to the catalog, unless the file has spilled
+     * its entries to disk, then only the ids are kept and documents are read from the file when
+     * needed.
+     */
     public void load(SDBFile file) {
         mAllObjects.clear();
+        mTypeIndex.clear();
+        mDatabaseVersion = -1;
+        mFileBacked = file.hasSpilledEntries();
+        if (mFileBacked) {
+            logger.info("Reading objects from the spilled entries of the file");
+        }
 
         Iterator<SDBFile.DBEntry> it = file.getAll();
         while (it.hasNext()) {
             SDBFile.DBEntry entry = it.next();
-            mAllObjects.put(entry.key, entry.value);
+            if (mFileBacked) {
+                index(entry);
+            } else {
+                putObject(entry);
+            }
+        }
+
+        mFile = file;
+    }
+
+    /**
+     * Attach to the spectrum table of the file without copying any objects. Objects are then
+     * supplied one at a time with {@link #putObject(SDBFile.DBEntry)} as they are streamed
+     * from the archive. References to objects that have not been seen yet are resolved to
+     * placeholder instances that only carry the id (see {@link #isForwardReference(DBObj)}).
+     */
+    public void attach(SDBFile file) {
+        mAllObjects.clear();
+        mTypeIndex.clear();
+        mDatabaseVersion = -1;
+        mLiveInstances.clear();
+        mFile = file;
+        mFileBacked = false;
+        mAllowForwardReferences = true;
+    }
+
+    /**
+     * Add an object to the catalog. The type and schemaVersion of the document are read here once
+     * so the getAll* accessors only visit objects of their type. The document itself stays JSON
+     * text and is only parsed when the object is loaded.
+     */
+    public void putObject(SDBFile.DBEntry entry) {
+        SDBFile.DBEntry previous = mAllObjects.put(entry.key, entry);
+        if (previous != null) {
+            unindex(entry.key, previous);
+        }
+        index(entry);
+    }
+
+    private void index(SDBFile.DBEntry entry) {
+        String[] header = readHeader(entry);
+        if (header[0] != null) {
+            TreeSet<String> ids = mTypeIndex.get(header[0]);
+            if (ids == null) {
+                ids = new TreeSet<String>();
+                mTypeIndex.put(header[0], ids);
+            }
+            ids.add(entry.key);
+        }
+
+        if (header[1] != null) {
+            float schemaVersion = Float.parseFloat(header[1]);
+            if (schemaVersion >= 0) {
+                mDatabaseVersion = schemaVersion;
+            }
+        }
+    }
+
+    public void removeObject(String id) {
+        SDBFile.DBEntry previous = mAllObjects.remove(id);
+        if (previous != null) {
+            unindex(id, previous);
+        }
+        mLiveInstances.remove(id);
+    }
+
+    private void unindex(String id, SDBFile.DBEntry entry) {
+        String type = readHeader(entry)[0];
+        if (type != null) {
+            TreeSet<String> ids = mTypeIndex.get(type);
+            if (ids != null) {
+                ids.remove(id);
+            }
+        }
+    }
+
+    /**
+     * The top level "type" and "schemaVersion" values of the document, skipping everything else.
+     */
+    private static String[] readHeader(SDBFile.DBEntry entry) {
+        String[] retval = new String[2];
+        JsonReader in = entry.openReader();
+        try {
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                if (in.peek() == JsonToken.NULL) {
+                    in.nextNull();
+                } else if ("type".equals(name)) {
+                    retval[0] = in.nextString();
+                } else if ("schemaVersion".equals(name)) {
+                    retval[1] = in.nextString();
+                } else {
+                    in.skipValue();
+                }
+            }
+        } catch (IOException e) {
+            throw new JsonSyntaxException("cannot read object " + entry.key, e);
+        }
+        return retval;
+    }
+
+    /**
+     * Parse the value of one top level field of the document without parsing the others.
+     */
+    private JsonElement getField(String id, String field) {
+        SDBFile.DBEntry entry = getEntry(id);
+        if (entry == null) {
+            return null;
+        }
+        JsonReader in = entry.openReader();
+        try {
+            in.beginObject();
+            while (in.hasNext()) {
+                if (field.equals(in.nextName())) {
+                    return new JsonParser().parse(in);
+                }
+                in.skipValue();
+            }
+        } catch (IOException e) {
+            throw new JsonSyntaxException("cannot read object " + id, e);
+        }
+        return null;
+    }
+
+    private JsonObject getShotTable(String id) {
+        JsonElement retval = getField(id, "shotTable");
+        return retval != null && retval.isJsonObject() ? retval.getAsJsonObject() : null;
+    }
 
+    /**
+     * Parse the shot table of the test's document, or null if it has none. Pass it to the methods
+     * that take a shot table so it is parsed once per test.
+     */
+    public JsonObject getShotTable(OrgLIBZTest test) {
+        return getShotTable(test.mId);
+    }
+
+    private SDBFile.DBEntry getEntry(String id) {
+        SDBFile.DBEntry retval = mAllObjects.get(id);
+        if (retval == null && mFileBacked) {
+            retval = mFile.get(id);
         }
+        return retval;
+    }
+
+    private Set<String> getIdsOfType(String type) {
+        TreeSet<String> ids = mTypeIndex.get(type);
+        if (ids == null) {
+            return Collections.emptySet();
+        }
+        return ids;
+    }
+
+    /**
+     * Use the generated type adapters (the default) or reflective Gson to deserialize objects.
+     * Call before any object is loaded.
+     */
+    public void setGeneratedAdapters(boolean generated) {
+        mMarshaller.setGeneratedAdapters(generated);
+    }
+
+    public void setLiveInstanceCacheSize(int maxSize) {
+        mLiveInstances.setMaxSize(maxSize);
+    }
+
+    public LiveInstanceCache getLiveInstanceCache() {
+        return mLiveInstances;
+    }
+
+    public boolean hasObject(String id) {
+        return getEntry(id) != null;
+    }
+
+    public boolean isForwardReference(DBObj obj) {
+        return obj != null && getEntry(obj.mId) == null;
+    }
+
+    public <T extends DBObj> T get(String id, Class<T> type) {
+        return type.cast(mMarshaller.load(id, type));
+    }
 
-        mSpectrumTable = file.mSpectrumTable;
+    /**
+     * The "type" of the object's document, or null if it has none or the object is unknown.
+     */
+    public String getObjectType(String id) {
+        SDBFile.DBEntry e = getEntry(id);
+        return e != null ? readHeader(e)[0] : null;
     }
 
+    /**
+     * Parse the document of the object into a tree.
+     */
     public JsonObject getObject(String id) {
-        JsonElement e = mAllObjects.get(id);
+        SDBFile.DBEntry e = getEntry(id);
         if (e != null) {
-            return e.getAsJsonObject();
+            return e.getValue().getAsJsonObject();
         } else {
             return null;
         }
     }
 
+    /**
+     * The document of the object as compact UTF-8 JSON, without parsing it. Must not be modified.
+     */
+    public byte[] getObjectData(String id) {
+        SDBFile.DBEntry e = getEntry(id);
+        return e != null ? e.getData() : null;
+    }
+
+    /**
+     * Bytes held by the JSON documents of the catalog.
+     */
+    public long getCatalogBytes() {
+        long retval = mFileBacked ? mFile.getStoredBytes() : 0;
+        for (SDBFile.DBEntry e : mAllObjects.values()) {
+            retval += e.getStoredSize();
+        }
+        return retval;
+    }
+
     public Spectrum getAvgSpectrum(OrgLIBZTest test) throws IOException {
-        JsonObject obj = getObject(test.mId);
-        JsonObject shotTable = obj.getAsJsonObject("shotTable");
+        JsonObject shotTable = getShotTable(test.mId);
 
         String allId = shotTable.getAsJsonPrimitive("all").getAsString();
-        ByteArrayInputStream bin = new ByteArrayInputStream(mSpectrumTable.get(allId));
+        ByteArrayInputStream bin = new ByteArrayInputStream(mFile.getSpectrum(allId));
         MultiShotSpectrumFileInputStream multiShotIn = new MultiShotSpectrumFileInputStream(bin);
         Spectrum retval = multiShotIn.getShot(-1);
         multiShotIn.close();
         return retval;
     }
 
-    public ArrayList<LIBZPixelSpectrum> getSpectra(OrgLIBZTest test) throws IOException {
+    /**
+     * Iterates over the shots of one test, decoding each shot only when it is requested. Must be
+     * closed when done.
+     */
+    public static abstract class ShotIterator implements Iterator<LIBZPixelSpectrum>, Closeable {
 
-        JsonObject obj = getObject(test.mId);
-        JsonObject shotTable = obj.getAsJsonObject("shotTable");
-        JsonPrimitive all = shotTable.getAsJsonPrimitive("all");
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Returns the ids of the spectrum files that hold the shots of the test: a single multi-shot
+     * file in the current format, or one file per shot in the old format.
+     */
+    public static List<String> getSpectrumIds(JsonObject shotTable) {
+        List<String> retval = new ArrayList<String>();
+        if (shotTable == null) {
+            return retval;
+        }
 
+        JsonPrimitive all = shotTable.getAsJsonPrimitive("all");
         if (all != null) {
-            return getSpectra(shotTable);
+            retval.add(all.getAsString());
         } else {
-            return getSpectraOldFormat(shotTable);
+            for (Map.Entry<String, JsonElement> entry : shotTable.entrySet()) {
+                if (entry.getKey().compareTo("shot_avg") != 0) {
+                    retval.add(entry.getValue().getAsString());
+                }
+            }
         }
+        return retval;
     }
 
-    private ArrayList<LIBZPixelSpectrum> getSpectra(JsonObject shotTable) throws IOException {
-        ArrayList<LIBZPixelSpectrum> retval = new ArrayList<LIBZPixelSpectrum>();
-        String allId = shotTable.getAsJsonPrimitive("all").getAsString();
+    public List<String> getSpectrumIds(OrgLIBZTest test) {
+        return getSpectrumIds(test.mId);
+    }
 
-        ByteArrayInputStream bin = new ByteArrayInputStream(mSpectrumTable.get(allId));
-        MultiShotSpectrumFileInputStream multiShotIn = new MultiShotSpectrumFileInputStream(bin);
+    /**
+     * Like {@link #getSpectrumIds(OrgLIBZTest)} but only parses the shot table of the document.
+     */
+    public List<String> getSpectrumIds(String testId) {
+        return getSpectrumIds(getShotTable(testId));
+    }
 
-        multiShotIn.seekTo(0);
-        LIBZPixelSpectrum spectrum = multiShotIn.getNextShot();
-        while (spectrum != null) {
-            retval.add(spectrum);
-            spectrum = multiShotIn.getNextShot();
+    /**
+     * Number of shots of the test without decoding any spectrum. For the old format this is the
+     * number of shot files. For the current format the count expected from the acquisition config
+     * is returned. Only use it as a size hint.
+     */
+    public int getShotCount(OrgLIBZTest test) {
+        return getShotCount(test, getShotTable(test.mId));
+    }
+
+    public static int getShotCount(OrgLIBZTest test, JsonObject shotTable) {
+        if (isMultiShot(shotTable)) {
+            // The shot count is in the header of the multi-shot file, but its layout is private to
+            // MultiShotSpectrumFileInputStream. Reading it meant opening the file through that
+            // stream once more before getShots decoded it, a second decode of every file. The
+            // config count needs no file, and a size hint is all callers use this for.
+            return test.getNumShots();
+        } else {
+            return getSpectrumIds(shotTable).size();
+        }
+    }
+
+    /**
+     * Number of spectrum files that have been opened for decoding since this LIBZDB was created.
+     */
+    public long getSpectrumFilesDecoded() {
+        return mSpectrumFilesDecoded.get();
+    }
+
+    /**
+     * Number of documents deserialized since this LIBZDB was created, and the time spent on it.
+     */
+    public long getObjectsParsed() {
+        return mObjectsParsed.get();
+    }
+
+    public long getParseNanos() {
+        return mParseNanos.get();
+    }
+
+    private byte[] openSpectrumFile(String id) {
+        mSpectrumFilesDecoded.incrementAndGet();
+        return mFile.getSpectrum(id);
+    }
+
+    /**
+     * The raw contents of a spectrum file, without decoding it.
+     */
+    public byte[] getSpectrumFile(String id) {
+        return mFile.getSpectrum(id);
+    }
+
+    /**
+     * True if the shots of the test are stored in a single multi-shot file.
+     */
+    public boolean isMultiShot(OrgLIBZTest test) {
+        return isMultiShot(getShotTable(test.mId));
+    }
+
+    public static boolean isMultiShot(JsonObject shotTable) {
+        return shotTable != null && shotTable.getAsJsonPrimitive("all") != null;
+    }
+
+    /**
+     * Decode the shots of one spectrum file given its contents, see {@link #getSpectrumIds}. A
+     * multi-shot file holds all shots of a test, an old format file one shot or none.
+     */
+    public ShotIterator decodeSpectrumFile(byte[] data, boolean multiShot) throws IOException {
+        mSpectrumFilesDecoded.incrementAndGet();
+        if (multiShot) {
+            return new MultiShotIterator(data);
+        } else {
+            return new SingleShotIterator(data);
         }
-        multiShotIn.close();
-        return retval;
     }
 
-    private ArrayList<LIBZPixelSpectrum> getSpectraOldFormat(JsonObject shotTable) throws IOException {
+    public ShotIterator getShots(OrgLIBZTest test) throws IOException {
+        return getShots(getShotTable(test.mId));
+    }
+
+    /**
+     * Decode the shots of a test given its parsed shot table, see {@link #getShotTable(OrgLIBZTest)}.
+     */
+    public ShotIterator getShots(JsonObject shotTable) throws IOException {
+        if (isMultiShot(shotTable)) {
+            return new MultiShotIterator(openSpectrumFile(shotTable.getAsJsonPrimitive("all").getAsString()));
+        } else {
+            return new OldFormatShotIterator(getSpectrumIds(shotTable));
+        }
+    }
+
+    public ArrayList<LIBZPixelSpectrum> getSpectra(OrgLIBZTest test) throws IOException {
         ArrayList<LIBZPixelSpectrum> retval = new ArrayList<LIBZPixelSpectrum>();
+        ShotIterator it = getShots(test);
+        try {
+            while (it.hasNext()) {
+                retval.add(it.next());
+            }
+        } finally {
+            it.close();
+        }
+        return retval;
+    }
 
-        for (Map.Entry<String, JsonElement> entry : shotTable.entrySet()) {
-            String key = entry.getKey();
+    private class MultiShotIterator extends ShotIterator {
 
-            if (key.compareTo("shot_avg") != 0) {
-                String id = shotTable.getAsJsonPrimitive(key).getAsString();
-                LIBZPixelSpectrum spectrum = ShotDataHelper.loadCompressed(new ByteArrayInputStream(mSpectrumTable.get(id)));
+        private final MultiShotSpectrumFileInputStream mMultiShotIn;
+        private LIBZPixelSpectrum mNext;
 
-                if (spectrum != null) {
-                    retval.add(spectrum);
-                }
+        MultiShotIterator(byte[] data) throws IOException {
+            ByteArrayInputStream bin = new ByteArrayInputStream(data);
+            mMultiShotIn = new MultiShotSpectrumFileInputStream(bin);
+            try {
+                mMultiShotIn.seekTo(0);
+                mNext = mMultiShotIn.getNextShot();
+            } catch (IOException e) {
+                mMultiShotIn.close();
+                throw e;
             }
         }
 
-        return retval;
+        @Override
+        public boolean hasNext() {
+            return mNext != null;
+        }
+
+        @Override
+        public LIBZPixelSpectrum next() {
+            if (mNext == null) {
+                throw new NoSuchElementException();
+            }
+            LIBZPixelSpectrum retval = mNext;
+            try {
+                mNext = mMultiShotIn.getNextShot();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            return retval;
+        }
+
+        @Override
+        public void close() throws IOException {
+            mMultiShotIn.close();
+        }
     }
 
-    public Iterable<OrgModel> getAllModels() {
-        ArrayList<OrgModel> retval = new ArrayList<OrgModel>();
-        for (Map.Entry<String, JsonElement> e : mAllObjects.entrySet()) {
-            JsonObject obj = e.getValue().getAsJsonObject();
-            if (obj.has("type") && "model".equals(obj.getAsJsonPrimitive("type").getAsString())) {
-                OrgModel m = (OrgModel) mMarshaller.load(e.getKey(), OrgModel.class);
-                for (OrgIRCurve c : m.irs.values()) {
-                    c.loadFields(mMarshaller);
-                }
-                retval.add(m);
+    private static class SingleShotIterator extends ShotIterator {
+
+        private LIBZPixelSpectrum mNext;
+
+        SingleShotIterator(byte[] data) throws IOException {
+            mNext = ShotDataHelper.loadCompressed(new ByteArrayInputStream(data));
+        }
+
+        @Override
+        public boolean hasNext() {
+            return mNext != null;
+        }
+
+        @Override
+        public LIBZPixelSpectrum next() {
+            if (mNext == null) {
+                throw new NoSuchElementException();
             }
+            LIBZPixelSpectrum retval = mNext;
+            mNext = null;
+            return retval;
         }
 
-        return retval;
+        @Override
+        public void close() throws IOException {
+        }
     }
 
-    public Iterable<OrgModel2> getAllModels2() {
-        ArrayList<OrgModel2> retval = new ArrayList<OrgModel2>();
-        for (Map.Entry<String, JsonElement> e : mAllObjects.entrySet()) {
-            JsonObject obj = e.getValue().getAsJsonObject();
-            if (obj.has("type") && "model".equals(obj.getAsJsonPrimitive("type").getAsString())) {
-                OrgModel2 m = (OrgModel2) mMarshaller.load(e.getKey(), OrgModel2.class);
+    private class OldFormatShotIterator extends ShotIterator {
 
-                for (java.util.List<OrgIRCurve> irCurves : m.irs.values()) {
-                    for (OrgIRCurve irCurve : irCurves) {
-                        irCurve.loadFields(mMarshaller);
-                    }
+        private final Iterator<String> mIds;
+        private LIBZPixelSpectrum mNext;
+
+        OldFormatShotIterator(List<String> ids) throws IOException {
+            mIds = ids.iterator();
+            mNext = loadNext();
+        }
+
+        private LIBZPixelSpectrum loadNext() throws IOException {
+            while (mIds.hasNext()) {
+                LIBZPixelSpectrum spectrum = ShotDataHelper.loadCompressed(new ByteArrayInputStream(openSpectrumFile(mIds.next())));
+                if (spectrum != null) {
+                    return spectrum;
                 }
-                retval.add(m);
             }
+            return null;
         }
 
-        return retval;
-    }
+        @Override
+        public boolean hasNext() {
+            return mNext != null;
+        }
 
-    public Iterable<OrgLIBZTest> getAllTests() {
-        ArrayList<OrgLIBZTest> retval = new ArrayList<OrgLIBZTest>();
-        for (Map.Entry<String, JsonElement> e : mAllObjects.entrySet()) {
-            JsonObject obj = e.getValue().getAsJsonObject();
-            if (obj.has("type") && "test".equals(obj.getAsJsonPrimitive("type").getAsString())) {
-                OrgLIBZTest t = (OrgLIBZTest) mMarshaller.load(e.getKey(), OrgLIBZTest.class);
-                retval.add(t);
+        @Override
+        public LIBZPixelSpectrum next() {
+            if (mNext == null) {
+                throw new NoSuchElementException();
+            }
+            LIBZPixelSpectrum retval = mNext;
+            try {
+                mNext = loadNext();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
             }
+            return retval;
+        }
+
+        @Override
+        public void close() throws IOException {
         }
-        return retval;
     }
 
-    public Iterable<OrgStandard> getAllStandards() {
-        ArrayList<OrgStandard> retval = new ArrayList<OrgStandard>();
-        for (Map.Entry<String, JsonElement> e : mAllObjects.entrySet()) {
-            JsonObject obj = e.getValue().getAsJsonObject();
-            if (obj.has("type") && "standard".equals(obj.getAsJsonPrimitive("type").getAsString())) {
-                OrgStandard t = (OrgStandard) mMarshaller.load(e.getKey(), OrgStandard.class);
-                retval.add(t);
-            }
+    /**
+     * Objects pinned in the live instance cache while one top level object was loaded, so the
+     * object keeps sharing them with everything loaded later. Released once, by whoever is done
+     * with the object.
+     */
+    public class Pins {
+        private ArrayList<String> mIds;
+
+        Pins(ArrayList<String> ids) {
+            mIds = ids;
+        }
+
+        public synchronized void release() {
+            mMarshaller.unpinAll(mIds);
+            mIds = null;
         }
-        return retval;
     }
 
-    public Iterable<OrgFingerprintLibraryTemplate> getAllFingerprints() {
-        ArrayList<OrgFingerprintLibraryTemplate> retval = new ArrayList<OrgFingerprintLibraryTemplate>();
-        for (Map.Entry<String, JsonElement> e : mAllObjects.entrySet()) {
-            JsonObject obj = e.getValue().getAsJsonObject();
-            if (obj.has("type") && "fplib".equals(obj.getAsJsonPrimitive("type").getAsString())) {
-                OrgFingerprintLibraryTemplate t = (OrgFingerprintLibraryTemplate) mMarshaller.load(e.getKey(), OrgFingerprintLibraryTemplate.class);
-                retval.add(t);
+    /**
+     * Take over the pins of an object returned by an iterator of an
+     * {@link ObjectIterable#holdPins() ObjectIterable that holds pins}. Must be called before the
+     * iterator moves on. Returns pins that release nothing if the object has none.
+     */
+    public Pins takePins(DBObj obj) {
+        Pins retval = mHeldPins.remove(obj);
+        return retval != null ? retval : new Pins(null);
+    }
+
+    /**
+     * The objects of one type in key order. Each object is deserialized when the iterator reaches
+     * it and is not kept by LIBZDB afterwards (objects it references are), so iterating only
+     * holds one object at a time. {@link #count()} does not deserialize anything.
+     */
+    public class ObjectIterable<T extends DBObj> implements Iterable<T> {
+
+        private final String mType;
+        private final Class<T> mClass;
+        private Predicate<String> mIdFilter;
+        private boolean mHoldPins;
+
+        ObjectIterable(String type, Class<T> objClass) {
+            mType = type;
+            mClass = objClass;
+        }
+
+        public int count() {
+            if (mIdFilter == null) {
+                return getIdsOfType(mType).size();
             }
+            return Iterables.size(Iterables.filter(getIdsOfType(mType), mIdFilter));
+        }
+
+        /**
+         * Ids of all objects of the type, whether or not they pass the filter.
+         */
+        public Set<String> getIds() {
+            return Collections.unmodifiableSet(getIdsOfType(mType));
+        }
+
+        /**
+         * Only visit (and count) objects whose id is accepted by the filter.
+         */
+        public ObjectIterable<T> filter(Predicate<String> idFilter) {
+            mIdFilter = idFilter;
+            return this;
+        }
+
+        /**
+         * Keep the objects referenced by each object pinned after the iterator moves on, until
+         * the pins are {@link #takePins(DBObj) taken} and released. For consumers that read
+         * ahead and use several objects at a time. Pins that are not taken are released when the
+         * iterator moves on.
+         */
+        public ObjectIterable<T> holdPins() {
+            mHoldPins = true;
+            return this;
+        }
+
+        /**
+         * Called for each object after it has been deserialized.
+         */
+        protected void onLoad(T obj) {
+        }
+
+        @Override
+        public Iterator<T> iterator() {
+            final Iterator<String> ids = mIdFilter == null
+                    ? getIdsOfType(mType).iterator()
+                    : Iterators.filter(getIdsOfType(mType).iterator(), mIdFilter);
+            return new Iterator<T>() {
+
+                // objects referenced by the current object stay pinned until the next one is loaded
+                private ArrayList<String> mPinned;
+                // the current object when its pins are held for the consumer
+                private T mHeld;
+
+                private void unpinCurrent() {
+                    mMarshaller.unpinAll(mPinned);
+                    mPinned = null;
+                    if (mHeld != null) {
+                        Pins pins = mHeldPins.remove(mHeld);
+                        if (pins != null) {
+                            pins.release();
+                        }
+                        mHeld = null;
+                    }
+                }
+
+                @Override
+                public boolean hasNext() {
+                    boolean retval = ids.hasNext();
+                    if (!retval) {
+                        unpinCurrent();
+                    }
+                    return retval;
+                }
+
+                @Override
+                public T next() {
+                    unpinCurrent();
+                    mMarshaller.beginPinScope();
+                    T obj;
+                    try {
+                        obj = mClass.cast(mMarshaller.loadTransient(ids.next(), mClass));
+                        onLoad(obj);
+                    } finally {
+                        mPinned = mMarshaller.endPinScope();
+                    }
+                    if (mHoldPins) {
+                        mHeldPins.put(obj, new Pins(mPinned));
+                        mHeld = obj;
+                        mPinned = null;
+                    }
+                    return obj;
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
         }
-        return retval;
     }
 
-    public float getDatabaseVersion() {
-        float version = -1;
+    public ObjectIterable<OrgModel> getAllModels() {
+        return new ObjectIterable<OrgModel>("model", OrgModel.class) {
+            @Override
+            protected void onLoad(OrgModel m) {
+                for (OrgIRCurve c : m.irs.values()) {
+                    mMarshaller.loadFields(c);
+                }
+            }
+        };
+    }
 
-        for (Map.Entry<String, JsonElement> e : mAllObjects.entrySet()) {
-            JsonObject obj = e.getValue().getAsJsonObject();
-            if (obj.has("schemaVersion") && obj.getAsJsonPrimitive("schemaVersion").getAsFloat() >= 0) {
-                version = obj.getAsJsonPrimitive("schemaVersion").getAsFloat();
+    public ObjectIterable<OrgModel2> getAllModels2() {
+        return new ObjectIterable<OrgModel2>("model", OrgModel2.class) {
+            @Override
+            protected void onLoad(OrgModel2 m) {
+                for (java.util.List<OrgIRCurve> irCurves : m.irs.values()) {
+                    for (OrgIRCurve irCurve : irCurves) {
+                        mMarshaller.loadFields(irCurve);
+                    }
+                }
             }
-        }
-        return version;
+        };
+    }
+
+    public ObjectIterable<OrgLIBZTest> getAllTests() {
+        return new ObjectIterable<OrgLIBZTest>("test", OrgLIBZTest.class);
+    }
+
+    public ObjectIterable<OrgStandard> getAllStandards() {
+        return new ObjectIterable<OrgStandard>("standard", OrgStandard.class);
+    }
+
+    public ObjectIterable<OrgFingerprintLibraryTemplate> getAllFingerprints() {
+        return new ObjectIterable<OrgFingerprintLibraryTemplate>("fplib", OrgFingerprintLibraryTemplate.class);
+    }
+
+    public float getDatabaseVersion() {
+        return mDatabaseVersion;
     }
 
 }
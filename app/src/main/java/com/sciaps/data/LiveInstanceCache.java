@@ -0,0 +1,151 @@
+package com.sciaps.data;
+
+import com.sciaps.common.objtracker.DBObj;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Least recently used cache of deserialized objects, keyed by id.
+ *
+ * Pinned objects are kept outside of the LRU order and are never evicted, so everything that is
+ * referenced by the object currently being converted keeps a single instance. Evicted objects
+ * are deserialized again the next time they are loaded.
+ */
+public class LiveInstanceCache {
+
+    private final LinkedHashMap<String, DBObj> mLru;
+    private final HashMap<String, DBObj> mPinned = new HashMap<String, DBObj>();
+    private final HashMap<String, Integer> mPinCount = new HashMap<String, Integer>();
+    private int mMaxSize;
+
+    private long mHits;
+    private long mMisses;
+    private long mEvictions;
+
+    public LiveInstanceCache(int maxSize) {
+        mMaxSize = maxSize;
+        mLru = new LinkedHashMap<String, DBObj>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, DBObj> eldest) {
+                if (size() > mMaxSize) {
+                    mEvictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    public synchronized void setMaxSize(int maxSize) {
+        mMaxSize = maxSize;
+        while (mLru.size() > mMaxSize) {
+            String eldest = mLru.keySet().iterator().next();
+            mLru.remove(eldest);
+            mEvictions++;
+        }
+    }
+
+    public synchronized DBObj get(String id) {
+        DBObj retval = mPinned.get(id);
+        if (retval == null) {
+            retval = mLru.get(id);
+        }
+
+        if (retval != null) {
+            mHits++;
+        } else {
+            mMisses++;
+        }
+        return retval;
+    }
+
+    /**
+     * Add obj unless the cache already holds an instance for id. Returns the instance the cache
+     * keeps, which callers must use instead of obj: two threads may deserialize the same object
+     * at once, only the first instance is kept. A pinned instance is never replaced.
+     */
+    public synchronized DBObj putIfAbsent(String id, DBObj obj) {
+        DBObj retval = mPinned.get(id);
+        if (retval == null) {
+            retval = mLru.get(id);
+        }
+        if (retval == null) {
+            mLru.put(id, obj);
+            retval = obj;
+        }
+        return retval;
+    }
+
+    public synchronized void remove(String id) {
+        mLru.remove(id);
+        mPinned.remove(id);
+        mPinCount.remove(id);
+    }
+
+    public synchronized void clear() {
+        mLru.clear();
+        mPinned.clear();
+        mPinCount.clear();
+    }
+
+    /**
+     * Pin the instance held for id, or obj if the cache holds none. Returns the pinned instance.
+     */
+    public synchronized DBObj pin(String id, DBObj obj) {
+        DBObj retval;
+        Integer count = mPinCount.get(id);
+        if (count == null) {
+            retval = mLru.remove(id);
+            if (retval == null) {
+                retval = obj;
+            }
+            mPinned.put(id, retval);
+            mPinCount.put(id, 1);
+        } else {
+            retval = mPinned.get(id);
+            mPinCount.put(id, count + 1);
+        }
+        return retval;
+    }
+
+    public synchronized void unpin(String id) {
+        Integer count = mPinCount.get(id);
+        if (count == null) {
+            return;
+        }
+
+        if (count > 1) {
+            mPinCount.put(id, count - 1);
+        } else {
+            mPinCount.remove(id);
+            DBObj obj = mPinned.remove(id);
+            if (obj != null) {
+                mLru.put(id, obj);
+            }
+        }
+    }
+
+    public synchronized int size() {
+        return mLru.size() + mPinned.size();
+    }
+
+    public synchronized long getHits() {
+        return mHits;
+    }
+
+    public synchronized long getMisses() {
+        return mMisses;
+    }
+
+    public synchronized long getEvictions() {
+        return mEvictions;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("size: %d/%d pinned: %d hits: %d misses: %d evictions: %d",
+                size(), mMaxSize, mPinned.size(), mHits, mMisses, mEvictions);
+    }
+}
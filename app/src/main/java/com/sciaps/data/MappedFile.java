@@ -0,0 +1,78 @@
+package com.sciaps.data;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Read only memory mapping of a whole file. Files larger than 2GB are mapped in several
+ * segments; reads that cross a segment boundary are split. Safe to read from several threads.
+ */
+class MappedFile implements Closeable {
+
+    private static final int SEGMENT_SIZE = 1 << 30;
+
+    private final RandomAccessFile mFile;
+    private final long mLength;
+    private final MappedByteBuffer[] mSegments;
+
+    MappedFile(File file) throws IOException {
+        mFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = mFile.getChannel();
+            mLength = channel.size();
+
+            int numSegments = (int) ((mLength + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+            mSegments = new MappedByteBuffer[numSegments];
+            for (int i = 0; i < numSegments; i++) {
+                long start = (long) i * SEGMENT_SIZE;
+                long size = Math.min(SEGMENT_SIZE, mLength - start);
+                mSegments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+            }
+        } catch (IOException e) {
+            mFile.close();
+            throw e;
+        }
+    }
+
+    long length() {
+        return mLength;
+    }
+
+    void read(long pos, byte[] dst, int off, int len) throws IOException {
+        if (pos < 0 || pos + len > mLength) {
+            throw new IOException("read past end of file: " + pos + "+" + len + " > " + mLength);
+        }
+
+        while (len > 0) {
+            int segment = (int) (pos / SEGMENT_SIZE);
+            int segmentPos = (int) (pos % SEGMENT_SIZE);
+            int n = Math.min(len, SEGMENT_SIZE - segmentPos);
+
+            // duplicate() gives this read its own position, the mapping itself is shared
+            ByteBuffer buf = mSegments[segment].duplicate();
+            buf.position(segmentPos);
+            buf.get(dst, off, n);
+
+            pos += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    byte[] read(long pos, int len) throws IOException {
+        byte[] retval = new byte[len];
+        read(pos, retval, 0, len);
+        return retval;
+    }
+
+    @Override
+    public void close() throws IOException {
+        // the mappings are released when the buffers are garbage collected
+        mFile.close();
+    }
+}
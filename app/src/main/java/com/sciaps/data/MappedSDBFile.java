@@ -0,0 +1,186 @@
+package com.sciaps.data;
+
+import com.google.common.base.Charsets;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.zip.ZipInputStream;
+
+/**
+ * SDBFile backed by a memory mapping of the .sdb archive.
+ *
+ * {@link #open(File)} only reads the zip central directory. Objects and spectrum files are read
+ * from the mapping and decompressed when they are requested, so there is no temp file copy of
+ * the spectra and opening takes time proportional to the number of entries, not the archive size.
+ */
+public class MappedSDBFile extends SDBFile {
+
+    private static final Logger logger = LoggerFactory.getLogger(MappedSDBFile.class);
+
+    private MappedFile mFile;
+    private final TreeMap<String, DBObjRef> mObjects = new TreeMap<String, DBObjRef>();
+    private final HashMap<String, ZipCentralDirectory.Entry> mSpectra = new HashMap<String, ZipCentralDirectory.Entry>();
+
+    private static class DBObjRef {
+        final String type;
+        final ZipCentralDirectory.Entry entry;
+
+        DBObjRef(String type, ZipCentralDirectory.Entry entry) {
+            this.type = type;
+            this.entry = entry;
+        }
+    }
+
+    public MappedSDBFile() {
+        super(false);
+    }
+
+    public void open(File file) throws IOException {
+        close();
+        mObjects.clear();
+        mSpectra.clear();
+
+        mFile = new MappedFile(file);
+        for (ZipCentralDirectory.Entry entry : ZipCentralDirectory.read(mFile)) {
+            Matcher m = DBOBJ_REGEX.matcher(entry.name);
+            if (m.find()) {
+                String id = m.group(2);
+                if (mObjects.containsKey(id)) {
+                    throw new RuntimeException("db already contains obj with id: " + id);
+                }
+                mObjects.put(id, new DBObjRef(m.group(1), entry));
+                continue;
+            }
+
+            m = SPECTRUM_FILE_REGEX.matcher(entry.name);
+            if (m.find()) {
+                mSpectra.put(m.group(1), entry);
+                continue;
+            }
+
+            logger.warn("unknown file: {}", entry.name);
+        }
+
+        logger.info("mapped {}: {} objects, {} spectrum files", file.getName(), mObjects.size(), mSpectra.size());
+    }
+
+    private DBEntry readEntry(String id, DBObjRef ref) {
+        DBEntry retval = new DBEntry(id);
+        retval.type = ref.type;
+        try {
+            byte[] data = ZipCentralDirectory.readEntry(mFile, ref.entry);
+            retval.setData(new InputStreamReader(new ByteArrayInputStream(data), Charsets.UTF_8));
+            compress(retval);
+        } catch (IOException e) {
+            throw new RuntimeException("cannot read " + ref.entry.name, e);
+        }
+        return retval;
+    }
+
+    @Override
+    public Iterator<DBEntry> getAll() {
+        final Iterator<Map.Entry<String, DBObjRef>> it = mObjects.entrySet().iterator();
+        return new Iterator<DBEntry>() {
+            @Override
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            @Override
+            public DBEntry next() {
+                Map.Entry<String, DBObjRef> e = it.next();
+                return readEntry(e.getKey(), e.getValue());
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    @Override
+    public Iterator<DBEntry> getAllOfType(final String type) {
+        final Iterator<Map.Entry<String, DBObjRef>> it = mObjects.entrySet().iterator();
+        return new Iterator<DBEntry>() {
+            private Map.Entry<String, DBObjRef> mNext;
+
+            @Override
+            public boolean hasNext() {
+                while (mNext == null && it.hasNext()) {
+                    Map.Entry<String, DBObjRef> e = it.next();
+                    if (type.equals(e.getValue().type)) {
+                        mNext = e;
+                    }
+                }
+                return mNext != null;
+            }
+
+            @Override
+            public DBEntry next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Map.Entry<String, DBObjRef> e = mNext;
+                mNext = null;
+                return readEntry(e.getKey(), e.getValue());
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    @Override
+    public DBEntry get(String id) {
+        DBObjRef ref = mObjects.get(id);
+        if (ref == null) {
+            return null;
+        }
+        return readEntry(id, ref);
+    }
+
+    @Override
+    public byte[] getSpectrum(String id) {
+        ZipCentralDirectory.Entry entry = mSpectra.get(id);
+        if (entry == null) {
+            return null;
+        }
+        try {
+            return ZipCentralDirectory.readEntry(mFile, entry);
+        } catch (IOException e) {
+            throw new RuntimeException("cannot read " + entry.name, e);
+        }
+    }
+
+    @Override
+    public boolean hasSpectrum(String id) {
+        return mSpectra.containsKey(id);
+    }
+
+    @Override
+    public void putSpectrum(String id, byte[] data) {
+        throw new UnsupportedOperationException("mapped sdb files are read only");
+    }
+
+    @Override
+    public void load(ZipInputStream zipIn) throws IOException {
+        throw new UnsupportedOperationException("use open(File)");
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mFile != null) {
+            mFile.close();
+            mFile = null;
+        }
+    }
+}
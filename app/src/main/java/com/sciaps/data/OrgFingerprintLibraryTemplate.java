@@ -9,6 +9,7 @@ import java.util.LinkedList;
 import java.util.List;
 
 
+@GenerateTypeAdapter
 public class OrgFingerprintLibraryTemplate extends DBObj {
 
     public String name;
@@ -7,6 +7,7 @@ import org.apache.commons.lang.math.DoubleRange;
 import java.util.ArrayList;
 import java.util.List;
 
+@GenerateTypeAdapter
 public class OrgIRCurve extends OrgIRRatio {
 
 
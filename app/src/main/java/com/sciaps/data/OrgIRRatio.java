@@ -9,6 +9,7 @@ import com.sciaps.common.objtracker.IdReference;
 import java.util.ArrayList;
 import java.util.List;
 
+@GenerateTypeAdapter
 public class OrgIRRatio extends DBObj {
 
     public String name;
@@ -8,6 +8,7 @@ import com.sciaps.common.objtracker.DBObj;
 import java.util.ArrayList;
 import java.util.List;
 
+@GenerateTypeAdapter
 public class OrgIRRatio2 extends DBObj {
 
     public String name;
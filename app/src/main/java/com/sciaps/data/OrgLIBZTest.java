@@ -10,7 +10,9 @@ import java.util.Arrays;
 import java.util.Date;
 import java.util.TreeMap;
 
+@GenerateTypeAdapter
 public final class OrgLIBZTest extends DBObj {
+    @GenerateTypeAdapter
     public static class Config {
         public int intergrationDelay;
         public int intergrationPeriod;
@@ -13,6 +13,7 @@ import java.util.List;
 import java.util.Map;
 
 // Single curve model
+@GenerateTypeAdapter
 public class OrgModel extends DBObj {
 
     public String name;
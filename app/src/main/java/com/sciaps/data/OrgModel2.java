@@ -14,6 +14,7 @@ import java.util.List;
 import java.util.Map;
 
 // Multi curves
+@GenerateTypeAdapter
 public class OrgModel2 extends DBObj {
 
     public String name;
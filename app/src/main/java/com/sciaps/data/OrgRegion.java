@@ -15,6 +15,7 @@ import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+@GenerateTypeAdapter
 public class OrgRegion extends DBObj {
 
     public DoubleRange wavelengthRange;
@@ -9,6 +9,7 @@ import java.util.Comparator;
 import java.util.HashSet;
 import java.util.Iterator;
 
+@GenerateTypeAdapter
 public class OrgStandard extends DBObj {
 
     public String name;
@@ -6,26 +6,38 @@ import com.google.common.base.Charsets;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.google.gson.internal.LazilyParsedNumber;
 import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 import com.sciaps.common.data.LIBZTest;
 import com.sciaps.common.data.Model;
 import com.sciaps.common.data.Region;
 import com.sciaps.common.data.Standard;
 import com.sciaps.common.objtracker.IdRefTypeAdapterFactory;
-import org.mapdb.BTreeMap;
-import org.mapdb.DB;
-import org.mapdb.DBMaker;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
 import java.lang.reflect.Type;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.Deflater;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 import java.util.zip.ZipOutputStream;
@@ -37,9 +49,9 @@ public class SDBFile {
     public static final Type MapType = new TypeToken<Map<String, Object>>() {
     }.getType();
 
-    private static final Pattern DBOBJ_REGEX = Pattern.compile("dbobj/([^/]*)/(.*).json");
-    private static final Pattern SPECTRUM_FILE_REGEX = Pattern.compile("spectrum/(.*).gz");
-    private static final Pattern FPLIB_FILE_REGEX = Pattern.compile("fplib/(.*).json");
+    static final Pattern DBOBJ_REGEX = Pattern.compile("dbobj/([^/]*)/(.*).json");
+    static final Pattern SPECTRUM_FILE_REGEX = Pattern.compile("spectrum/(.*).gz");
+    static final Pattern FPLIB_FILE_REGEX = Pattern.compile("fplib/(.*).json");
 
     public static final Gson ZipGson = new GsonBuilder()
             .setPrettyPrinting()
@@ -61,10 +73,20 @@ public class SDBFile {
     };
 
 
+    /**
+     * A dbobj entry of the archive. The JSON document is kept as compact UTF-8 text, optionally
+     * deflated, instead of a JsonElement tree, and is only parsed when it is read.
+     */
     public static class DBEntry {
+        // the document inflated last on each thread, keyed by its deflated bytes: a test is read
+        // several times in a row (content hash, parse, shot table) on the same thread
+        private static final ThreadLocal<byte[][]> sLastInflated = new ThreadLocal<byte[][]>();
+
         public String key;
         public String type;
-        public JsonElement value;
+        private byte[] data;
+        private int size;
+        private boolean deflated;
 
         public DBEntry(String key) {
             this.key = key;
@@ -73,7 +95,123 @@ public class SDBFile {
         public DBEntry(DBEntry entry) {
             this.key = entry.key;
             this.type = entry.type;
-            this.value = entry.value;
+            this.data = entry.data;
+            this.size = entry.size;
+            this.deflated = entry.deflated;
+        }
+
+        /**
+         * Read the JSON document from the reader, dropping the whitespace.
+         */
+        public void setData(Reader json) throws IOException {
+            JsonReader in = new JsonReader(json);
+            in.setLenient(true);
+            ByteArrayOutputStream bout = new ByteArrayOutputStream(1024);
+            Writer writer = new OutputStreamWriter(bout, Charsets.UTF_8);
+            JsonWriter out = new JsonWriter(writer);
+            out.setLenient(true);
+            copy(in, out);
+            out.flush();
+            setData(bout.toByteArray());
+        }
+
+        private void setData(byte[] json) {
+            data = json;
+            size = json.length;
+            deflated = false;
+        }
+
+        public void setValue(JsonElement value) {
+            setData(value.toString().getBytes(Charsets.UTF_8));
+        }
+
+        /**
+         * Parse the document into a tree. Prefer {@link #openReader()} where a tree is not needed.
+         */
+        public JsonElement getValue() {
+            return new JsonParser().parse(openReader());
+        }
+
+        public JsonReader openReader() {
+            JsonReader retval = new JsonReader(new InputStreamReader(new ByteArrayInputStream(getData()), Charsets.UTF_8));
+            retval.setLenient(true);
+            return retval;
+        }
+
+        /**
+         * The document as compact UTF-8 JSON. Must not be modified.
+         */
+        public byte[] getData() {
+            if (!deflated) {
+                return data;
+            }
+            byte[][] last = sLastInflated.get();
+            if (last != null && last[0] == data) {
+                return last[1];
+            }
+            try {
+                byte[] retval = ZipCentralDirectory.inflate(data, data.length - 1, size);
+                sLastInflated.set(new byte[][]{data, retval});
+                return retval;
+            } catch (IOException e) {
+                throw new RuntimeException("cannot inflate " + key, e);
+            }
+        }
+
+        /**
+         * Bytes held for the document.
+         */
+        public int getStoredSize() {
+            return data != null ? data.length : 0;
+        }
+
+        /**
+         * Keep the document deflated. It is inflated when it is read, and kept inflated only
+         * until the same thread reads another document.
+         */
+        void deflate(Deflater deflater) {
+            if (deflated || data == null) {
+                return;
+            }
+            deflater.reset();
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream bout = new ByteArrayOutputStream(data.length / 2 + 16);
+            byte[] buf = new byte[4096];
+            while (!deflater.finished()) {
+                bout.write(buf, 0, deflater.deflate(buf));
+            }
+            // ZipCentralDirectory.inflate needs room for one byte past the data
+            bout.write(0);
+            data = bout.toByteArray();
+            deflated = true;
+        }
+
+        /**
+         * Binary form used by {@link SortedEntryStore} for spilled entries.
+         */
+        void write(DataOutput out) throws IOException {
+            out.writeUTF(key);
+            out.writeBoolean(type != null);
+            if (type != null) {
+                out.writeUTF(type);
+            }
+            out.writeInt(size);
+            out.writeBoolean(deflated);
+            out.writeInt(data.length);
+            out.write(data);
+        }
+
+        static DBEntry read(DataInput in) throws IOException {
+            DBEntry retval = new DBEntry(in.readUTF());
+            if (in.readBoolean()) {
+                retval.type = in.readUTF();
+            }
+            retval.size = in.readInt();
+            retval.deflated = in.readBoolean();
+            retval.data = new byte[in.readInt()];
+            in.readFully(retval.data);
+            return retval;
         }
 
         public void writeToZip(ZipOutputStream zipOut) throws IOException {
@@ -81,9 +219,14 @@ public class SDBFile {
             ZipEntry entry = new ZipEntry(fileName);
             zipOut.putNextEntry(entry);
 
+            // same layout as ZipGson
             final OutputStreamWriter writer = new OutputStreamWriter(zipOut, Charsets.UTF_8);
-            ZipGson.toJson(value, writer);
-            writer.flush();
+            JsonWriter out = new JsonWriter(writer);
+            out.setIndent("  ");
+            out.setLenient(true);
+            out.setHtmlSafe(true);
+            copy(openReader(), out);
+            out.flush();
             zipOut.closeEntry();
 
         }
@@ -97,13 +240,70 @@ public class SDBFile {
         }
     }
 
-    private DB mMemDB = DBMaker.newTempFileDB()
-            .cacheSize(128)
-            .transactionDisable()
-            .deleteFilesAfterClose()
-            .make();
-    protected final BTreeMap<String, byte[]> mSpectrumTable;
-    private TreeSet<DBEntry> mDB = new TreeSet<DBEntry>(KEY_COMPARATOR);
+    /**
+     * Copy one JSON value token by token. Numbers are copied as written.
+     */
+    static void copy(JsonReader in, JsonWriter out) throws IOException {
+        int depth = 0;
+        do {
+            switch (in.peek()) {
+                case BEGIN_ARRAY:
+                    in.beginArray();
+                    out.beginArray();
+                    depth++;
+                    break;
+                case END_ARRAY:
+                    in.endArray();
+                    out.endArray();
+                    depth--;
+                    break;
+                case BEGIN_OBJECT:
+                    in.beginObject();
+                    out.beginObject();
+                    depth++;
+                    break;
+                case END_OBJECT:
+                    in.endObject();
+                    out.endObject();
+                    depth--;
+                    break;
+                case NAME:
+                    out.name(in.nextName());
+                    break;
+                case STRING:
+                    out.value(in.nextString());
+                    break;
+                case NUMBER:
+                    out.value(new LazilyParsedNumber(in.nextString()));
+                    break;
+                case BOOLEAN:
+                    out.value(in.nextBoolean());
+                    break;
+                case NULL:
+                    in.nextNull();
+                    out.nullValue();
+                    break;
+                default:
+                    throw new EOFException("unexpected end of JSON document");
+            }
+        } while (depth > 0);
+    }
+
+    private final SpectrumStore mSpectra;
+    private final SortedEntryStore mDB = new SortedEntryStore();
+    private boolean mCompressObjects;
+
+    // entries may be compressed on several loader threads, each gets its own Deflater
+    private static final ThreadLocal<Deflater> sDeflater = new ThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater(Deflater.BEST_SPEED, true);
+        }
+    };
+
+    // entries handed to a loader thread at a time, and batches in flight per thread
+    private static final int LOAD_BATCH_SIZE = 64;
+    private static final int LOAD_BATCHES_PER_THREAD = 4;
 
     List<Standard> mStandards;
     List<Model> mModels;
@@ -114,6 +314,30 @@ public class SDBFile {
         return mDB.iterator();
     }
 
+    /**
+     * Keep at most about this many bytes of loaded dbobj entries on the heap. Beyond that the
+     * entries are spilled to sorted temporary files, see {@link SortedEntryStore}. Unlimited by
+     * default.
+     */
+    public void setSpillThreshold(long bytes) {
+        mDB.setSpillThreshold(bytes);
+    }
+
+    /**
+     * True if loaded entries live on disk. Readers should then look entries up with
+     * {@link #get(String)} when needed instead of holding on to all of them.
+     */
+    public boolean hasSpilledEntries() {
+        return mDB.hasSpilled();
+    }
+
+    /**
+     * Bytes held by the JSON documents of the loaded entries, on the heap or on disk.
+     */
+    public long getStoredBytes() {
+        return mDB.getStoredBytes();
+    }
+
     private class TypeIterator implements Iterator<DBEntry> {
 
         private final String mType;
@@ -122,7 +346,7 @@ public class SDBFile {
 
         public TypeIterator(String type) {
             mType = type;
-            mIt = mDB.iterator();
+            mIt = getAll();
         }
 
         @Override
@@ -159,22 +383,60 @@ public class SDBFile {
     }
 
     public DBEntry get(String id) {
-        DBEntry retval = mDB.floor(new DBEntry(id));
-        return retval;
+        return mDB.get(id);
     }
 
     public byte[] getSpectrum(String id) {
-        return mSpectrumTable.get(id);
+        return mSpectra.get(id);
     }
 
 
     public SDBFile() {
-        mSpectrumTable = mMemDB.createTreeMap("spectrum")
-                .makeStringMap();
+        this(true);
+    }
 
+    /**
+     * @param spectrumTable create the {@link SpectrumStore} temp file that holds spectrum files.
+     *                      Subclasses that serve spectra from somewhere else pass false.
+     */
+    protected SDBFile(boolean spectrumTable) {
+        if (spectrumTable) {
+            try {
+                mSpectra = new SpectrumStore();
+            } catch (IOException e) {
+                throw new RuntimeException("cannot create spectrum store", e);
+            }
+        } else {
+            mSpectra = null;
+        }
     }
 
-    public void load(ZipInputStream zipIn) throws IOException {
+    /**
+     * Release the temp files that hold the spectrum files and spilled dbobj entries.
+     */
+    public void close() throws IOException {
+        if (mSpectra != null) {
+            mSpectra.close();
+        }
+        mDB.close();
+    }
+
+    /**
+     * Receives the entries of an .sdb archive in the order they are stored in the zip.
+     */
+    public interface EntryHandler {
+        void onDBObj(DBEntry entry) throws IOException;
+
+        void onSpectrum(String id, byte[] data) throws IOException;
+    }
+
+    /**
+     * Walk the archive once, handing each dbobj and spectrum entry to the handler as soon as
+     * the ZipInputStream reaches it. Nothing is retained by this method.
+     */
+    public static void stream(ZipInputStream zipIn, EntryHandler handler) throws IOException {
+        // one buffer for all spectrum files, it only grows to the size of the largest
+        ByteArrayOutputStream bout = new ByteArrayOutputStream(64 * 1024);
         ZipEntry entry = null;
         while ((entry = zipIn.getNextEntry()) != null) {
             final String name = entry.getName();
@@ -190,13 +452,9 @@ public class SDBFile {
 
                 DBEntry dbEntry = new DBEntry(id);
                 dbEntry.type = type;
-                dbEntry.value = ZipGson.fromJson(in, JsonElement.class);
+                dbEntry.setData(in);
 
-                if (mDB.contains(dbEntry)) {
-                    throw new RuntimeException("db already contains obj with id: " + dbEntry.key);
-                }
-
-                mDB.add(dbEntry);
+                handler.onDBObj(dbEntry);
 
                 continue;
             }
@@ -207,9 +465,9 @@ public class SDBFile {
                 String id = m.group(1);
                 logger.info("loading spectrum file: {}", id);
 
-                ByteArrayOutputStream bout = new ByteArrayOutputStream();
+                bout.reset();
                 IOUtils.pump(zipIn, bout, false, true);
-                mSpectrumTable.put(id, bout.toByteArray());
+                handler.onSpectrum(id, bout.toByteArray());
 
                 continue;
             }
@@ -220,5 +478,165 @@ public class SDBFile {
         }
     }
 
+    /**
+     * Keep loaded dbobj documents deflated in memory. They are inflated again on every read.
+     */
+    public void setCompressObjects(boolean compress) {
+        mCompressObjects = compress;
+    }
+
+    protected void compress(DBEntry entry) {
+        if (mCompressObjects) {
+            entry.deflate(sDeflater.get());
+        }
+    }
+
+    private void addEntry(DBEntry dbEntry) throws IOException {
+        compress(dbEntry);
+        synchronized (mDB) {
+            if (mDB.contains(dbEntry.key)) {
+                throw new RuntimeException("db already contains obj with id: " + dbEntry.key);
+            }
+            mDB.add(dbEntry);
+        }
+    }
+
+    public void load(ZipInputStream zipIn) throws IOException {
+        stream(zipIn, new EntryHandler() {
+            @Override
+            public void onDBObj(DBEntry dbEntry) throws IOException {
+                addEntry(dbEntry);
+            }
+
+            @Override
+            public void onSpectrum(String id, byte[] data) throws IOException {
+                mSpectra.put(id, data);
+            }
+        });
+    }
+
+    /**
+     * Load the archive from its central directory, inflating and parsing the entries on the given
+     * number of threads. The entries end up in the same sorted tables as with
+     * {@link #load(ZipInputStream)}, so the result does not depend on the number of threads.
+     * Duplicate dbobj ids are found before anything is inflated.
+     */
+    public void load(File file, int threads) throws IOException {
+        final MappedFile mappedFile = new MappedFile(file);
+        try {
+            List<ZipCentralDirectory.Entry> entries = ZipCentralDirectory.read(mappedFile);
+
+            HashSet<String> ids = new HashSet<String>();
+            for (ZipCentralDirectory.Entry entry : entries) {
+                Matcher m = DBOBJ_REGEX.matcher(entry.name);
+                if (m.find() && !ids.add(m.group(2))) {
+                    throw new RuntimeException("db already contains obj with id: " + m.group(2));
+                }
+            }
+
+            if (threads <= 1) {
+                for (ZipCentralDirectory.Entry entry : entries) {
+                    loadEntry(mappedFile, entry);
+                }
+            } else {
+                loadParallel(mappedFile, entries, threads);
+            }
+            logger.info("loaded {}: {} objects, {} spectrum files", file.getName(), ids.size(), entries.size() - ids.size());
+        } finally {
+            mappedFile.close();
+        }
+    }
+
+    private void loadParallel(final MappedFile mappedFile, List<ZipCentralDirectory.Entry> entries, int threads) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "sdb-loader-" + mCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        logger.info("Loading archive with {} threads", threads);
+
+        // bounded so a slow disk does not queue up the whole directory
+        ArrayDeque<Future<Void>> pending = new ArrayDeque<Future<Void>>();
+        try {
+            for (int start = 0; start < entries.size(); start += LOAD_BATCH_SIZE) {
+                final List<ZipCentralDirectory.Entry> batch = entries.subList(start, Math.min(start + LOAD_BATCH_SIZE, entries.size()));
+                pending.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        for (ZipCentralDirectory.Entry entry : batch) {
+                            loadEntry(mappedFile, entry);
+                        }
+                        return null;
+                    }
+                }));
+                if (pending.size() >= threads * LOAD_BATCHES_PER_THREAD) {
+                    waitFor(pending.poll());
+                }
+            }
+            while (!pending.isEmpty()) {
+                waitFor(pending.poll());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void waitFor(Future<Void> future) throws IOException {
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while loading archive");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException("failed to load archive", cause);
+        }
+    }
+
+    private void loadEntry(MappedFile mappedFile, ZipCentralDirectory.Entry entry) throws IOException {
+        Matcher m = DBOBJ_REGEX.matcher(entry.name);
+        if (m.find()) {
+            String type = m.group(1);
+            String id = m.group(2);
+            logger.debug("loading dbobj {} : {}", type, id);
+
+            byte[] data = ZipCentralDirectory.readEntry(mappedFile, entry);
+            DBEntry dbEntry = new DBEntry(id);
+            dbEntry.type = type;
+            dbEntry.setData(new InputStreamReader(new ByteArrayInputStream(data), Charsets.UTF_8));
+            addEntry(dbEntry);
+            return;
+        }
+
+        m = SPECTRUM_FILE_REGEX.matcher(entry.name);
+        if (m.find()) {
+            String id = m.group(1);
+            logger.debug("loading spectrum file: {}", id);
+            mSpectra.put(id, ZipCentralDirectory.readEntry(mappedFile, entry));
+            return;
+        }
+
+        logger.warn("unknown file: {}", entry.name);
+    }
+
+    public void putSpectrum(String id, byte[] data) throws IOException {
+        mSpectra.put(id, data);
+    }
+
+    public boolean hasSpectrum(String id) {
+        return mSpectra.contains(id);
+    }
 
 }
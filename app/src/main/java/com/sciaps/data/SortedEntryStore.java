@@ -0,0 +1,409 @@
+package com.sciaps.data;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import com.google.common.io.CountingOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * The dbobj entries of an {@link SDBFile} in key order.
+ *
+ * Entries are kept in memory until their estimated size passes the spill threshold. The entries
+ * in memory are then written to a temporary file as one sorted run and dropped. Iteration merges
+ * the runs and the entries still in memory. For lookups each run keeps a sparse index holding
+ * the key and file offset of every {@link #INDEX_INTERVAL}th entry, so a lookup reads one block
+ * of a run. Each run has a Bloom filter of its keys, sized to the run when it is written, so a
+ * lookup only reads the runs that probably hold the key. Keys are unique, every run is read at
+ * most once per lookup.
+ *
+ * The store lock only guards the entries in memory, the cache and the list of runs. A lookup
+ * reads a run under the lock of that run, so lookups in different runs, and lookups answered
+ * from memory, do not wait for each other's disk reads.
+ */
+final class SortedEntryStore implements Closeable {
+
+    static Logger logger = LoggerFactory.getLogger(SortedEntryStore.class);
+
+    static final int INDEX_INTERVAL = 32;
+    private static final double BLOOM_FPP = 0.01;
+    private static final int ENTRY_OVERHEAD = 96;
+    private static final int CACHE_SIZE = 64;
+
+    private final TreeMap<String, SDBFile.DBEntry> mMemory = new TreeMap<String, SDBFile.DBEntry>();
+    private final ArrayList<Run> mRuns = new ArrayList<Run>();
+    private long mThreshold = Long.MAX_VALUE;
+    private long mMemoryBytes;
+    private long mStoredBytes;
+    private int mSize;
+
+    // iterators over the runs that have not reached their end, closed with the store
+    private final Set<RunIterator> mOpenIterators = Collections.newSetFromMap(new IdentityHashMap<RunIterator, Boolean>());
+
+    // recently read entries of spilled runs, LIBZDB reads the same object several times in a row
+    private final LinkedHashMap<String, SDBFile.DBEntry> mCache = new LinkedHashMap<String, SDBFile.DBEntry>(CACHE_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, SDBFile.DBEntry> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    /**
+     * One sorted temporary file. Lookups read it under the lock of the run.
+     */
+    private static class Run {
+        final File file;
+        final RandomAccessFile in;
+        final String[] indexKeys;
+        final long[] indexOffsets;
+        final BloomFilter<CharSequence> keys;
+        final long length;
+        private boolean mDeleted;
+
+        Run(File file, String[] indexKeys, long[] indexOffsets, BloomFilter<CharSequence> keys) throws IOException {
+            this.file = file;
+            this.in = new RandomAccessFile(file, "r");
+            this.indexKeys = indexKeys;
+            this.indexOffsets = indexOffsets;
+            this.keys = keys;
+            this.length = in.length();
+        }
+
+        synchronized SDBFile.DBEntry find(String key) throws IOException {
+            if (mDeleted) {
+                throw new IOException("store is closed");
+            }
+            int i = Arrays.binarySearch(indexKeys, key);
+            if (i < 0) {
+                // the block that starts before the key
+                i = -i - 2;
+                if (i < 0) {
+                    return null;
+                }
+            }
+            long start = indexOffsets[i];
+            long end = i + 1 < indexOffsets.length ? indexOffsets[i + 1] : length;
+            byte[] block = new byte[(int) (end - start)];
+            in.seek(start);
+            in.readFully(block);
+
+            DataInputStream blockIn = new DataInputStream(new ByteArrayInputStream(block));
+            for (int n = 0; n < INDEX_INTERVAL && blockIn.available() > 0; n++) {
+                SDBFile.DBEntry entry = SDBFile.DBEntry.read(blockIn);
+                int cmp = entry.key.compareTo(key);
+                if (cmp == 0) {
+                    return entry;
+                } else if (cmp > 0) {
+                    break;
+                }
+            }
+            return null;
+        }
+
+        synchronized void delete() {
+            mDeleted = true;
+            try {
+                in.close();
+            } catch (IOException e) {
+                logger.warn("cannot close " + file, e);
+            }
+            if (!file.delete()) {
+                logger.warn("cannot delete {}", file);
+            }
+        }
+    }
+
+    /**
+     * Estimated heap the entries in memory may use before they are spilled to disk.
+     */
+    void setSpillThreshold(long bytes) {
+        mThreshold = bytes;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Bytes held by the JSON documents of all entries, in memory or on disk.
+     */
+    public long getStoredBytes() {
+        return mStoredBytes;
+    }
+
+    public boolean hasSpilled() {
+        return !mRuns.isEmpty();
+    }
+
+    public boolean contains(String key) {
+        return get(key) != null;
+    }
+
+    /**
+     * Add an entry whose key is not in the store yet.
+     */
+    public synchronized void add(SDBFile.DBEntry entry) throws IOException {
+        mMemory.put(entry.key, entry);
+        mMemoryBytes += ENTRY_OVERHEAD + 2 * entry.key.length() + entry.getStoredSize();
+        mStoredBytes += entry.getStoredSize();
+        mSize++;
+        if (mMemoryBytes >= mThreshold) {
+            spill();
+        }
+    }
+
+    public SDBFile.DBEntry get(String key) {
+        SDBFile.DBEntry retval;
+        Run[] runs;
+        synchronized (this) {
+            retval = mMemory.get(key);
+            if (retval != null || mRuns.isEmpty()) {
+                return retval;
+            }
+            retval = mCache.get(key);
+            if (retval != null) {
+                return retval;
+            }
+            runs = mRuns.toArray(new Run[mRuns.size()]);
+        }
+        try {
+            // the Bloom filters are not modified after their run is written
+            for (Run run : runs) {
+                if (!run.keys.mightContain(key)) {
+                    continue;
+                }
+                retval = run.find(key);
+                if (retval != null) {
+                    synchronized (this) {
+                        mCache.put(key, retval);
+                    }
+                    return retval;
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("cannot read spilled entry " + key, e);
+        }
+        return null;
+    }
+
+    private void spill() throws IOException {
+        if (mMemory.isEmpty()) {
+            return;
+        }
+        BloomFilter<CharSequence> keys = BloomFilter.create(Funnels.stringFunnel(Charsets.UTF_8), mMemory.size(), BLOOM_FPP);
+
+        File file = File.createTempFile("sdbentries", ".run");
+        file.deleteOnExit();
+        int indexSize = (mMemory.size() + INDEX_INTERVAL - 1) / INDEX_INTERVAL;
+        String[] indexKeys = new String[indexSize];
+        long[] indexOffsets = new long[indexSize];
+
+        CountingOutputStream counter = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+        DataOutputStream out = new DataOutputStream(counter);
+        try {
+            int n = 0;
+            for (SDBFile.DBEntry entry : mMemory.values()) {
+                if (n % INDEX_INTERVAL == 0) {
+                    indexKeys[n / INDEX_INTERVAL] = entry.key;
+                    indexOffsets[n / INDEX_INTERVAL] = counter.getCount();
+                }
+                entry.write(out);
+                keys.put(entry.key);
+                n++;
+            }
+        } finally {
+            out.close();
+        }
+
+        mRuns.add(new Run(file, indexKeys, indexOffsets, keys));
+        logger.info(String.format("spilled %d entries (%.1f MB) to run %d", mMemory.size(), mMemoryBytes / 1e6, mRuns.size()));
+        mMemory.clear();
+        mMemoryBytes = 0;
+    }
+
+    /**
+     * All entries in key order. Entries of spilled runs are read sequentially while iterating.
+     * The files of the runs stay open until the iterator reaches the end, so an iterator that is
+     * left before the end should be closed if it implements {@link Closeable}.
+     */
+    public Iterator<SDBFile.DBEntry> iterator() {
+        final ArrayList<Iterator<SDBFile.DBEntry>> sources = new ArrayList<Iterator<SDBFile.DBEntry>>();
+        synchronized (this) {
+            if (mRuns.isEmpty()) {
+                return Collections.unmodifiableCollection(mMemory.values()).iterator();
+            }
+            sources.add(new ArrayList<SDBFile.DBEntry>(mMemory.values()).iterator());
+            try {
+                for (Run run : mRuns) {
+                    sources.add(new RunIterator(run.file));
+                }
+            } catch (RuntimeException e) {
+                MergeIterator.closeSources(sources);
+                throw e;
+            }
+        }
+        return new MergeIterator(sources);
+    }
+
+    private class RunIterator implements Iterator<SDBFile.DBEntry>, Closeable {
+
+        private final File mFile;
+        private final DataInputStream mIn;
+        private SDBFile.DBEntry mNext;
+
+        RunIterator(File file) {
+            mFile = file;
+            try {
+                mIn = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+            } catch (IOException e) {
+                throw new RuntimeException("cannot read " + file, e);
+            }
+            mOpenIterators.add(this);
+            try {
+                mNext = readNext();
+            } catch (IOException e) {
+                close();
+                throw new RuntimeException("cannot read " + file, e);
+            }
+        }
+
+        private SDBFile.DBEntry readNext() throws IOException {
+            try {
+                return SDBFile.DBEntry.read(mIn);
+            } catch (EOFException e) {
+                close();
+                return null;
+            }
+        }
+
+        @Override
+        public void close() {
+            synchronized (SortedEntryStore.this) {
+                mOpenIterators.remove(this);
+            }
+            try {
+                mIn.close();
+            } catch (IOException e) {
+                logger.warn("cannot close " + mFile, e);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return mNext != null;
+        }
+
+        @Override
+        public SDBFile.DBEntry next() {
+            if (mNext == null) {
+                throw new NoSuchElementException();
+            }
+            SDBFile.DBEntry retval = mNext;
+            try {
+                mNext = readNext();
+            } catch (IOException e) {
+                throw new RuntimeException("cannot read " + mFile, e);
+            }
+            return retval;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Merges sorted iterators with distinct keys. Closing it closes the sources that are still
+     * open.
+     */
+    private static class MergeIterator implements Iterator<SDBFile.DBEntry>, Closeable {
+
+        private static class Head {
+            final SDBFile.DBEntry entry;
+            final Iterator<SDBFile.DBEntry> source;
+
+            Head(SDBFile.DBEntry entry, Iterator<SDBFile.DBEntry> source) {
+                this.entry = entry;
+                this.source = source;
+            }
+        }
+
+        private final PriorityQueue<Head> mHeads;
+        private final List<Iterator<SDBFile.DBEntry>> mSources;
+
+        MergeIterator(List<Iterator<SDBFile.DBEntry>> sources) {
+            mSources = sources;
+            mHeads = new PriorityQueue<Head>(Math.max(1, sources.size()), new Comparator<Head>() {
+                @Override
+                public int compare(Head a, Head b) {
+                    return SDBFile.KEY_COMPARATOR.compare(a.entry, b.entry);
+                }
+            });
+            for (Iterator<SDBFile.DBEntry> source : sources) {
+                if (source.hasNext()) {
+                    mHeads.add(new Head(source.next(), source));
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !mHeads.isEmpty();
+        }
+
+        @Override
+        public SDBFile.DBEntry next() {
+            Head head = mHeads.poll();
+            if (head == null) {
+                throw new NoSuchElementException();
+            }
+            if (head.source.hasNext()) {
+                mHeads.add(new Head(head.source.next(), head.source));
+            }
+            return head.entry;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() {
+            mHeads.clear();
+            closeSources(mSources);
+        }
+
+        static void closeSources(List<Iterator<SDBFile.DBEntry>> sources) {
+            for (Iterator<SDBFile.DBEntry> source : sources) {
+                if (source instanceof RunIterator) {
+                    ((RunIterator) source).close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Delete the runs and close the files of iterators that are still open, which then fail.
+     */
+    @Override
+    public synchronized void close() {
+        for (RunIterator it : new ArrayList<RunIterator>(mOpenIterators)) {
+            it.close();
+        }
+        for (Run run : mRuns) {
+            run.delete();
+        }
+        mRuns.clear();
+        mMemory.clear();
+        mCache.clear();
+        mMemoryBytes = 0;
+        mStoredBytes = 0;
+        mSize = 0;
+    }
+}
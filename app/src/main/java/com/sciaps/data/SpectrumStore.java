@@ -0,0 +1,222 @@
+package com.sciaps.data;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Spectrum files of an {@link SDBFile}, appended to a memory mapped temporary file.
+ *
+ * Blobs are copied to the end of the file, which is mapped in segments of
+ * {@link #SEGMENT_SIZE} bytes as it grows, and never moved. An open addressing table maps each id
+ * to the offset and length of its blob. Putting an id again appends the new blob and leaves the
+ * old one unused. Lookups copy the blob out of the mapping outside the lock, so any number of
+ * threads may read while one thread appends. They hold the read side of a close lock while they
+ * copy, so {@link #close()} waits for them and later lookups fail instead of reading a released
+ * mapping.
+ */
+public final class SpectrumStore implements Closeable {
+
+    static Logger logger = LoggerFactory.getLogger(SpectrumStore.class);
+
+    static final int SEGMENT_SIZE = 1 << 26;
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final File mFile;
+    private final RandomAccessFile mRandomAccessFile;
+    private MappedByteBuffer[] mSegments = new MappedByteBuffer[0];
+    private long mLength;
+
+    // open addressing index with linear probing, at most half full
+    private String[] mKeys = new String[INITIAL_CAPACITY];
+    private long[] mOffsets = new long[INITIAL_CAPACITY];
+    private int[] mLengths = new int[INITIAL_CAPACITY];
+    private int mSize;
+
+    private final ReentrantReadWriteLock mCloseLock = new ReentrantReadWriteLock();
+    private boolean mClosed;
+
+    public SpectrumStore() throws IOException {
+        mFile = File.createTempFile("sdbspectra", ".seg");
+        mFile.deleteOnExit();
+        mRandomAccessFile = new RandomAccessFile(mFile, "rw");
+    }
+
+    private static int hash(String key) {
+        // spread the bits of String.hashCode, ids often differ only in their last characters
+        int h = key.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private int slot(String key) {
+        int mask = mKeys.length - 1;
+        int i = hash(key) & mask;
+        while (mKeys[i] != null && !mKeys[i].equals(key)) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    private void grow() {
+        String[] keys = mKeys;
+        long[] offsets = mOffsets;
+        int[] lengths = mLengths;
+        mKeys = new String[keys.length * 2];
+        mOffsets = new long[keys.length * 2];
+        mLengths = new int[keys.length * 2];
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != null) {
+                int j = slot(keys[i]);
+                mKeys[j] = keys[i];
+                mOffsets[j] = offsets[i];
+                mLengths[j] = lengths[i];
+            }
+        }
+    }
+
+    private void ensureCapacity(long length) throws IOException {
+        int numSegments = (int) ((length + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+        if (numSegments <= mSegments.length) {
+            return;
+        }
+        MappedByteBuffer[] segments = Arrays.copyOf(mSegments, numSegments);
+        FileChannel channel = mRandomAccessFile.getChannel();
+        for (int i = mSegments.length; i < numSegments; i++) {
+            segments[i] = channel.map(FileChannel.MapMode.READ_WRITE, (long) i * SEGMENT_SIZE, SEGMENT_SIZE);
+        }
+        mSegments = segments;
+    }
+
+    public synchronized void put(String id, byte[] data) throws IOException {
+        if (mClosed) {
+            throw new IOException("spectrum store is closed");
+        }
+        ensureCapacity(mLength + data.length);
+
+        long pos = mLength;
+        int off = 0;
+        while (off < data.length) {
+            int segment = (int) (pos / SEGMENT_SIZE);
+            int segmentPos = (int) (pos % SEGMENT_SIZE);
+            int n = Math.min(data.length - off, SEGMENT_SIZE - segmentPos);
+
+            ByteBuffer buf = mSegments[segment].duplicate();
+            buf.position(segmentPos);
+            buf.put(data, off, n);
+
+            pos += n;
+            off += n;
+        }
+
+        int i = slot(id);
+        if (mKeys[i] == null) {
+            mKeys[i] = id;
+            mSize++;
+        }
+        mOffsets[i] = mLength;
+        mLengths[i] = data.length;
+        mLength += data.length;
+
+        if (mSize * 2 > mKeys.length) {
+            grow();
+        }
+    }
+
+    /**
+     * A copy of the blob, or null if there is none. Throws IllegalStateException once the store
+     * is closed.
+     */
+    public byte[] get(String id) {
+        mCloseLock.readLock().lock();
+        try {
+            long pos;
+            byte[] retval;
+            MappedByteBuffer[] segments;
+            synchronized (this) {
+                if (mClosed) {
+                    throw new IllegalStateException("spectrum store is closed");
+                }
+                int i = slot(id);
+                if (mKeys[i] == null) {
+                    return null;
+                }
+                pos = mOffsets[i];
+                retval = new byte[mLengths[i]];
+                segments = mSegments;
+            }
+
+            int off = 0;
+            while (off < retval.length) {
+                int segment = (int) (pos / SEGMENT_SIZE);
+                int segmentPos = (int) (pos % SEGMENT_SIZE);
+                int n = Math.min(retval.length - off, SEGMENT_SIZE - segmentPos);
+
+                // duplicate() gives this read its own position, the mapping itself is shared
+                ByteBuffer buf = segments[segment].duplicate();
+                buf.position(segmentPos);
+                buf.get(retval, off, n);
+
+                pos += n;
+                off += n;
+            }
+            return retval;
+        } finally {
+            mCloseLock.readLock().unlock();
+        }
+    }
+
+    public synchronized boolean contains(String id) {
+        return mKeys[slot(id)] != null;
+    }
+
+    public synchronized int size() {
+        return mSize;
+    }
+
+    /**
+     * Bytes appended so far, including blobs that were replaced.
+     */
+    public synchronized long getDataBytes() {
+        return mLength;
+    }
+
+    /**
+     * Wait for the lookups that are copying, then drop the index and delete the file. Later calls
+     * of put and get fail. The mappings are released when the buffers are garbage collected,
+     * until then the file may not be deleted on every platform.
+     */
+    @Override
+    public void close() throws IOException {
+        // the close lock is always taken before the monitor, get does the same
+        mCloseLock.writeLock().lock();
+        try {
+            synchronized (this) {
+                if (mClosed) {
+                    return;
+                }
+                mClosed = true;
+                mSegments = new MappedByteBuffer[0];
+                mKeys = new String[INITIAL_CAPACITY];
+                mOffsets = new long[INITIAL_CAPACITY];
+                mLengths = new int[INITIAL_CAPACITY];
+                mSize = 0;
+                mLength = 0;
+                mRandomAccessFile.close();
+            }
+        } finally {
+            mCloseLock.writeLock().unlock();
+        }
+        if (mFile.exists() && !mFile.delete()) {
+            logger.warn("cannot delete {}, it is deleted on exit", mFile);
+        }
+    }
+}
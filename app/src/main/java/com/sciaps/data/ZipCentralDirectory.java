@@ -0,0 +1,219 @@
+package com.sciaps.data;
+
+import com.google.common.base.Charsets;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Minimal reader for the central directory of a zip file (including zip64 archives), used to
+ * reach the data of a single entry without reading the entries before it.
+ */
+class ZipCentralDirectory {
+
+    private static final int EOCD_SIG = 0x06054b50;
+    private static final int ZIP64_EOCD_LOCATOR_SIG = 0x07064b50;
+    private static final int ZIP64_EOCD_SIG = 0x06064b50;
+    private static final int CENTRAL_HEADER_SIG = 0x02014b50;
+    private static final int LOCAL_HEADER_SIG = 0x04034b50;
+
+    private static final int EOCD_SIZE = 22;
+    private static final int MAX_COMMENT_SIZE = 0xFFFF;
+
+    static final int STORED = 0;
+    static final int DEFLATED = 8;
+
+    static class Entry {
+        final String name;
+        final int method;
+        final long compressedSize;
+        final long size;
+        final long localHeaderOffset;
+
+        Entry(String name, int method, long compressedSize, long size, long localHeaderOffset) {
+            this.name = name;
+            this.method = method;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.localHeaderOffset = localHeaderOffset;
+        }
+    }
+
+    static List<Entry> read(MappedFile file) throws IOException {
+        long eocd = findEndOfCentralDirectory(file);
+        byte[] eocdBytes = file.read(eocd, EOCD_SIZE);
+
+        long numEntries = u16(eocdBytes, 10);
+        long cdSize = u32(eocdBytes, 12);
+        long cdOffset = u32(eocdBytes, 16);
+
+        if (numEntries == 0xFFFF || cdSize == 0xFFFFFFFFL || cdOffset == 0xFFFFFFFFL) {
+            byte[] locator = file.read(eocd - 20, 20);
+            if (s32(locator, 0) != ZIP64_EOCD_LOCATOR_SIG) {
+                throw new ZipException("missing zip64 end of central directory locator");
+            }
+            byte[] zip64Eocd = file.read(u64(locator, 8), 56);
+            if (s32(zip64Eocd, 0) != ZIP64_EOCD_SIG) {
+                throw new ZipException("invalid zip64 end of central directory");
+            }
+            numEntries = u64(zip64Eocd, 32);
+            cdSize = u64(zip64Eocd, 40);
+            cdOffset = u64(zip64Eocd, 48);
+        }
+
+        if (cdSize > Integer.MAX_VALUE) {
+            throw new ZipException("central directory too large: " + cdSize);
+        }
+
+        byte[] cd = file.read(cdOffset, (int) cdSize);
+        ArrayList<Entry> retval = new ArrayList<Entry>((int) Math.min(numEntries, Integer.MAX_VALUE));
+
+        int pos = 0;
+        for (long i = 0; i < numEntries; i++) {
+            if (s32(cd, pos) != CENTRAL_HEADER_SIG) {
+                throw new ZipException("invalid central directory entry at " + (cdOffset + pos));
+            }
+
+            int method = u16(cd, pos + 10);
+            long compressedSize = u32(cd, pos + 20);
+            long size = u32(cd, pos + 24);
+            int nameLength = u16(cd, pos + 28);
+            int extraLength = u16(cd, pos + 30);
+            int commentLength = u16(cd, pos + 32);
+            long localHeaderOffset = u32(cd, pos + 42);
+            String name = new String(cd, pos + 46, nameLength, Charsets.UTF_8);
+
+            // zip64 extended information only holds the fields that overflowed, in this order
+            int extra = pos + 46 + nameLength;
+            int extraEnd = extra + extraLength;
+            while (extra + 4 <= extraEnd) {
+                int id = u16(cd, extra);
+                int length = u16(cd, extra + 2);
+                if (id == 0x0001) {
+                    int field = extra + 4;
+                    if (size == 0xFFFFFFFFL) {
+                        size = u64(cd, field);
+                        field += 8;
+                    }
+                    if (compressedSize == 0xFFFFFFFFL) {
+                        compressedSize = u64(cd, field);
+                        field += 8;
+                    }
+                    if (localHeaderOffset == 0xFFFFFFFFL) {
+                        localHeaderOffset = u64(cd, field);
+                    }
+                }
+                extra += 4 + length;
+            }
+
+            retval.add(new Entry(name, method, compressedSize, size, localHeaderOffset));
+            pos = extraEnd + commentLength;
+        }
+
+        return retval;
+    }
+
+    private static long findEndOfCentralDirectory(MappedFile file) throws IOException {
+        long length = file.length();
+        if (length < EOCD_SIZE) {
+            throw new ZipException("not a zip file");
+        }
+
+        int tailSize = (int) Math.min(length, EOCD_SIZE + MAX_COMMENT_SIZE);
+        byte[] tail = file.read(length - tailSize, tailSize);
+        for (int i = tailSize - EOCD_SIZE; i >= 0; i--) {
+            if (s32(tail, i) == EOCD_SIG) {
+                return length - tailSize + i;
+            }
+        }
+        throw new ZipException("end of central directory not found");
+    }
+
+    /**
+     * Read and decompress the data of an entry.
+     */
+    static byte[] readEntry(MappedFile file, Entry entry) throws IOException {
+        if (entry.size > Integer.MAX_VALUE || entry.compressedSize > Integer.MAX_VALUE) {
+            throw new ZipException("entry too large: " + entry.name);
+        }
+
+        byte[] header = file.read(entry.localHeaderOffset, 30);
+        if (s32(header, 0) != LOCAL_HEADER_SIG) {
+            throw new ZipException("invalid local header for " + entry.name);
+        }
+        long dataOffset = entry.localHeaderOffset + 30 + u16(header, 26) + u16(header, 28);
+        int compressedSize = (int) entry.compressedSize;
+
+        switch (entry.method) {
+            case STORED:
+                return file.read(dataOffset, compressedSize);
+
+            case DEFLATED:
+                byte[] data = InflaterPool.getInputBuffer(compressedSize + 1);
+                file.read(dataOffset, data, 0, compressedSize);
+                return inflate(data, compressedSize, (int) entry.size);
+
+            default:
+                throw new ZipException("unsupported compression method " + entry.method + " for " + entry.name);
+        }
+    }
+
+    /**
+     * Inflate the first length bytes of data with the pooled Inflater of the calling thread.
+     * data must have room for one byte past length.
+     */
+    static byte[] inflate(byte[] data, int length, int size) throws IOException {
+        Inflater inflater = InflaterPool.getInflater();
+        try {
+            inflater.setInput(data, 0, length);
+            byte[] retval = new byte[size];
+            int n = 0;
+            boolean dummyAdded = false;
+            while (n < size) {
+                int count = inflater.inflate(retval, n, size - n);
+                n += count;
+                if (count == 0) {
+                    if (inflater.finished() || inflater.needsDictionary()) {
+                        break;
+                    }
+                    if (inflater.needsInput()) {
+                        if (dummyAdded) {
+                            break;
+                        }
+                        // raw deflate streams may need one extra dummy byte to finish
+                        data[length] = 0;
+                        inflater.setInput(data, length, 1);
+                        dummyAdded = true;
+                    }
+                }
+            }
+            if (n != size) {
+                throw new ZipException("entry is shorter than its declared size");
+            }
+            InflaterPool.countEntry(length, size);
+            return retval;
+        } catch (DataFormatException e) {
+            throw new ZipException(e.getMessage());
+        }
+    }
+
+    private static int u16(byte[] b, int off) {
+        return (b[off] & 0xFF) | (b[off + 1] & 0xFF) << 8;
+    }
+
+    private static int s32(byte[] b, int off) {
+        return (b[off] & 0xFF) | (b[off + 1] & 0xFF) << 8 | (b[off + 2] & 0xFF) << 16 | (b[off + 3] & 0xFF) << 24;
+    }
+
+    private static long u32(byte[] b, int off) {
+        return s32(b, off) & 0xFFFFFFFFL;
+    }
+
+    private static long u64(byte[] b, int off) {
+        return u32(b, off) | u32(b, off + 4) << 32;
+    }
+}
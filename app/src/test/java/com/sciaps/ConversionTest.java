@@ -0,0 +1,163 @@
+package com.sciaps;
+
+import com.devsmart.microdb.DBBuilder;
+import com.devsmart.microdb.MicroDB;
+import com.sciaps.Utils.ConversionJournal;
+import com.sciaps.Utils.ConversionMetrics;
+import com.sciaps.Utils.DBObjectInventory;
+import com.sciaps.data.Acquisition;
+import com.sciaps.data.LIBZDB;
+import com.sciaps.data.OrgLIBZTest;
+import com.sciaps.data.SDBFile;
+import com.sciaps.data.SpectraData;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.zip.ZipInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Converts small archives made by {@link SDBGenerator} and checks that every object and spectrum
+ * arrives in the output database. Spectra decode only when SDB_TEMPLATE (or the sdb.template
+ * system property) names an .sdb file to take spectrum files from; without it every test must
+ * fail to convert, and still be written exactly once.
+ */
+public class ConversionTest {
+
+    private static final int STANDARDS = 8;
+    private static final int TESTS = 24;
+    private static final int SHOTS = 5;
+    private static final int MODELS = 3;
+    private static final int THREADS = 4;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private boolean mDecodable;
+
+    private File generate(String layout) throws IOException {
+        File retval = mFolder.newFile(layout + ".sdb");
+        SDBGenerator generator = new SDBGenerator();
+        generator.setOutput(retval);
+        generator.setStandards(STANDARDS);
+        generator.setTests(TESTS);
+        generator.setShots(SHOTS);
+        generator.setModels(MODELS);
+        generator.setLayout(layout);
+        generator.generate();
+        mDecodable = generator.hasDecodableSpectra();
+        return retval;
+    }
+
+    /**
+     * Number of spectra in the archive, decoded one test at a time on this thread.
+     */
+    private int countSpectra(File archive) throws IOException {
+        if (!mDecodable) {
+            return 0;
+        }
+        SDBFile sdbFile = new SDBFile();
+        ZipInputStream zipIn = new ZipInputStream(new FileInputStream(archive));
+        try {
+            sdbFile.load(zipIn);
+        } finally {
+            zipIn.close();
+        }
+        LIBZDB libzdb = new LIBZDB();
+        libzdb.load(sdbFile);
+
+        int retval = 0;
+        for (OrgLIBZTest test : libzdb.getAllTests()) {
+            retval += libzdb.getSpectra(test).size();
+        }
+        sdbFile.close();
+        return retval;
+    }
+
+    private void convert(String layout, boolean memoryMapped) throws Exception {
+        File archive = generate(layout);
+        int spectra = countSpectra(archive);
+
+        File outputDir = mFolder.newFolder(layout + (memoryMapped ? "-mapped" : "-loaded"));
+        DBConverter converter = new DBConverter();
+        converter.setOutputDirectory(outputDir);
+        converter.setMemoryMapped(memoryMapped);
+        converter.setDecoderThreads(THREADS);
+        converter.doDBConvert(archive);
+
+        ConversionMetrics metrics = converter.getMetrics();
+        assertEquals("standards", STANDARDS, metrics.getCounter("objects.standard"));
+        assertEquals("tests", TESTS, metrics.getCounter("objects.test"));
+        assertEquals("models", MODELS, metrics.getCounter("objects.model"));
+        assertEquals("failed tests", mDecodable ? 0 : TESTS, metrics.getCounter("tests.failed"));
+        assertEquals("spectra", spectra, metrics.getCounter("spectra.decoded"));
+        assertEquals("spectrum files decoded", metrics.getCounter("spectra.files.expected"),
+                metrics.getCounter("spectra.files.decoded"));
+
+        File dbfile = new File(outputDir, "maindb");
+        DBObjectInventory inventory = new DBObjectInventory();
+        inventory.loadSourceRecords(DBObjectInventory.getSourceRecordFile(dbfile));
+        assertEquals(STANDARDS, inventory.getSourceRecordCount(ConversionJournal.TYPE_STANDARD));
+        assertEquals(TESTS, inventory.getSourceRecordCount(ConversionJournal.TYPE_TEST));
+        assertEquals(MODELS, inventory.getSourceRecordCount(ConversionJournal.TYPE_MODEL));
+
+        // every test became one acquisition holding all of its spectra
+        MicroDB db = DBBuilder.builder().build(dbfile);
+        try {
+            SDBFile sdbFile = new SDBFile();
+            ZipInputStream zipIn = new ZipInputStream(new FileInputStream(archive));
+            try {
+                sdbFile.load(zipIn);
+            } finally {
+                zipIn.close();
+            }
+            LIBZDB libzdb = new LIBZDB();
+            libzdb.load(sdbFile);
+
+            int written = 0;
+            for (String testId : libzdb.getAllTests().getIds()) {
+                DBObjectInventory.SourceRecord record = inventory.getSourceRecord(ConversionJournal.TYPE_TEST, testId);
+                assertNotNull(testId, record);
+                Acquisition acquisition = db.get(record.target);
+                assertNotNull(testId, acquisition);
+                SpectraData[] spectraData = acquisition.getSpectraData();
+                if (spectraData != null) {
+                    for (SpectraData data : spectraData) {
+                        assertNotNull(testId, data);
+                        written++;
+                    }
+                }
+            }
+            assertEquals("spectra written", spectra, written);
+            sdbFile.close();
+        } finally {
+            db.close();
+        }
+    }
+
+    @Test
+    public void convertMultiShot() throws Exception {
+        convert(SDBGenerator.LAYOUT_MULTISHOT, false);
+    }
+
+    @Test
+    public void convertMultiShotMapped() throws Exception {
+        convert(SDBGenerator.LAYOUT_MULTISHOT, true);
+    }
+
+    @Test
+    public void convertPerShot() throws Exception {
+        convert(SDBGenerator.LAYOUT_PERSHOT, false);
+    }
+
+    @Test
+    public void convertMixedMapped() throws Exception {
+        convert(SDBGenerator.LAYOUT_MIXED, true);
+    }
+}
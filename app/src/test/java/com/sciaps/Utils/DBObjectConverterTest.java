@@ -0,0 +1,121 @@
+package com.sciaps.Utils;
+
+import com.sciaps.SDBGenerator;
+import com.sciaps.data.LIBZDB;
+import com.sciaps.data.OrgLIBZTest;
+import com.sciaps.data.SDBFile;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.zip.ZipInputStream;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that decoding the tests of a generated archive opens each spectrum file exactly once,
+ * on one decoder thread and on several. Filler spectrum files fail to decode after they are
+ * opened, which is enough for the multi-shot layout; the per-shot layouts stop at the first
+ * filler shot, so they need SDB_TEMPLATE (or the sdb.template system property).
+ */
+public class DBObjectConverterTest {
+
+    private static final int TESTS = 16;
+    private static final int SHOTS = 4;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private SDBFile mSDBFile;
+    private LIBZDB mLibzdb;
+    private long mSpectrumFiles;
+
+    @After
+    public void close() throws IOException {
+        if (mSDBFile != null) {
+            mSDBFile.close();
+        }
+    }
+
+    private void load(String layout) throws IOException {
+        File archive = mFolder.newFile(layout + ".sdb");
+        SDBGenerator generator = new SDBGenerator();
+        generator.setOutput(archive);
+        generator.setStandards(4);
+        generator.setTests(TESTS);
+        generator.setShots(SHOTS);
+        generator.setModels(1);
+        generator.setLayout(layout);
+        generator.generate();
+        Assume.assumeTrue(generator.hasDecodableSpectra() || SDBGenerator.LAYOUT_MULTISHOT.equals(layout));
+
+        mSDBFile = new SDBFile();
+        ZipInputStream zipIn = new ZipInputStream(new FileInputStream(archive));
+        try {
+            mSDBFile.load(zipIn);
+        } finally {
+            zipIn.close();
+        }
+        mLibzdb = new LIBZDB();
+        mLibzdb.load(mSDBFile);
+
+        for (OrgLIBZTest test : mLibzdb.getAllTests()) {
+            mSpectrumFiles += mLibzdb.getSpectrumIds(test).size();
+        }
+        assertEquals(TESTS, mLibzdb.getAllTests().count());
+    }
+
+    private void assertDecodedOnce(DBObjectConverter converter, int threads) {
+        long before = mLibzdb.getSpectrumFilesDecoded();
+        long files = 0;
+        SpectraDecoder decoder = new SpectraDecoder(converter, mLibzdb, threads);
+        try {
+            for (DBObjectConverter.DecodedSpectra decoded : decoder.decode(mLibzdb.getAllTests())) {
+                files += decoded.getSpectrumFileCount();
+                decoded.release();
+            }
+        } finally {
+            decoder.shutdown();
+        }
+        assertEquals("spectrum files of the tests", mSpectrumFiles, files);
+        assertEquals("spectrum files decoded with " + threads + " threads", mSpectrumFiles,
+                mLibzdb.getSpectrumFilesDecoded() - before);
+    }
+
+    @Test
+    public void decodeMultiShotOnce() throws IOException {
+        load(SDBGenerator.LAYOUT_MULTISHOT);
+        DBObjectConverter converter = new DBObjectConverter();
+        assertDecodedOnce(converter, 1);
+        assertDecodedOnce(converter, 4);
+    }
+
+    @Test
+    public void decodePerShotOnce() throws IOException {
+        load(SDBGenerator.LAYOUT_PERSHOT);
+        DBObjectConverter converter = new DBObjectConverter();
+        assertDecodedOnce(converter, 1);
+        assertDecodedOnce(converter, 4);
+    }
+
+    @Test
+    public void decodeMixedOnce() throws IOException {
+        load(SDBGenerator.LAYOUT_MIXED);
+        DBObjectConverter converter = new DBObjectConverter();
+        assertDecodedOnce(converter, 1);
+        assertDecodedOnce(converter, 4);
+    }
+
+    @Test
+    public void decodeMixedOnceWithDedup() throws IOException {
+        load(SDBGenerator.LAYOUT_MIXED);
+        DBObjectConverter converter = new DBObjectConverter();
+        converter.setSpectrumDedup(new SpectrumDedup(mLibzdb));
+        assertDecodedOnce(converter, 4);
+    }
+}
@@ -0,0 +1,173 @@
+package com.sciaps.data;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.TypeAdapter;
+import com.sciaps.common.objtracker.DBObj;
+import com.sciaps.common.objtracker.IdRefTypeAdapterFactory;
+import com.sciaps.common.objtracker.IdReference;
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Fills every @GenerateTypeAdapter class with distinct values and checks that its generated adapter
+ * writes exactly what reflective Gson writes, field order included, and reads it back to the same
+ * object. The Gson instances are configured like the ones of LIBZDB.
+ */
+public class GeneratedTypeAdaptersTest {
+
+    private final Map<String, DBObj> mObjects = new HashMap<String, DBObj>();
+    private int mNext;
+
+    private final DBObj.ObjLoader mLoader = new DBObj.ObjLoader() {
+        @Override
+        public Object load(String id, Class<?> type) {
+            return mObjects.get(id);
+        }
+    };
+
+    private final Gson mReflectiveGson = new GsonBuilder()
+            .registerTypeAdapterFactory(new IdRefTypeAdapterFactory())
+            .serializeNulls()
+            .serializeSpecialFloatingPointValues()
+            .create();
+
+    private final Gson mGeneratedGson = new GsonBuilder()
+            .registerTypeAdapterFactory(new GeneratedTypeAdapters(mLoader))
+            .registerTypeAdapterFactory(new IdRefTypeAdapterFactory())
+            .serializeNulls()
+            .serializeSpecialFloatingPointValues()
+            .create();
+
+    private DBObj createReference(Class<?> type) throws Exception {
+        DBObj retval = (DBObj) type.newInstance();
+        retval.mId = "ref-" + mNext++;
+        mObjects.put(retval.mId, retval);
+        return retval;
+    }
+
+    private static Class<?> getElementType(Field field) {
+        Type type = field.getGenericType();
+        if (type instanceof ParameterizedType) {
+            Type[] args = ((ParameterizedType) type).getActualTypeArguments();
+            if (args.length == 1 && args[0] instanceof Class) {
+                return (Class<?>) args[0];
+            }
+        }
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Collection<Object> getCollection(Object obj, Field field) throws Exception {
+        Collection<Object> retval = (Collection<Object>) field.get(obj);
+        if (retval == null) {
+            retval = Set.class.isAssignableFrom(field.getType()) ? new LinkedHashSet<Object>() : new ArrayList<Object>();
+            field.set(obj, retval);
+        }
+        return retval;
+    }
+
+    /**
+     * Give every serialized field a value that differs from its default, where the type allows
+     * it without knowing the classes of the common library.
+     */
+    private void fill(Object obj) throws Exception {
+        for (Class<?> c = obj.getClass(); c != Object.class; c = c.getSuperclass()) {
+            for (Field field : c.getDeclaredFields()) {
+                int modifiers = field.getModifiers();
+                if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers) || field.isSynthetic()) {
+                    continue;
+                }
+                field.setAccessible(true);
+                Class<?> type = field.getType();
+                int n = ++mNext;
+
+                IdReference idReference = field.getAnnotation(IdReference.class);
+                if (idReference != null) {
+                    Class<?> refType = idReference.type() != Object.class ? idReference.type() : null;
+                    if (Collection.class.isAssignableFrom(type)) {
+                        Collection<Object> refs = getCollection(obj, field);
+                        refs.clear();
+                        refs.add(createReference(refType != null ? refType : getElementType(field)));
+                        refs.add(createReference(refType != null ? refType : getElementType(field)));
+                    } else {
+                        field.set(obj, createReference(type));
+                    }
+                } else if (type == int.class) {
+                    field.setInt(obj, n);
+                } else if (type == long.class) {
+                    field.setLong(obj, n * 1000000007L);
+                } else if (type == float.class) {
+                    field.setFloat(obj, n + 0.1f);
+                } else if (type == double.class) {
+                    field.setDouble(obj, n + 0.3);
+                } else if (type == boolean.class) {
+                    field.setBoolean(obj, !field.getBoolean(obj));
+                } else if (type == String.class) {
+                    field.set(obj, "value \"" + n + "\"");
+                } else if (type.isEnum()) {
+                    Object[] constants = type.getEnumConstants();
+                    field.set(obj, constants[n % constants.length]);
+                } else if (GeneratedTypeAdapters.isGenerated(type)) {
+                    Object value = type.newInstance();
+                    fill(value);
+                    field.set(obj, value);
+                } else if (Collection.class.isAssignableFrom(type) && getElementType(field) != null
+                        && GeneratedTypeAdapters.isGenerated(getElementType(field))) {
+                    Object element = getElementType(field).newInstance();
+                    fill(element);
+                    getCollection(obj, field).add(element);
+                }
+            }
+        }
+    }
+
+    private void checkRoundTrip(Class<?> type) throws Exception {
+        Object obj = type.newInstance();
+        fill(obj);
+
+        TypeAdapter<?> adapter = mGeneratedGson.getAdapter(type);
+        assertTrue(type.getName(), adapter.getClass().getSimpleName().endsWith("TypeAdapter"));
+
+        String expected = mReflectiveGson.toJson(obj);
+        assertEquals(type.getName(), expected, mGeneratedGson.toJson(obj));
+
+        Object generated = mGeneratedGson.fromJson(expected, type);
+        assertEquals(type.getName(), expected, mReflectiveGson.toJson(generated));
+
+        Object reflective = mReflectiveGson.fromJson(expected, type);
+        if (reflective instanceof DBObj) {
+            ((DBObj) reflective).loadFields(mLoader);
+        }
+        assertEquals(type.getName(), expected, mGeneratedGson.toJson(reflective));
+    }
+
+    @Test
+    public void generatedMatchesReflective() throws Exception {
+        List<Class<?>> types = GeneratedTypeAdapters.getGeneratedTypes();
+        assertFalse(types.isEmpty());
+        for (Class<?> type : types) {
+            assertTrue(type.getName(), GeneratedTypeAdapters.isGenerated(type));
+            checkRoundTrip(type);
+        }
+    }
+
+    @Test
+    public void defaultsMatchReflective() throws Exception {
+        for (Class<?> type : GeneratedTypeAdapters.getGeneratedTypes()) {
+            Object empty = type.newInstance();
+            String json = mReflectiveGson.toJson(empty);
+            assertEquals(type.getName(), json, mGeneratedGson.toJson(empty));
+            assertEquals(type.getName(), json, mReflectiveGson.toJson(mGeneratedGson.fromJson(json, type)));
+        }
+    }
+}
@@ -0,0 +1,598 @@
+package com.sciaps.processor;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.*;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.*;
+
+/**
+ * Generates a Gson TypeAdapter for every class annotated with com.sciaps.data.GenerateTypeAdapter
+ * and one GeneratedTypeAdapters factory per package that returns them.
+ *
+ * The adapters read and write the same JSON as Gson's reflective adapter: every non static, non
+ * transient field of the class and its superclasses, subclass fields first, named after the
+ * field or its @SerializedName. Every field must be accessible from the package of the class.
+ * @Expose, @Since, @Until and @JsonAdapter depend on how the Gson instance is configured, so they
+ * are rejected. Fields of type int, long, float, double, boolean and String are read and written
+ * directly. Fields annotated with @IdReference are written as the id of the referenced object
+ * (a list of ids for collections) and resolved through the DBObj.ObjLoader given to the factory
+ * while reading. Every other field is handed to the adapter Gson has for its declared type.
+ */
+@SupportedAnnotationTypes(TypeAdapterProcessor.ANNOTATION)
+public class TypeAdapterProcessor extends AbstractProcessor {
+
+    static final String ANNOTATION = "com.sciaps.data.GenerateTypeAdapter";
+    static final String ID_REFERENCE = "com.sciaps.common.objtracker.IdReference";
+    static final String OBJ_LOADER = "com.sciaps.common.objtracker.DBObj.ObjLoader";
+    static final String DB_OBJ = "com.sciaps.common.objtracker.DBObj";
+    static final String FACTORY_NAME = "GeneratedTypeAdapters";
+    static final String SERIALIZED_NAME = "com.google.gson.annotations.SerializedName";
+    static final List<String> UNSUPPORTED_ANNOTATIONS = Arrays.asList(
+            "com.google.gson.annotations.Expose",
+            "com.google.gson.annotations.Since",
+            "com.google.gson.annotations.Until",
+            "com.google.gson.annotations.JsonAdapter");
+
+    private enum Kind {
+        INT, LONG, FLOAT, DOUBLE, BOOLEAN, STRING, ID_REFERENCE, ID_REFERENCE_COLLECTION, DELEGATE
+    }
+
+    private static class Property {
+        String name;
+        String jsonName;
+        List<String> alternateNames = new ArrayList<String>();
+        String typeName;
+        Kind kind;
+        String refType;
+        String collectionImpl;
+        TypeMirror type;
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        TreeMap<String, List<TypeElement>> byPackage = new TreeMap<String, List<TypeElement>>();
+        for (TypeElement annotation : annotations) {
+            for (Element element : roundEnv.getElementsAnnotatedWith(annotation)) {
+                if (element.getKind() != ElementKind.CLASS || element.getModifiers().contains(Modifier.ABSTRACT)) {
+                    error(element, "@GenerateTypeAdapter needs a concrete class");
+                    continue;
+                }
+                String packageName = processingEnv.getElementUtils().getPackageOf(element).getQualifiedName().toString();
+                List<TypeElement> types = byPackage.get(packageName);
+                if (types == null) {
+                    types = new ArrayList<TypeElement>();
+                    byPackage.put(packageName, types);
+                }
+                types.add((TypeElement) element);
+            }
+        }
+
+        for (Map.Entry<String, List<TypeElement>> e : byPackage.entrySet()) {
+            try {
+                for (TypeElement type : e.getValue()) {
+                    writeAdapter(e.getKey(), type);
+                }
+                writeFactory(e.getKey(), e.getValue());
+            } catch (IOException ex) {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "cannot write type adapters: " + ex);
+            }
+        }
+        return true;
+    }
+
+    private void error(Element element, String msg) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, msg, element);
+    }
+
+    static String getAdapterName(TypeElement type) {
+        String retval = type.getSimpleName().toString();
+        Element enclosing = type.getEnclosingElement();
+        while (enclosing.getKind() != ElementKind.PACKAGE) {
+            retval = enclosing.getSimpleName() + "_" + retval;
+            enclosing = enclosing.getEnclosingElement();
+        }
+        return retval + "TypeAdapter";
+    }
+
+    private static String getQualifiedName(AnnotationMirror annotation) {
+        return ((TypeElement) annotation.getAnnotationType().asElement()).getQualifiedName().toString();
+    }
+
+    /**
+     * Report the Gson annotations of the element that the generated adapter would ignore. The
+     * error is reported on the annotated class, which may be in a library without sources.
+     */
+    private boolean checkAnnotations(TypeElement type, Element element, String what) {
+        boolean retval = true;
+        for (AnnotationMirror annotation : element.getAnnotationMirrors()) {
+            String name = getQualifiedName(annotation);
+            if (UNSUPPORTED_ANNOTATIONS.contains(name)) {
+                error(type, "@" + name.substring(name.lastIndexOf('.') + 1) + " on " + what
+                        + " is not supported by @GenerateTypeAdapter");
+                retval = false;
+            }
+        }
+        return retval;
+    }
+
+    private List<Property> getProperties(String packageName, TypeElement type) {
+        ArrayList<Property> retval = new ArrayList<Property>();
+        HashSet<String> names = new HashSet<String>();
+
+        TypeElement current = type;
+        while (current != null && !current.getQualifiedName().contentEquals("java.lang.Object")) {
+            boolean samePackage = processingEnv.getElementUtils().getPackageOf(current).getQualifiedName().contentEquals(packageName);
+            checkAnnotations(type, current, current.getQualifiedName().toString());
+            for (VariableElement field : ElementFilter.fieldsIn(current.getEnclosedElements())) {
+                // Gson's default exclusion, the Gson instances of the converter do not change it
+                Set<Modifier> modifiers = field.getModifiers();
+                if (modifiers.contains(Modifier.STATIC) || modifiers.contains(Modifier.TRANSIENT)) {
+                    continue;
+                }
+                String fieldName = current.getSimpleName() + "." + field.getSimpleName();
+                if (!checkAnnotations(type, field, fieldName)) {
+                    continue;
+                }
+                boolean accessible = modifiers.contains(Modifier.PUBLIC)
+                        || (samePackage && !modifiers.contains(Modifier.PRIVATE));
+                if (!accessible) {
+                    // reflective Gson would read and write it, the generated adapter cannot
+                    error(type, "field " + fieldName + " is not accessible from package " + packageName
+                            + ", @GenerateTypeAdapter needs every serialized field to be");
+                    continue;
+                }
+                Property property = createProperty(field);
+                if (property == null) {
+                    continue;
+                }
+                if (!names.add(property.jsonName)) {
+                    error(type, "more than one field is named " + property.jsonName + " in JSON, at " + fieldName);
+                    continue;
+                }
+                retval.add(property);
+            }
+
+            TypeMirror superclass = current.getSuperclass();
+            current = superclass.getKind() == TypeKind.DECLARED
+                    ? (TypeElement) ((DeclaredType) superclass).asElement() : null;
+        }
+        return retval;
+    }
+
+    private Property createProperty(VariableElement field) {
+        Property retval = new Property();
+        retval.name = field.getSimpleName().toString();
+        retval.jsonName = retval.name;
+        retval.type = field.asType();
+        retval.typeName = retval.type.toString();
+
+        AnnotationMirror idReference = null;
+        for (AnnotationMirror annotation : field.getAnnotationMirrors()) {
+            String name = getQualifiedName(annotation);
+            if (ID_REFERENCE.equals(name)) {
+                idReference = annotation;
+            } else if (SERIALIZED_NAME.equals(name)) {
+                readSerializedName(annotation, retval);
+            }
+        }
+
+        if (idReference != null) {
+            String refType = null;
+            for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> e : idReference.getElementValues().entrySet()) {
+                if (e.getKey().getSimpleName().contentEquals("type")) {
+                    refType = e.getValue().getValue().toString();
+                }
+            }
+            if ("java.lang.Object".equals(refType)) {
+                refType = null;
+            }
+
+            TypeMirror erasure = processingEnv.getTypeUtils().erasure(retval.type);
+            TypeMirror collection = processingEnv.getTypeUtils().erasure(
+                    processingEnv.getElementUtils().getTypeElement("java.util.Collection").asType());
+            if (processingEnv.getTypeUtils().isAssignable(erasure, collection)) {
+                List<? extends TypeMirror> args = ((DeclaredType) retval.type).getTypeArguments();
+                if (refType == null && args.size() == 1) {
+                    refType = processingEnv.getTypeUtils().erasure(args.get(0)).toString();
+                }
+                if (refType == null) {
+                    error(field, "cannot tell the element type of @IdReference collection " + retval.name);
+                    return null;
+                }
+                retval.kind = Kind.ID_REFERENCE_COLLECTION;
+                retval.refType = refType;
+                retval.collectionImpl = getCollectionImpl(field, (DeclaredType) retval.type);
+                return retval.collectionImpl != null ? retval : null;
+            }
+
+            retval.kind = Kind.ID_REFERENCE;
+            retval.refType = erasure.toString();
+            return retval;
+        }
+
+        switch (retval.type.getKind()) {
+            case INT:
+                retval.kind = Kind.INT;
+                break;
+            case LONG:
+                retval.kind = Kind.LONG;
+                break;
+            case FLOAT:
+                retval.kind = Kind.FLOAT;
+                break;
+            case DOUBLE:
+                retval.kind = Kind.DOUBLE;
+                break;
+            case BOOLEAN:
+                retval.kind = Kind.BOOLEAN;
+                break;
+            case BYTE:
+            case SHORT:
+            case CHAR:
+                error(field, "unsupported primitive field type " + retval.typeName);
+                return null;
+            default:
+                retval.kind = "java.lang.String".equals(retval.typeName) ? Kind.STRING : Kind.DELEGATE;
+                break;
+        }
+        return retval;
+    }
+
+    /**
+     * The JSON name of the field, and the names also accepted when reading with Gson versions
+     * that have SerializedName.alternate.
+     */
+    private static void readSerializedName(AnnotationMirror annotation, Property property) {
+        for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> e : annotation.getElementValues().entrySet()) {
+            String key = e.getKey().getSimpleName().toString();
+            if ("value".equals(key)) {
+                property.jsonName = (String) e.getValue().getValue();
+            } else if ("alternate".equals(key)) {
+                for (Object alternate : (List<?>) e.getValue().getValue()) {
+                    property.alternateNames.add((String) ((AnnotationValue) alternate).getValue());
+                }
+            }
+        }
+    }
+
+    /**
+     * Java string literal of s.
+     */
+    private static String literal(String s) {
+        StringBuilder retval = new StringBuilder("\"");
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                retval.append('\\').append(c);
+            } else if (c < 0x20 || c > 0x7e) {
+                retval.append(String.format("\\u%04x", (int) c));
+            } else {
+                retval.append(c);
+            }
+        }
+        return retval.append('"').toString();
+    }
+
+    /**
+     * Class created for an @IdReference collection field that is null when it is read.
+     */
+    private String getCollectionImpl(VariableElement field, DeclaredType type) {
+        TypeElement element = (TypeElement) type.asElement();
+        String typeArgs = type.getTypeArguments().isEmpty() ? "" : type.toString().substring(type.toString().indexOf('<'));
+        if (element.getKind() == ElementKind.CLASS && !element.getModifiers().contains(Modifier.ABSTRACT)) {
+            return element.getQualifiedName() + typeArgs;
+        }
+
+        String name = element.getQualifiedName().toString();
+        if ("java.util.List".equals(name) || "java.util.Collection".equals(name)) {
+            return "java.util.ArrayList" + typeArgs;
+        }
+        if ("java.util.Set".equals(name)) {
+            return "java.util.LinkedHashSet" + typeArgs;
+        }
+        error(field, "unsupported @IdReference collection type " + type);
+        return null;
+    }
+
+    private static String adapterField(Property p) {
+        return "m" + Character.toUpperCase(p.name.charAt(0)) + p.name.substring(1) + "Adapter";
+    }
+
+    private void writeAdapter(String packageName, TypeElement type) throws IOException {
+        String adapterName = getAdapterName(type);
+        String typeName = type.getQualifiedName().toString();
+        List<Property> properties = getProperties(packageName, type);
+
+        PrintWriter out = new PrintWriter(processingEnv.getFiler()
+                .createSourceFile(packageName + "." + adapterName, type).openWriter());
+        try {
+            out.println("package " + packageName + ";");
+            out.println();
+            out.println("import com.google.gson.Gson;");
+            out.println("import com.google.gson.TypeAdapter;");
+            out.println("import com.google.gson.reflect.TypeToken;");
+            out.println("import com.google.gson.stream.JsonReader;");
+            out.println("import com.google.gson.stream.JsonToken;");
+            out.println("import com.google.gson.stream.JsonWriter;");
+            out.println();
+            out.println("import java.io.IOException;");
+            out.println();
+            out.println("/**");
+            out.println(" * Generated by " + TypeAdapterProcessor.class.getName() + " from " + typeName + ", do not edit.");
+            out.println(" */");
+            out.println("final class " + adapterName + " extends TypeAdapter<" + typeName + "> {");
+            out.println();
+            out.println("    private final " + OBJ_LOADER + " mLoader;");
+            for (Property p : properties) {
+                if (p.kind == Kind.DELEGATE) {
+                    out.println("    private final TypeAdapter<" + p.typeName + "> " + adapterField(p) + ";");
+                }
+            }
+            out.println();
+            out.println("    " + adapterName + "(Gson gson, " + OBJ_LOADER + " loader) {");
+            out.println("        mLoader = loader;");
+            for (Property p : properties) {
+                if (p.kind == Kind.DELEGATE) {
+                    out.println("        " + adapterField(p) + " = gson.getAdapter(" + typeToken(p) + ");");
+                }
+            }
+            out.println("    }");
+            out.println();
+
+            out.println("    private Object load(String id, Class<?> type) {");
+            out.println("        if (mLoader == null) {");
+            out.println("            throw new IllegalStateException(\"no ObjLoader to resolve reference \" + id);");
+            out.println("        }");
+            out.println("        return mLoader.load(id, type);");
+            out.println("    }");
+            out.println();
+
+            out.println("    @Override");
+            out.println("    public void write(JsonWriter out, " + typeName + " value) throws IOException {");
+            out.println("        if (value == null) {");
+            out.println("            out.nullValue();");
+            out.println("            return;");
+            out.println("        }");
+            out.println("        out.beginObject();");
+            for (Property p : properties) {
+                writeField(out, p);
+            }
+            out.println("        out.endObject();");
+            out.println("    }");
+            out.println();
+
+            out.println("    @Override");
+            out.println("    public " + typeName + " read(JsonReader in) throws IOException {");
+            out.println("        if (in.peek() == JsonToken.NULL) {");
+            out.println("            in.nextNull();");
+            out.println("            return null;");
+            out.println("        }");
+            out.println("        " + typeName + " retval = new " + typeName + "();");
+            out.println("        in.beginObject();");
+            out.println("        while (in.hasNext()) {");
+            out.println("            String name = in.nextName();");
+            String prefix = "            ";
+            for (Property p : properties) {
+                String condition = literal(p.jsonName) + ".equals(name)";
+                for (String alternate : p.alternateNames) {
+                    condition += " || " + literal(alternate) + ".equals(name)";
+                }
+                out.println(prefix + "if (" + condition + ") {");
+                readField(out, p);
+                prefix = "            } else ";
+            }
+            if (properties.isEmpty()) {
+                out.println("            in.skipValue();");
+            } else {
+                out.println("            } else {");
+                out.println("                in.skipValue();");
+                out.println("            }");
+            }
+            out.println("        }");
+            out.println("        in.endObject();");
+            out.println("        return retval;");
+            out.println("    }");
+            out.println("}");
+        } finally {
+            out.close();
+        }
+    }
+
+    private String typeToken(Property p) {
+        if (p.type.getKind() == TypeKind.DECLARED && !((DeclaredType) p.type).getTypeArguments().isEmpty()) {
+            return "new TypeToken<" + p.typeName + ">() {}";
+        }
+        return "TypeToken.get(" + processingEnv.getTypeUtils().erasure(p.type) + ".class)";
+    }
+
+    private static void writeField(PrintWriter out, Property p) {
+        String value = "value." + p.name;
+        out.println("        out.name(" + literal(p.jsonName) + ");");
+        switch (p.kind) {
+            case INT:
+            case LONG:
+            case DOUBLE:
+            case BOOLEAN:
+            case STRING:
+                out.println("        out.value(" + value + ");");
+                break;
+            case FLOAT:
+                // as a Float like Gson, so 0.1f is written as 0.1 and not as the widened double
+                out.println("        out.value(Float.valueOf(" + value + "));");
+                break;
+            case ID_REFERENCE:
+                out.println("        out.value(" + value + " != null ? ((" + DB_OBJ + ") " + value + ").mId : null);");
+                break;
+            case ID_REFERENCE_COLLECTION:
+                out.println("        if (" + value + " == null) {");
+                out.println("            out.nullValue();");
+                out.println("        } else {");
+                out.println("            out.beginArray();");
+                out.println("            for (Object ref : " + value + ") {");
+                out.println("                out.value(ref != null ? ((" + DB_OBJ + ") ref).mId : null);");
+                out.println("            }");
+                out.println("            out.endArray();");
+                out.println("        }");
+                break;
+            case DELEGATE:
+                out.println("        " + adapterField(p) + ".write(out, " + value + ");");
+                break;
+        }
+    }
+
+    private static void readField(PrintWriter out, Property p) {
+        String field = "retval." + p.name;
+        String indent = "                ";
+        switch (p.kind) {
+            case INT:
+            case LONG:
+            case FLOAT:
+            case DOUBLE:
+                // like Gson, null leaves a primitive field at its default
+                out.println(indent + "if (in.peek() == JsonToken.NULL) {");
+                out.println(indent + "    in.nextNull();");
+                out.println(indent + "} else {");
+                out.println(indent + "    " + field + " = " + (p.kind == Kind.INT ? "in.nextInt()"
+                        : p.kind == Kind.LONG ? "in.nextLong()"
+                        : p.kind == Kind.FLOAT ? "(float) in.nextDouble()" : "in.nextDouble()") + ";");
+                out.println(indent + "}");
+                break;
+            case BOOLEAN:
+                out.println(indent + "JsonToken token = in.peek();");
+                out.println(indent + "if (token == JsonToken.NULL) {");
+                out.println(indent + "    in.nextNull();");
+                out.println(indent + "} else if (token == JsonToken.STRING) {");
+                out.println(indent + "    " + field + " = Boolean.parseBoolean(in.nextString());");
+                out.println(indent + "} else {");
+                out.println(indent + "    " + field + " = in.nextBoolean();");
+                out.println(indent + "}");
+                break;
+            case STRING:
+                out.println(indent + "JsonToken token = in.peek();");
+                out.println(indent + "if (token == JsonToken.NULL) {");
+                out.println(indent + "    in.nextNull();");
+                out.println(indent + "    " + field + " = null;");
+                out.println(indent + "} else if (token == JsonToken.BOOLEAN) {");
+                out.println(indent + "    " + field + " = Boolean.toString(in.nextBoolean());");
+                out.println(indent + "} else {");
+                out.println(indent + "    " + field + " = in.nextString();");
+                out.println(indent + "}");
+                break;
+            case ID_REFERENCE:
+                out.println(indent + "if (in.peek() == JsonToken.NULL) {");
+                out.println(indent + "    in.nextNull();");
+                out.println(indent + "    " + field + " = null;");
+                out.println(indent + "} else {");
+                out.println(indent + "    " + field + " = (" + p.refType + ") load(in.nextString(), " + p.refType + ".class);");
+                out.println(indent + "}");
+                break;
+            case ID_REFERENCE_COLLECTION:
+                out.println(indent + "if (in.peek() == JsonToken.NULL) {");
+                out.println(indent + "    in.nextNull();");
+                out.println(indent + "    " + field + " = null;");
+                out.println(indent + "} else {");
+                out.println(indent + "    if (" + field + " == null) {");
+                out.println(indent + "        " + field + " = new " + p.collectionImpl + "();");
+                out.println(indent + "    } else {");
+                out.println(indent + "        " + field + ".clear();");
+                out.println(indent + "    }");
+                out.println(indent + "    in.beginArray();");
+                out.println(indent + "    while (in.hasNext()) {");
+                out.println(indent + "        if (in.peek() == JsonToken.NULL) {");
+                out.println(indent + "            in.nextNull();");
+                out.println(indent + "            " + field + ".add(null);");
+                out.println(indent + "        } else {");
+                out.println(indent + "            " + field + ".add((" + p.refType + ") load(in.nextString(), " + p.refType + ".class));");
+                out.println(indent + "        }");
+                out.println(indent + "    }");
+                out.println(indent + "    in.endArray();");
+                out.println(indent + "}");
+                break;
+            case DELEGATE:
+                out.println(indent + field + " = " + adapterField(p) + ".read(in);");
+                break;
+        }
+    }
+
+    private void writeFactory(String packageName, List<TypeElement> types) throws IOException {
+        Element[] originating = types.toArray(new Element[types.size()]);
+        PrintWriter out = new PrintWriter(processingEnv.getFiler()
+                .createSourceFile(packageName + "." + FACTORY_NAME, originating).openWriter());
+        try {
+            out.println("package " + packageName + ";");
+            out.println();
+            out.println("import com.google.gson.Gson;");
+            out.println("import com.google.gson.TypeAdapter;");
+            out.println("import com.google.gson.TypeAdapterFactory;");
+            out.println("import com.google.gson.reflect.TypeToken;");
+            out.println();
+            out.println("import java.util.Arrays;");
+            out.println("import java.util.Collections;");
+            out.println("import java.util.List;");
+            out.println();
+            out.println("/**");
+            out.println(" * Generated by " + TypeAdapterProcessor.class.getName() + ", do not edit. Returns the generated");
+            out.println(" * adapter of every @GenerateTypeAdapter class in this package. References are resolved through");
+            out.println(" * the loader, which may be null if only writing.");
+            out.println(" */");
+            out.println("public final class " + FACTORY_NAME + " implements TypeAdapterFactory {");
+            out.println();
+            out.println("    private final " + OBJ_LOADER + " mLoader;");
+            out.println();
+            out.println("    public " + FACTORY_NAME + "(" + OBJ_LOADER + " loader) {");
+            out.println("        mLoader = loader;");
+            out.println("    }");
+            out.println();
+            out.println("    /**");
+            out.println("     * True if the class has a generated adapter.");
+            out.println("     */");
+            out.println("    public static boolean isGenerated(Class<?> type) {");
+            for (TypeElement type : types) {
+                out.println("        if (type == " + type.getQualifiedName() + ".class) {");
+                out.println("            return true;");
+                out.println("        }");
+            }
+            out.println("        return false;");
+            out.println("    }");
+            out.println();
+            out.println("    /**");
+            out.println("     * Every class of this package that has a generated adapter.");
+            out.println("     */");
+            out.println("    public static List<Class<?>> getGeneratedTypes() {");
+            out.println("        return Collections.unmodifiableList(Arrays.<Class<?>>asList(");
+            for (int i = 0; i < types.size(); i++) {
+                out.println("                " + types.get(i).getQualifiedName() + ".class" + (i + 1 < types.size() ? "," : "));"));
+            }
+            out.println("    }");
+            out.println();
+            out.println("    @Override");
+            out.println("    @SuppressWarnings(\"unchecked\")");
+            out.println("    public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> typeToken) {");
+            out.println("        Class<?> type = typeToken.getRawType();");
+            for (TypeElement type : types) {
+                out.println("        if (type == " + type.getQualifiedName() + ".class) {");
+                out.println("            return (TypeAdapter<T>) new " + getAdapterName(type) + "(gson, mLoader);");
+                out.println("        }");
+            }
+            out.println("        return null;");
+            out.println("    }");
+            out.println("}");
+        } finally {
+            out.close();
+        }
+    }
+}